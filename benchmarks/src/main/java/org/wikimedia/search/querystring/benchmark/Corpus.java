@@ -0,0 +1,41 @@
+package org.wikimedia.search.querystring.benchmark;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Representative query strings grouped by the kind of syntax they use so
+ * each kind can be measured on its own.
+ */
+public enum Corpus {
+    TERMS("foo", "foo bar", "the quick brown fox", "main page", "united states of america", "List of highest-grossing films",
+            "foo OR bar", "foo AND bar -baz", "+foo +bar -baz", "(foo OR bar) baz"),
+    PHRASES("\"foo bar\"", "\"the quick brown fox\"", "\"united states\"~2", "\"main page\"~", "\"to be or not to be\"",
+            "\"foo bar\" \"baz bort\"", "\"foo bar\"~1~", "\"List of highest-grossing films\""),
+    FIELDED("title:foo", "title:foo text:bar", "title:\"foo bar\"", "title,text:foo", "title^2,text:foo bar", "title:(foo OR bar)",
+            "title:foo -text:bar", "title:fo* text:bar"),
+    WILDCARD("foo*", "fo?", "f*o", "pickl*", "pi*kl?", "*oo", "foo* bar*", "\"united sta*\"", "\"unit* sta*\"", "title:fo*"),
+    FUZZY("foo~", "foo~1", "foo~2", "pickle~", "fooooooo~", "foo~ bar~", "\"foo~ bar\"", "title:foo~"),
+    PATHOLOGICAL(repeat("(", 100) + "foo" + repeat(")", 100), repeat("foo* ", 200), repeat("a~ ", 200), "\"" + repeat("foo ", 200)
+            + "\"~100", repeat("foo OR ", 300) + "foo", repeat("?", 500), repeat("\"foo\" ", 100) + repeat("\\\"", 100),
+            repeat("title:foo ", 200), repeat("a", 10000));
+
+    private final List<String> queries;
+
+    private Corpus(String... queries) {
+        this.queries = Collections.unmodifiableList(Arrays.asList(queries));
+    }
+
+    public List<String> queries() {
+        return queries;
+    }
+
+    private static String repeat(String s, int times) {
+        StringBuilder b = new StringBuilder(s.length() * times);
+        for (int i = 0; i < times; i++) {
+            b.append(s);
+        }
+        return b.toString();
+    }
+}
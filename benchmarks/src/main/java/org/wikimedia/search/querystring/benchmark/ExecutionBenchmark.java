@@ -0,0 +1,218 @@
+package org.wikimedia.search.querystring.benchmark;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.LowerCaseFilter;
+import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
+import org.apache.lucene.analysis.ngram.EdgeNGramTokenFilter;
+import org.apache.lucene.analysis.ngram.NGramTokenFilter;
+import org.apache.lucene.analysis.reverse.ReverseStringFilter;
+import org.apache.lucene.analysis.standard.StandardTokenizer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.wikimedia.search.querystring.QueryParserHelper;
+import org.wikimedia.search.querystring.query.FieldQueryBuilder;
+import org.wikimedia.search.querystring.query.FieldUsage;
+
+/**
+ * Runs queries built by qsppp against an in-memory index that has every
+ * field variant so the latency with and without each FieldDefinition feature
+ * can be compared. The index is a synthetic corpus built from a fixed seed so
+ * runs are comparable.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ExecutionBenchmark {
+    /**
+     * Which of the field's optimized variants the query can use.
+     */
+    public enum Feature {
+        NONE, REVERSE_PRECISE, PREFIX_PRECISE, NGRAM, ALL;
+    }
+
+    /**
+     * Query strings that each feature is meant to speed up.
+     */
+    public enum QueryKind {
+        LEADING_WILDCARD("*tion"), PREFIX("sta*"), PHRASE_PREFIX("\"united sta*\""), REGEX("/.+ation/");
+
+        private final String query;
+
+        private QueryKind(String query) {
+            this.query = query;
+        }
+    }
+
+    @Param({ "20000" })
+    public int docs;
+
+    @Param
+    public Feature feature;
+
+    @Param
+    public QueryKind query;
+
+    private static final String[] REAL_WORDS = new String[] { "united", "states", "station", "nation", "national", "stationary",
+            "america", "of", "the", "and", "information", "relation", "stack", "star", "start", "state", "statue", "status" };
+
+    private Directory dir;
+    private DirectoryReader reader;
+    private IndexSearcher searcher;
+    private Query built;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = new RAMDirectory();
+        Map<String, Analyzer> analyzers = new HashMap<>();
+        analyzers.put("precise_text", Fixtures.STANDARD);
+        analyzers.put("reverse_text", new ReverseAnalyzer());
+        analyzers.put("prefix_text", new EdgeNGramAnalyzer());
+        analyzers.put("ngram_text", new TrigramAnalyzer());
+        IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_4_10_4, new PerFieldAnalyzerWrapper(Fixtures.ENGLISH,
+                analyzers));
+        try (IndexWriter writer = new IndexWriter(dir, config)) {
+            List<String> vocabulary = vocabulary(new Random(42), 5000);
+            Random random = new Random(42);
+            for (int i = 0; i < docs; i++) {
+                String text = text(random, vocabulary, 20);
+                Document doc = new Document();
+                doc.add(new TextField("text", text, Store.NO));
+                for (String field : analyzers.keySet()) {
+                    doc.add(new TextField(field, text, Store.NO));
+                }
+                writer.addDocument(doc);
+            }
+            writer.forceMerge(1);
+        }
+        reader = DirectoryReader.open(dir);
+        searcher = new IndexSearcher(reader);
+
+        FieldQueryBuilder.Settings settings = Fixtures.settings();
+        // Without the reverse field leading wildcards would be term queries
+        settings.setAllowLeadingWildcard(true);
+        settings.setIndexReader(reader);
+        List<FieldUsage> usages = Collections.singletonList(usage(feature));
+        built = new QueryParserHelper(Fixtures.fieldsHelper(), Fixtures.builder(settings, usages), true, true).parse(query.query);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        reader.close();
+        dir.close();
+    }
+
+    @Benchmark
+    public TopDocs search() throws IOException {
+        return searcher.search(built, 10);
+    }
+
+    private static FieldUsage usage(Feature feature) {
+        boolean all = feature == Feature.ALL;
+        String reverse = all || feature == Feature.REVERSE_PRECISE ? "reverse_text" : null;
+        String prefix = all || feature == Feature.PREFIX_PRECISE ? "prefix_text" : null;
+        String ngram = all || feature == Feature.NGRAM ? "ngram_text" : null;
+        return new FieldUsage("text", Fixtures.ENGLISH, "precise_text", Fixtures.STANDARD, reverse, Fixtures.STANDARD, prefix,
+                Fixtures.STANDARD, EdgeNGramAnalyzer.MIN_GRAM, EdgeNGramAnalyzer.MAX_GRAM, ngram, 3, 1);
+    }
+
+    /**
+     * Some real words the queries look for and lots of made up ones.
+     */
+    private static List<String> vocabulary(Random random, int size) {
+        List<String> vocabulary = new ArrayList<>(size);
+        Collections.addAll(vocabulary, REAL_WORDS);
+        while (vocabulary.size() < size) {
+            StringBuilder word = new StringBuilder();
+            int syllables = 1 + random.nextInt(4);
+            for (int i = 0; i < syllables; i++) {
+                word.append("bcdfghklmnprstvz".charAt(random.nextInt(16))).append("aeiou".charAt(random.nextInt(5)));
+            }
+            if (random.nextInt(10) == 0) {
+                word.append("tion");
+            }
+            vocabulary.add(word.toString());
+        }
+        return vocabulary;
+    }
+
+    /**
+     * Text with words picked so the first words of the vocabulary are much
+     * more common than the last ones, like real text.
+     */
+    private static String text(Random random, List<String> vocabulary, int words) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            double r = random.nextDouble();
+            text.append(vocabulary.get((int) (r * r * r * vocabulary.size()))).append(' ');
+        }
+        return text.toString();
+    }
+
+    private static class ReverseAnalyzer extends Analyzer {
+        @Override
+        protected TokenStreamComponents createComponents(String fieldName, Reader reader) {
+            Tokenizer source = new StandardTokenizer(reader);
+            TokenStream result = new ReverseStringFilter(new LowerCaseFilter(source));
+            return new TokenStreamComponents(source, result);
+        }
+    }
+
+    private static class EdgeNGramAnalyzer extends Analyzer {
+        private static final int MIN_GRAM = 1;
+        private static final int MAX_GRAM = 10;
+
+        @Override
+        protected TokenStreamComponents createComponents(String fieldName, Reader reader) {
+            Tokenizer source = new StandardTokenizer(reader);
+            TokenStream result = new EdgeNGramTokenFilter(new LowerCaseFilter(source), MIN_GRAM, MAX_GRAM);
+            return new TokenStreamComponents(source, result);
+        }
+    }
+
+    private static class TrigramAnalyzer extends Analyzer {
+        @Override
+        protected TokenStreamComponents createComponents(String fieldName, Reader reader) {
+            Tokenizer source = new StandardTokenizer(reader);
+            TokenStream result = new NGramTokenFilter(new LowerCaseFilter(source), 3, 3);
+            return new TokenStreamComponents(source, result);
+        }
+    }
+}
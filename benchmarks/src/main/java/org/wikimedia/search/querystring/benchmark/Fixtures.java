@@ -0,0 +1,65 @@
+package org.wikimedia.search.querystring.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.en.EnglishAnalyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.util.CharArraySet;
+import org.elasticsearch.index.Index;
+import org.wikimedia.search.querystring.FieldResolver;
+import org.wikimedia.search.querystring.FieldsHelper;
+import org.wikimedia.search.querystring.query.BasicQueryBuilder;
+import org.wikimedia.search.querystring.query.DefaultingQueryBuilder;
+import org.wikimedia.search.querystring.query.FieldQueryBuilder;
+import org.wikimedia.search.querystring.query.FieldUsage;
+import org.wikimedia.search.querystring.query.RegexQueryBuilder;
+
+/**
+ * Builds the parts of the parser the same way the tests do: english for the
+ * standard fields, standard for the precise fields, and nothing looked up in
+ * a real index.
+ */
+public final class Fixtures {
+    public static final Analyzer ENGLISH = new EnglishAnalyzer();
+    public static final Analyzer STANDARD = new StandardAnalyzer(CharArraySet.EMPTY_SET);
+
+    private Fixtures() {
+        // Util class
+    }
+
+    public static FieldsHelper fieldsHelper() {
+        FieldsHelper fieldsHelper = new FieldsHelper(new FieldResolver.NeverFinds(ENGLISH, STANDARD));
+        fieldsHelper.whitelistAll();
+        return fieldsHelper;
+    }
+
+    public static FieldQueryBuilder.Settings settings() {
+        FieldQueryBuilder.Settings settings = new FieldQueryBuilder.Settings();
+        settings.setAllowLeadingWildcard(false);
+        settings.setRegexQueryBuilder(new RegexQueryBuilder.LuceneRegexQueryBuilder(new Index("bench")));
+        return settings;
+    }
+
+    /**
+     * Usage of a field with precise, reverse precise, and prefix precise
+     * subfields like the ones the tests use.
+     */
+    public static FieldUsage usage(String name) {
+        return new FieldUsage(name, ENGLISH, "precise_" + name, STANDARD, "reverse_" + name, STANDARD, "prefix_" + name, STANDARD,
+                null, 3, 1);
+    }
+
+    public static List<FieldUsage> usages(String... names) {
+        List<FieldUsage> usages = new ArrayList<>(names.length);
+        for (String name : names) {
+            usages.add(usage(name));
+        }
+        return usages;
+    }
+
+    public static DefaultingQueryBuilder builder(FieldQueryBuilder.Settings settings, List<FieldUsage> usages) {
+        return new DefaultingQueryBuilder(new DefaultingQueryBuilder.Settings(), new BasicQueryBuilder(settings, usages));
+    }
+}
@@ -0,0 +1,22 @@
+package org.wikimedia.search.querystring.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks like JMH's main but always with the gc profiler so the
+ * results include gc.alloc.rate.norm and allocation regressions show up next
+ * to throughput regressions.
+ */
+public final class Main {
+    private Main() {
+        // Main class
+    }
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmdOptions = new CommandLineOptions(args);
+        new Runner(new OptionsBuilder().parent(cmdOptions).addProfiler(GCProfiler.class).build()).run();
+    }
+}
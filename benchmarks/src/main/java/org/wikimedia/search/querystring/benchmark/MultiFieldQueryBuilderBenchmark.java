@@ -0,0 +1,73 @@
+package org.wikimedia.search.querystring.benchmark;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.search.Query;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.wikimedia.search.querystring.query.BasicQueryBuilder;
+import org.wikimedia.search.querystring.query.PhraseTerm;
+import org.wikimedia.search.querystring.query.phraseterm.PrefixPhraseTerm;
+import org.wikimedia.search.querystring.query.phraseterm.SimpleStringPhraseTerm;
+
+/**
+ * Measures how building queries grows with the number of fields they fan out
+ * to through MultiFieldQueryBuilder.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MultiFieldQueryBuilderBenchmark {
+    @Param({ "1", "3", "10" })
+    public int fields;
+
+    private BasicQueryBuilder builder;
+    private List<PhraseTerm> phrase;
+    private List<PhraseTerm> spanPhrase;
+
+    @Setup
+    public void setup() {
+        String[] names = new String[fields];
+        for (int i = 0; i < fields; i++) {
+            names[i] = "field" + i;
+        }
+        builder = new BasicQueryBuilder(Fixtures.settings(), Fixtures.usages(names));
+        phrase = Arrays.<PhraseTerm> asList(new SimpleStringPhraseTerm("the"), new SimpleStringPhraseTerm("quick"),
+                new SimpleStringPhraseTerm("brown"), new SimpleStringPhraseTerm("fox"));
+        spanPhrase = Arrays.<PhraseTerm> asList(new SimpleStringPhraseTerm("united"), new PrefixPhraseTerm("sta"));
+    }
+
+    @Benchmark
+    public Query term() {
+        return builder.termQuery("foxes");
+    }
+
+    @Benchmark
+    public Query phrase() {
+        return builder.phraseQuery(phrase, 0, true);
+    }
+
+    @Benchmark
+    public Query spanPhrase() {
+        return builder.phraseQuery(spanPhrase, 0, true);
+    }
+
+    @Benchmark
+    public Query prefix() {
+        return builder.prefixQuery("fo");
+    }
+}
@@ -0,0 +1,64 @@
+package org.wikimedia.search.querystring.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.search.Query;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.wikimedia.search.querystring.FieldsHelper;
+import org.wikimedia.search.querystring.QueryParserHelper;
+import org.wikimedia.search.querystring.query.DefaultingQueryBuilder;
+
+/**
+ * Parses the queries in a category of the corpus through QueryParserHelper,
+ * one query per operation. Run with -prof gc for the allocation rate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParseBenchmark {
+    @Param
+    public Corpus corpus;
+
+    /**
+     * Number of fields searched by default.
+     */
+    @Param({ "1", "3" })
+    public int defaultFields;
+
+    private List<String> queries;
+    private FieldsHelper fieldsHelper;
+    private DefaultingQueryBuilder builder;
+    private int next;
+
+    @Setup
+    public void setup() {
+        queries = corpus.queries();
+        fieldsHelper = Fixtures.fieldsHelper();
+        String[] fields = defaultFields == 1 ? new String[] { "text" } : new String[] { "title", "text", "heading" };
+        builder = Fixtures.builder(Fixtures.settings(), Fixtures.usages(fields));
+    }
+
+    /**
+     * Parse the next query in the category.
+     */
+    @Benchmark
+    public Query parse() {
+        String query = queries.get(next);
+        next = (next + 1) % queries.size();
+        return new QueryParserHelper(fieldsHelper, builder, true, true).parse(query);
+    }
+}
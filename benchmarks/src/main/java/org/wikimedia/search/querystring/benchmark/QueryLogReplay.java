@@ -0,0 +1,304 @@
+package org.wikimedia.search.querystring.benchmark;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.index.Index;
+import org.wikimedia.search.querystring.FieldsHelper;
+import org.wikimedia.search.querystring.FieldsHelper.UnauthorizedAction;
+import org.wikimedia.search.querystring.QueryParserHelper;
+import org.wikimedia.search.querystring.query.DefaultingQueryBuilder;
+import org.wikimedia.search.querystring.query.FieldQueryBuilder;
+import org.wikimedia.search.querystring.query.RegexQueryBuilder;
+
+/**
+ * Replays a log of query strings through QueryParserHelper from many threads
+ * and reports latency percentiles, throughput, and allocation per query type.
+ * Useful for sizing parse capacity and reproducing slow queries without a
+ * cluster.
+ * <p>
+ * Each line of the log is either a bare query string or a json object with
+ * the same keys as the qsppp query. The keys that don't need an index are
+ * supported: query, fields, default_operator, empty, allow_leading_wildcard,
+ * allow_prefix, and min_prefix_length. Fields always resolve to the english
+ * and standard analyzers like the tests.
+ * <p>
+ * Usage: QueryLogReplay [--concurrency N] [--iterations N] [--warmup N]
+ * [--fields fields] log
+ */
+public final class QueryLogReplay {
+    /**
+     * Highest latency the histograms track.
+     */
+    private static final long MAX_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private QueryLogReplay() {
+        // Main class
+    }
+
+    public static void main(String[] args) throws Exception {
+        int concurrency = Runtime.getRuntime().availableProcessors();
+        int iterations = 10;
+        int warmup = 2;
+        String fields = "text";
+        String log = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+            case "--concurrency":
+                concurrency = Integer.parseInt(args[++i]);
+                break;
+            case "--iterations":
+                iterations = Integer.parseInt(args[++i]);
+                break;
+            case "--warmup":
+                warmup = Integer.parseInt(args[++i]);
+                break;
+            case "--fields":
+                fields = args[++i];
+                break;
+            default:
+                log = args[i];
+            }
+        }
+        if (log == null) {
+            System.err.println("Usage: QueryLogReplay [--concurrency N] [--iterations N] [--warmup N] [--fields fields] log");
+            System.exit(1);
+        }
+        List<Entry> entries = load(log, fields);
+        System.out.printf(Locale.ROOT, "Replaying %s queries %s times with %s threads after %s warmup passes%n", entries.size(),
+                iterations, concurrency, warmup);
+        replay(entries, warmup, concurrency, null);
+        Map<String, Stats> stats = new TreeMap<>();
+        for (Entry entry : entries) {
+            if (!stats.containsKey(entry.type)) {
+                stats.put(entry.type, new Stats());
+            }
+        }
+        long start = System.nanoTime();
+        replay(entries, iterations, concurrency, stats);
+        long took = System.nanoTime() - start;
+        report(stats, took);
+    }
+
+    /**
+     * Parse every entry passes times split across concurrency threads.
+     *
+     * @param stats where to record the results or null to throw them away
+     */
+    private static void replay(final List<Entry> entries, int passes, int concurrency, final Map<String, Stats> stats)
+            throws Exception {
+        final AtomicLong next = new AtomicLong();
+        final long total = (long) entries.size() * passes;
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < concurrency; t++) {
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        long i;
+                        while ((i = next.getAndIncrement()) < total) {
+                            Entry entry = entries.get((int) (i % entries.size()));
+                            long allocatedBefore = allocatedBytes();
+                            long start = System.nanoTime();
+                            entry.parse();
+                            long took = System.nanoTime() - start;
+                            long allocated = allocatedBytes() - allocatedBefore;
+                            if (stats != null) {
+                                stats.get(entry.type).record(took, allocated);
+                            }
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void report(Map<String, Stats> stats, long tookNanos) {
+        double seconds = tookNanos / (double) TimeUnit.SECONDS.toNanos(1);
+        System.out.printf(Locale.ROOT, "%-12s %10s %10s %10s %10s %10s %10s %10s %12s%n", "type", "count", "ops/s", "p50 us",
+                "p90 us", "p99 us", "p99.9 us", "max us", "bytes/query");
+        Stats all = new Stats();
+        for (Map.Entry<String, Stats> e : stats.entrySet()) {
+            e.getValue().print(e.getKey(), seconds);
+            all.add(e.getValue());
+        }
+        all.print("all", seconds);
+    }
+
+    /**
+     * Bytes allocated by the current thread or 0 if the JVM can't tell us.
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    private static List<Entry> load(String log, String defaultFields) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get(log), StandardCharsets.UTF_8)) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            if (!line.startsWith("{")) {
+                entries.add(new Entry(line, defaultFields, true, true, new FieldQueryBuilder.Settings()));
+                continue;
+            }
+            Map<String, Object> options = XContentHelper.convertToMap(line.getBytes(StandardCharsets.UTF_8), false).v2();
+            String query = null;
+            String fields = defaultFields;
+            boolean defaultIsAnd = true;
+            boolean emptyIsMatchAll = true;
+            FieldQueryBuilder.Settings settings = new FieldQueryBuilder.Settings();
+            for (Map.Entry<String, Object> option : options.entrySet()) {
+                String value = option.getValue().toString();
+                switch (option.getKey()) {
+                case "query":
+                    query = value;
+                    break;
+                case "fields":
+                case "field":
+                    fields = value;
+                    break;
+                case "default_operator":
+                    defaultIsAnd = "and".equals(value.toLowerCase(Locale.ROOT));
+                    break;
+                case "empty":
+                    emptyIsMatchAll = "match_all".equals(value.toLowerCase(Locale.ROOT));
+                    break;
+                case "allow_leading_wildcard":
+                    settings.setAllowLeadingWildcard(Boolean.parseBoolean(value));
+                    break;
+                case "allow_prefix":
+                    settings.setAllowPrefix(Boolean.parseBoolean(value));
+                    break;
+                case "min_prefix_length":
+                    settings.setMinPrefixLength(Integer.parseInt(value));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported option [" + option.getKey() + "] in " + line);
+                }
+            }
+            if (query == null) {
+                throw new IllegalArgumentException("No query in " + line);
+            }
+            entries.add(new Entry(query, fields, defaultIsAnd, emptyIsMatchAll, settings));
+        }
+        return entries;
+    }
+
+    /**
+     * One query from the log ready to be parsed over and over again.
+     */
+    private static class Entry {
+        private final String query;
+        private final String type;
+        private final String fields;
+        private final boolean defaultIsAnd;
+        private final boolean emptyIsMatchAll;
+        private final FieldQueryBuilder.Settings settings;
+
+        public Entry(String query, String fields, boolean defaultIsAnd, boolean emptyIsMatchAll, FieldQueryBuilder.Settings settings) {
+            this.query = query;
+            this.type = type(query);
+            this.fields = fields;
+            this.defaultIsAnd = defaultIsAnd;
+            this.emptyIsMatchAll = emptyIsMatchAll;
+            this.settings = settings;
+            settings.setRegexQueryBuilder(new RegexQueryBuilder.LuceneRegexQueryBuilder(new Index("bench")));
+        }
+
+        /**
+         * Parse the query the way the qsppp query would, building everything
+         * that is built per request.
+         */
+        public void parse() {
+            FieldsHelper fieldsHelper = Fixtures.fieldsHelper();
+            DefaultingQueryBuilder builder = Fixtures.builder(settings,
+                    fieldsHelper.resolve(QueryParserHelper.parseFields(fields), UnauthorizedAction.WHITELIST));
+            new QueryParserHelper(fieldsHelper, builder, defaultIsAnd, emptyIsMatchAll).parse(query);
+        }
+
+        /**
+         * Guess the most expensive kind of syntax the query uses.
+         */
+        private static String type(String query) {
+            if (query.length() > 500) {
+                return "long";
+            }
+            if (query.matches(".*/.+/.*")) {
+                return "regex";
+            }
+            if (query.indexOf('~') >= 0) {
+                return "fuzzy";
+            }
+            if (query.indexOf('*') >= 0 || query.indexOf('?') >= 0) {
+                return "wildcard";
+            }
+            if (query.indexOf('"') >= 0) {
+                return "phrase";
+            }
+            if (query.indexOf(':') >= 0) {
+                return "fielded";
+            }
+            return "terms";
+        }
+    }
+
+    /**
+     * Latency and allocation for one type of query.
+     */
+    private static class Stats {
+        private final Histogram latency = new ConcurrentHistogram(MAX_NANOS, 3);
+        private final AtomicLong allocated = new AtomicLong();
+
+        public void record(long nanos, long bytes) {
+            latency.recordValue(Math.min(nanos, MAX_NANOS));
+            allocated.addAndGet(bytes);
+        }
+
+        public void add(Stats other) {
+            latency.add(other.latency);
+            allocated.addAndGet(other.allocated.get());
+        }
+
+        public void print(String type, double seconds) {
+            long count = latency.getTotalCount();
+            if (count == 0) {
+                return;
+            }
+            System.out.printf(Locale.ROOT, "%-12s %10d %10.0f %10.1f %10.1f %10.1f %10.1f %10.1f %12d%n", type, count, count / seconds,
+                    micros(latency.getValueAtPercentile(50)), micros(latency.getValueAtPercentile(90)),
+                    micros(latency.getValueAtPercentile(99)), micros(latency.getValueAtPercentile(99.9)),
+                    micros(latency.getMaxValue()), allocated.get() / count);
+        }
+
+        private static double micros(long nanos) {
+            return nanos / 1000.0;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package org.wikimedia.search.querystring.benchmark;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs a fixed subset of the parse and build benchmarks and compares them to
+ * a baseline file, failing if throughput dropped or allocation per operation
+ * rose by more than a tolerance. Baselines are only comparable on the machine
+ * that made them so regenerate the baseline with --write when moving the gate
+ * to a new machine.
+ * <p>
+ * Usage: RegressionGate --baseline file [--write] [--throughput-tolerance
+ * 0.3] [--allocation-tolerance 0.1]
+ */
+public final class RegressionGate {
+    /**
+     * Benchmarks the gate runs, as JMH include patterns.
+     */
+    private static final String[] INCLUDES = new String[] { ParseBenchmark.class.getSimpleName() + ".parse",
+            SingleFieldQueryBuilderBenchmark.class.getSimpleName() + "\\.(term|multiTokenTerm|phrase|spanPhrase)$" };
+    private static final String ALLOCATION = "\u00b7gc.alloc.rate.norm";
+
+    private RegressionGate() {
+        // Main class
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path baseline = null;
+        boolean write = false;
+        double throughputTolerance = 0.3;
+        double allocationTolerance = 0.1;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+            case "--baseline":
+                baseline = Paths.get(args[++i]);
+                break;
+            case "--write":
+                write = true;
+                break;
+            case "--throughput-tolerance":
+                throughputTolerance = Double.parseDouble(args[++i]);
+                break;
+            case "--allocation-tolerance":
+                allocationTolerance = Double.parseDouble(args[++i]);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown argument:  " + args[i]);
+            }
+        }
+        if (baseline == null) {
+            throw new IllegalArgumentException("--baseline is required");
+        }
+        Map<String, Double> results = run();
+        if (write) {
+            write(baseline, results);
+            System.out.println("Wrote " + results.size() + " results to " + baseline);
+            return;
+        }
+        List<String> failures = compare(load(baseline), results, throughputTolerance, allocationTolerance);
+        if (!failures.isEmpty()) {
+            for (String failure : failures) {
+                System.err.println(failure);
+            }
+            System.exit(1);
+        }
+        System.out.println("No regressions compared to " + baseline);
+    }
+
+    /**
+     * Run the benchmarks.
+     *
+     * @return throughput and allocation keyed by benchmark name and params
+     */
+    private static Map<String, Double> run() throws Exception {
+        OptionsBuilder options = new OptionsBuilder();
+        for (String include : INCLUDES) {
+            options.include(include);
+        }
+        // Only the single field flavor of the parse benchmark to keep the gate quick
+        options.param("defaultFields", "1");
+        options.param("corpus", gatedCorpora());
+        options.warmupIterations(5).measurementIterations(5).forks(1).addProfiler(GCProfiler.class);
+        Collection<RunResult> runResults = new Runner(options.build()).run();
+        Map<String, Double> results = new TreeMap<>();
+        for (RunResult runResult : runResults) {
+            String key = key(runResult);
+            results.put(key + ".ops", runResult.getPrimaryResult().getScore());
+            Result<?> allocation = runResult.getSecondaryResults().get(ALLOCATION);
+            if (allocation != null) {
+                results.put(key + ".alloc", allocation.getScore());
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Corpora the gate checks. The pathological queries take about a second
+     * each so five iterations can't measure them steadily enough to gate on.
+     * Run ParseBenchmark by hand to check them.
+     */
+    private static String[] gatedCorpora() {
+        List<String> corpora = new ArrayList<>();
+        for (Corpus corpus : Corpus.values()) {
+            if (corpus != Corpus.PATHOLOGICAL) {
+                corpora.add(corpus.name());
+            }
+        }
+        return corpora.toArray(new String[corpora.size()]);
+    }
+
+    private static String key(RunResult runResult) {
+        String benchmark = runResult.getParams().getBenchmark();
+        StringBuilder key = new StringBuilder(benchmark.substring(benchmark.lastIndexOf('.', benchmark.lastIndexOf('.') - 1) + 1));
+        for (String param : runResult.getParams().getParamsKeys()) {
+            key.append('[').append(param).append('=').append(runResult.getParams().getParam(param)).append(']');
+        }
+        return key.toString();
+    }
+
+    private static List<String> compare(Map<String, Double> baseline, Map<String, Double> results, double throughputTolerance,
+            double allocationTolerance) {
+        List<String> failures = new ArrayList<>();
+        for (Map.Entry<String, Double> expected : baseline.entrySet()) {
+            Double actual = results.get(expected.getKey());
+            if (actual == null) {
+                failures.add("Missing result for " + expected.getKey());
+                continue;
+            }
+            if (expected.getKey().endsWith(".ops")) {
+                if (actual < expected.getValue() * (1 - throughputTolerance)) {
+                    failures.add(String.format(Locale.ROOT, "%s dropped from %.1f to %.1f ops/s", expected.getKey(), expected.getValue(),
+                            actual));
+                }
+            } else if (actual > expected.getValue() * (1 + allocationTolerance)) {
+                failures.add(String.format(Locale.ROOT, "%s rose from %.1f to %.1f bytes/op", expected.getKey(), expected.getValue(),
+                        actual));
+            }
+        }
+        return failures;
+    }
+
+    private static Map<String, Double> load(Path baseline) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(baseline, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        Map<String, Double> loaded = new TreeMap<>();
+        for (String key : properties.stringPropertyNames()) {
+            loaded.put(key, Double.parseDouble(properties.getProperty(key)));
+        }
+        return loaded;
+    }
+
+    private static void write(Path baseline, Map<String, Double> results) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(baseline, StandardCharsets.UTF_8)) {
+            writer.write("# Written by RegressionGate --write. Throughput is ops/s and alloc is bytes/op.\n");
+            for (Map.Entry<String, Double> result : results.entrySet()) {
+                writer.write(result.getKey().replace("=", "\\="));
+                writer.write(String.format(Locale.ROOT, "=%.1f%n", result.getValue()));
+            }
+        }
+    }
+}
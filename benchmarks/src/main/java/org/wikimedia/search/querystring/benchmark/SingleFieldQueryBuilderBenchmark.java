@@ -0,0 +1,84 @@
+package org.wikimedia.search.querystring.benchmark;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.search.Query;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.wikimedia.search.querystring.query.PhraseTerm;
+import org.wikimedia.search.querystring.query.SingleFieldQueryBuilder;
+import org.wikimedia.search.querystring.query.phraseterm.FuzzyPhraseTerm;
+import org.wikimedia.search.querystring.query.phraseterm.PrefixPhraseTerm;
+import org.wikimedia.search.querystring.query.phraseterm.SimpleStringPhraseTerm;
+import org.wikimedia.search.querystring.query.phraseterm.WildcardPhraseTerm;
+
+/**
+ * Builds queries with a SingleFieldQueryBuilder directly so the analysis in
+ * termOrPhraseQuery and the phrase and span building can be measured without
+ * the parser.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SingleFieldQueryBuilderBenchmark {
+    private SingleFieldQueryBuilder builder;
+    private List<PhraseTerm> phrase;
+    private List<PhraseTerm> spanPhrase;
+
+    @Setup
+    public void setup() {
+        builder = new SingleFieldQueryBuilder(Fixtures.usage("text"), Fixtures.settings());
+        phrase = Arrays.<PhraseTerm> asList(new SimpleStringPhraseTerm("the"), new SimpleStringPhraseTerm("quick"),
+                new SimpleStringPhraseTerm("brown"), new SimpleStringPhraseTerm("fox"));
+        spanPhrase = Arrays.<PhraseTerm> asList(new SimpleStringPhraseTerm("united"), new PrefixPhraseTerm("sta"),
+                new WildcardPhraseTerm("o?"), new FuzzyPhraseTerm("amerika", Float.NEGATIVE_INFINITY));
+    }
+
+    /**
+     * A term that analyzes to a single token.
+     */
+    @Benchmark
+    public Query term() {
+        return builder.termQuery("foxes");
+    }
+
+    /**
+     * A term that analyzes to many tokens and so becomes a phrase.
+     */
+    @Benchmark
+    public Query multiTokenTerm() {
+        return builder.termQuery("highest-grossing-films");
+    }
+
+    @Benchmark
+    public Query phrase() {
+        return builder.phraseQuery(phrase, 0, true);
+    }
+
+    @Benchmark
+    public Query sloppyPhrase() {
+        return builder.phraseQuery(phrase, 2, true);
+    }
+
+    /**
+     * A phrase mixing plain, prefix, wildcard, and fuzzy terms that becomes a
+     * span query.
+     */
+    @Benchmark
+    public Query spanPhrase() {
+        return builder.phraseQuery(spanPhrase, 0, true);
+    }
+}
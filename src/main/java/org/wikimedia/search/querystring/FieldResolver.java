@@ -17,6 +17,13 @@ public interface FieldResolver {
 
     Analyzer defaultPreciseSearchAnalyzer();
 
+    /**
+     * Returns the shortest and longest edge ngram that a field's index
+     * analyzer makes or null if the field isn't mapped or doesn't make edge
+     * ngrams. The longest is 0 if there isn't a limit.
+     */
+    Tuple<Integer, Integer> edgeNGramSizes(String field);
+
     /**
      * Resolver that never looks for the field, just returns some predefined
      * analyzers.
@@ -44,5 +51,10 @@ public interface FieldResolver {
         public Analyzer defaultPreciseSearchAnalyzer() {
             return preciseAnalyzer;
         }
+
+        @Override
+        public Tuple<Integer, Integer> edgeNGramSizes(String field) {
+            return null;
+        }
     }
 }
@@ -16,6 +16,9 @@ import org.elasticsearch.common.collect.Tuple;
 import org.wikimedia.search.querystring.query.FieldDefinition;
 import org.wikimedia.search.querystring.query.FieldReference;
 import org.wikimedia.search.querystring.query.FieldUsage;
+import org.wikimedia.search.querystring.query.ParseEvents;
+import org.wikimedia.search.querystring.query.ParseEvents.Event;
+import org.wikimedia.search.querystring.query.ParseEvents.Kind;
 
 /**
  * Helps QueryParserHelper resolve fields. Note that this class is quite mutable
@@ -41,11 +44,19 @@ public class FieldsHelper {
     private final Set<String> blacklist = new HashSet<>();
     private final FieldResolver resolver;
     private Set<String> whitelist = new HashSet<>();
+    private ParseEvents events = ParseEvents.NOOP;
 
     public FieldsHelper(FieldResolver resolver) {
         this.resolver = resolver;
     }
 
+    /**
+     * Where to send an event around each resolve.
+     */
+    public void setEvents(ParseEvents events) {
+        this.events = events;
+    }
+
     /**
      * Defines a field for later use.
      */
@@ -100,8 +111,10 @@ public class FieldsHelper {
      * before the whitelist.
      */
     public List<FieldUsage> resolve(FieldReference reference, UnauthorizedAction unauthorized) {
+        Event event = events.begin(Kind.RESOLVE);
         List<FieldUsage> results = new ArrayList<>();
         resolve(reference, unauthorized, results);
+        event.end(null, results.size());
         return results;
     }
 
@@ -109,10 +122,12 @@ public class FieldsHelper {
      * Just a list form of the resolve method.
      */
     public List<FieldUsage> resolve(Iterable<FieldReference> references, UnauthorizedAction unauthorized) {
+        Event event = events.begin(Kind.RESOLVE);
         List<FieldUsage> results = new ArrayList<>();
         for (FieldReference reference : references) {
             resolve(reference, unauthorized, results);
         }
+        event.end(null, results.size());
         return results;
     }
 
@@ -174,6 +189,8 @@ public class FieldsHelper {
             Tuple<String, Analyzer> precise;
             Tuple<String, Analyzer> reversePrecise;
             Tuple<String, Analyzer> prefixPrecise;
+            int prefixPreciseMinGram = 0;
+            int prefixPreciseMaxGram = 0;
             Tuple<String, Analyzer> ngram;
             int ngramGramSize;
 
@@ -212,13 +229,24 @@ public class FieldsHelper {
                  */
                 reversePrecise = resolve(definition.getReversePrecise(), null, null);
                 prefixPrecise = resolve(definition.getPrefixPrecise(), null, null);
+                prefixPreciseMinGram = definition.getPrefixPreciseMinGram();
+                prefixPreciseMaxGram = definition.getPrefixPreciseMaxGram();
                 ngram = resolve(definition.getNgramField(), null, null);
                 ngramGramSize = definition.getNgramFieldGramSize();
             }
+            if (prefixPrecise.v1() != null && prefixPreciseMinGram == 0 && prefixPreciseMaxGram == 0) {
+                // Nothing declared so ask the analyzer
+                Tuple<Integer, Integer> sizes = resolver.edgeNGramSizes(prefixPrecise.v1());
+                if (sizes != null) {
+                    prefixPreciseMinGram = sizes.v1();
+                    prefixPreciseMaxGram = sizes.v2();
+                }
+            }
             canonical = new FieldUsage(standard.v1(), standard.v2(),
                     precise.v1(), precise.v2(),
                     reversePrecise.v1(), reversePrecise.v2(),
                     prefixPrecise.v1(), prefixPrecise.v2(),
+                    prefixPreciseMinGram, prefixPreciseMaxGram,
                     ngram.v1(), ngramGramSize,
                     1);
             resolvedFields.put(field, canonical);
@@ -230,6 +258,7 @@ public class FieldsHelper {
                 canonical.getPrecise(), canonical.getPreciseSearchAnalyzer(),
                 canonical.getReversePrecise(), canonical.getReversePreciseSearchAnalyzer(),
                 canonical.getPrefixPrecise(), canonical.getPrefixPreciseSearchAnalyzer(),
+                canonical.getPrefixPreciseMinGram(), canonical.getPrefixPreciseMaxGram(),
                 canonical.getNgramField(), canonical.getNgramFieldGramSize(),
                 canonical.getBoost() * boost);
     }
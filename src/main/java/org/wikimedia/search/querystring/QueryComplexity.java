@@ -0,0 +1,82 @@
+package org.wikimedia.search.querystring;
+
+/**
+ * How expensive a query string looks before any of it is built. Measured on
+ * the parse tree so it is cheap enough to compute for every query.
+ */
+public class QueryComplexity {
+    /**
+     * Score added for each level of parentheses.
+     */
+    public static final int DEPTH_WEIGHT = 5;
+    /**
+     * Score added for each field a fuzzy, prefix, wildcard, or regex clause
+     * searches.
+     */
+    public static final int MULTI_TERM_WEIGHT = 10;
+
+    private int clauses;
+    private int maxDepth;
+    private int multiTermFieldClauses;
+    private int phraseCost;
+
+    /**
+     * Number of leaf clauses.
+     */
+    public int getClauses() {
+        return clauses;
+    }
+
+    /**
+     * Deepest nesting of parentheses.
+     */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Sum of the number of fields each fuzzy, prefix, wildcard, and regex
+     * clause searches, including those inside phrases.
+     */
+    public int getMultiTermFieldClauses() {
+        return multiTermFieldClauses;
+    }
+
+    /**
+     * Sum of each phrase's length times one more than its slop.
+     */
+    public int getPhraseCost() {
+        return phraseCost;
+    }
+
+    /**
+     * The single number compared against limits.
+     */
+    public int score() {
+        long score = clauses + (long) maxDepth * DEPTH_WEIGHT + (long) multiTermFieldClauses * MULTI_TERM_WEIGHT + phraseCost;
+        return (int) Math.min(score, Integer.MAX_VALUE);
+    }
+
+    void clause() {
+        clauses++;
+    }
+
+    void depth(int depth) {
+        maxDepth = Math.max(maxDepth, depth);
+    }
+
+    void multiTerm(int fields) {
+        multiTermFieldClauses += fields;
+    }
+
+    void phrase(int terms, int slop) {
+        // Huge slops would overflow
+        phraseCost = (int) Math.min(phraseCost + terms * (slop + 1L), Integer.MAX_VALUE);
+    }
+
+    @Override
+    public String toString() {
+        return "score=" + score() + " clauses=" + clauses + " max_depth=" + maxDepth + " multi_term_field_clauses="
+                + multiTermFieldClauses + " phrase_cost=" + phraseCost;
+    }
+}
@@ -1,8 +1,10 @@
 package org.wikimedia.search.querystring;
 
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 import org.antlr.v4.runtime.ANTLRInputStream;
 import org.antlr.v4.runtime.BaseErrorListener;
@@ -30,6 +32,7 @@ import org.wikimedia.search.querystring.QueryParser.JustFieldsContext;
 import org.wikimedia.search.querystring.QueryParser.MustContext;
 import org.wikimedia.search.querystring.QueryParser.MustNotContext;
 import org.wikimedia.search.querystring.QueryParser.OrContext;
+import org.wikimedia.search.querystring.QueryParser.ParenContext;
 import org.wikimedia.search.querystring.QueryParser.PhraseContext;
 import org.wikimedia.search.querystring.QueryParser.PhraseTermContext;
 import org.wikimedia.search.querystring.QueryParser.PrefixContext;
@@ -38,9 +41,16 @@ import org.wikimedia.search.querystring.QueryParser.QueryContext;
 import org.wikimedia.search.querystring.QueryParser.RegexContext;
 import org.wikimedia.search.querystring.QueryParser.UnmarkedContext;
 import org.wikimedia.search.querystring.QueryParser.WildcardContext;
+import org.wikimedia.search.querystring.query.AppliedRewrites;
 import org.wikimedia.search.querystring.query.DefaultingQueryBuilder;
+import org.wikimedia.search.querystring.query.Fallbacks;
 import org.wikimedia.search.querystring.query.FieldReference;
 import org.wikimedia.search.querystring.query.FieldUsage;
+import org.wikimedia.search.querystring.query.ParseEvents;
+import org.wikimedia.search.querystring.query.ParseEvents.Event;
+import org.wikimedia.search.querystring.query.ParseEvents.Kind;
+import org.wikimedia.search.querystring.query.ParseProfile;
+import org.wikimedia.search.querystring.query.ParseProfile.Phase;
 import org.wikimedia.search.querystring.query.PhraseTerm;
 import org.wikimedia.search.querystring.query.phraseterm.FuzzyPhraseTerm;
 import org.wikimedia.search.querystring.query.phraseterm.PrefixPhraseTerm;
@@ -62,6 +72,18 @@ public class QueryParserHelper {
     private final DefaultingQueryBuilder rootBuilder;
     private final boolean defaultIsAnd;
     private final boolean emptyIsMatchAll;
+    private ComplexityCheck complexityCheck;
+    private int defaultFieldCount;
+    private QueryComplexity complexity;
+    private Fallbacks fallbacks = new Fallbacks();
+    private ParseProfile profile;
+    private AppliedRewrites rewrites;
+    private ParseEvents events = ParseEvents.NOOP;
+    /**
+     * Fields each fielded clause in the query being parsed resolved to so
+     * measuring complexity and building resolve them only once.
+     */
+    private final Map<FieldsContext, List<FieldUsage>> resolvedFields = new IdentityHashMap<>();
 
     public QueryParserHelper(FieldsHelper fieldsHelper, DefaultingQueryBuilder rootBuilder, boolean defaultIsAnd, boolean emptyIsMatchAll) {
         this.fieldsHelper = fieldsHelper;
@@ -70,8 +92,73 @@ public class QueryParserHelper {
         this.emptyIsMatchAll = emptyIsMatchAll;
     }
 
+    /**
+     * Measure each query's complexity and pass it to check before building
+     * any of it.
+     *
+     * @param defaultFieldCount number of fields searched when the query
+     *            doesn't name any
+     */
+    public void setComplexityCheck(ComplexityCheck check, int defaultFieldCount) {
+        this.complexityCheck = check;
+        this.defaultFieldCount = defaultFieldCount;
+    }
+
+    /**
+     * Complexity of the last query parsed or null if it wasn't measured.
+     */
+    public QueryComplexity getComplexity() {
+        return complexity;
+    }
+
+    /**
+     * Where to count clauses that fell back to something simpler than what
+     * the user asked for.
+     */
+    public void setFallbacks(Fallbacks fallbacks) {
+        this.fallbacks = fallbacks;
+    }
+
+    /**
+     * Charge the time spent lexing, parsing, and building the query to the
+     * profile. Null turns profiling off.
+     */
+    public void setProfile(ParseProfile profile) {
+        this.profile = profile;
+    }
+
+    /**
+     * Record clauses that fell back to term queries here. Null turns
+     * recording off.
+     */
+    public void setRewrites(AppliedRewrites rewrites) {
+        this.rewrites = rewrites;
+    }
+
+    /**
+     * Where to send an event around parsing and building each query.
+     */
+    public void setEvents(ParseEvents events) {
+        this.events = events;
+    }
+
     public Query parse(String str) {
+        Event event = events.begin(Kind.PARSE);
+        Query query = buildQuery(str);
+        event.end(query, defaultFieldCount);
+        return query;
+    }
+
+    private Query buildQuery(String str) {
+        if (profile != null) {
+            profile.enter(Phase.LEX);
+        }
         QueryParser parser = buildParser(str);
+        if (profile != null) {
+            // The parser normally lexes as it goes so lex everything up front
+            ((BufferedTokenStream) parser.getTokenStream()).fill();
+            profile.enter(Phase.PARSE);
+        }
         ErrorListener errorListener = new ErrorListener();
         parser.addErrorListener(errorListener);
         QueryContext query = parser.query();
@@ -79,19 +166,31 @@ public class QueryParserHelper {
         if (log.isTraceEnabled()) {
             log.trace("Parse tree: {}", query.toStringTree(parser));
         }
-        BooleanClause c = new Visitor().visit(query);
-        if (c == null || c.getQuery() == null) {
-            // We've just parsed an empty query
-            return emptyIsMatchAll ? rootBuilder.matchAll() : rootBuilder.matchNone();
-        }
-        if (c.getOccur() == Occur.MUST_NOT) {
-            // If we get a negated clause we should faithfully search for not
-            // that.
-            BooleanQuery bq = new BooleanQuery();
-            bq.add(c);
-            return bq;
+        try {
+            if (complexityCheck != null) {
+                complexity = new QueryComplexity();
+                new ComplexityVisitor(complexity).visit(query);
+                complexityCheck.check(complexity);
+            }
+            if (profile != null) {
+                profile.enter(Phase.BUILD);
+            }
+            BooleanClause c = new Visitor().visit(query);
+            if (c == null || c.getQuery() == null) {
+                // We've just parsed an empty query
+                return emptyIsMatchAll ? rootBuilder.matchAll() : rootBuilder.matchNone();
+            }
+            if (c.getOccur() == Occur.MUST_NOT) {
+                // If we get a negated clause we should faithfully search for not
+                // that.
+                BooleanQuery bq = new BooleanQuery();
+                bq.add(c);
+                return bq;
+            }
+            return c.getQuery();
+        } finally {
+            resolvedFields.clear();
         }
-        return c.getQuery();
     }
 
     private static QueryParser buildParser(String toParse) {
@@ -133,15 +232,38 @@ public class QueryParserHelper {
                 return visit(ctx.getChild(0));
             }
             BooleanQuery bq = new BooleanQuery();
-            Occur defaultOccur;
-            if (defaultIsAnd) {
-                defaultOccur = Occur.MUST;
-            } else {
+            if (!defaultIsAnd) {
                 bq.setMinimumNumberShouldMatch(1);
-                defaultOccur = Occur.SHOULD;
+                for (OrContext or : ors) {
+                    add(bq, visit(or), Occur.SHOULD);
+                }
+                return wrap(bq);
             }
+            List<BooleanClause> clauses = new ArrayList<>(ors.size());
             for (OrContext or : ors) {
-                add(bq, visit(or), defaultOccur);
+                clauses.add(visit(or));
+            }
+            /*
+             * Terms that are too common to be worth requiring only get to help
+             * with scoring - but only if there is something else required that
+             * drives the matching. Otherwise we'd match everything.
+             */
+            boolean[] common = new boolean[clauses.size()];
+            boolean anyRequired = false;
+            for (int i = 0; i < common.length; i++) {
+                BooleanClause clause = clauses.get(i);
+                if (clause.getQuery() == null) {
+                    continue;
+                }
+                if (clause.getOccur() == null) {
+                    common[i] = builder.isCommon(clause.getQuery());
+                    anyRequired |= !common[i];
+                } else {
+                    anyRequired |= clause.getOccur() == Occur.MUST;
+                }
+            }
+            for (int i = 0; i < common.length; i++) {
+                add(bq, clauses.get(i), anyRequired && common[i] ? Occur.SHOULD : Occur.MUST);
             }
             return wrap(bq);
         }
@@ -189,7 +311,7 @@ public class QueryParserHelper {
             if (fieldCtx == null) {
                 return visit(ctx.boosted());
             }
-            List<FieldUsage> fields = fieldsHelper.resolve(fieldsFromContext(fieldCtx), UnauthorizedAction.REMOVE);
+            List<FieldUsage> fields = resolve(fieldCtx);
             if (fields.isEmpty()) {
                 /*
                  * The user specified some field that can't be searched. That is
@@ -198,6 +320,10 @@ public class QueryParserHelper {
                  * though we might decide later some different handling makes
                  * sense.
                  */
+                fallbacks.unauthorizedField();
+                if (rewrites != null) {
+                    rewrites.record(AppliedRewrites.Type.FALLBACK_TO_TERM, fieldCtx.getText(), "none of the fields can be searched");
+                }
                 return wrap(builder.termQuery(ctx.getText()));
             }
             DefaultingQueryBuilder lastBuilder = builder;
@@ -294,6 +420,110 @@ public class QueryParserHelper {
         }
     }
 
+    /**
+     * Resolve the fields a fielded clause searches, reusing the result if the
+     * clause has already been resolved.
+     */
+    private List<FieldUsage> resolve(FieldsContext fieldCtx) {
+        List<FieldUsage> fields = resolvedFields.get(fieldCtx);
+        if (fields == null) {
+            fields = fieldsHelper.resolve(fieldsFromContext(fieldCtx), UnauthorizedAction.REMOVE);
+            resolvedFields.put(fieldCtx, fields);
+        }
+        return fields;
+    }
+
+    /**
+     * Measures the complexity of the parse tree without building anything.
+     */
+    private class ComplexityVisitor extends QueryParserBaseVisitor<Void> {
+        private final QueryComplexity complexity;
+        private int fieldCount = defaultFieldCount;
+        private int depth = 0;
+
+        public ComplexityVisitor(QueryComplexity complexity) {
+            this.complexity = complexity;
+        }
+
+        @Override
+        public Void visitParen(ParenContext ctx) {
+            depth++;
+            complexity.depth(depth);
+            try {
+                return visitChildren(ctx);
+            } finally {
+                depth--;
+            }
+        }
+
+        @Override
+        public Void visitFielded(FieldedContext ctx) {
+            FieldsContext fieldCtx = ctx.fields();
+            if (fieldCtx == null) {
+                return visit(ctx.boosted());
+            }
+            int lastFieldCount = fieldCount;
+            fieldCount = Math.max(1, resolve(fieldCtx).size());
+            try {
+                return visit(ctx.boosted());
+            } finally {
+                fieldCount = lastFieldCount;
+            }
+        }
+
+        @Override
+        public Void visitPhrase(PhraseContext ctx) {
+            complexity.clause();
+            List<PhraseTermContext> terms = ctx.phraseTerm();
+            for (PhraseTermContext term : terms) {
+                if (term.fuzzy() != null || term.prefix() != null || term.wildcard() != null) {
+                    complexity.multiTerm(fieldCount);
+                }
+            }
+            int slop = ctx.slop == null ? 0 : Integer.parseInt(ctx.slop.getText(), 10);
+            complexity.phrase(terms.size(), slop);
+            return null;
+        }
+
+        @Override
+        public Void visitBasicTerm(BasicTermContext ctx) {
+            complexity.clause();
+            return null;
+        }
+
+        @Override
+        public Void visitFieldExists(FieldExistsContext ctx) {
+            complexity.clause();
+            return null;
+        }
+
+        @Override
+        public Void visitFuzzy(FuzzyContext ctx) {
+            return multiTerm();
+        }
+
+        @Override
+        public Void visitPrefix(PrefixContext ctx) {
+            return multiTerm();
+        }
+
+        @Override
+        public Void visitWildcard(WildcardContext ctx) {
+            return multiTerm();
+        }
+
+        @Override
+        public Void visitRegex(RegexContext ctx) {
+            return multiTerm();
+        }
+
+        private Void multiTerm() {
+            complexity.clause();
+            complexity.multiTerm(fieldCount);
+            return null;
+        }
+    }
+
     private static class PhraseTermVisitor extends PickLastAggregatingVisitor<PhraseTerm> {
         @Override
         public PhraseTerm visitBasicTerm(BasicTermContext ctx) {
@@ -349,6 +579,16 @@ public class QueryParserHelper {
         return fields;
     }
 
+    /**
+     * Looks at each query's complexity before it is built.
+     */
+    public interface ComplexityCheck {
+        /**
+         * Called with the complexity of the query. Throw to reject the query.
+         */
+        void check(QueryComplexity complexity);
+    }
+
     private static class ErrorListener extends BaseErrorListener {
         private ParseErrorException firstException;
 
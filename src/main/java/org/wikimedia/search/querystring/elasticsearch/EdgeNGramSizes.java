@@ -0,0 +1,89 @@
+package org.wikimedia.search.querystring.elasticsearch;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.elasticsearch.common.base.Optional;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.collect.Tuple;
+
+/**
+ * Finds the edge ngram sizes an index analyzer makes by analyzing a long word
+ * and looking at the tokens. That works no matter how the analyzer is built.
+ * Results are cached on the node by analyzer so each analyzer is only probed
+ * once. Analyzers are compared by identity and weakly held so a mapping that
+ * changes a field's analyzer is probed again and analyzers of closed indexes
+ * fall out of the cache.
+ */
+public class EdgeNGramSizes {
+    /**
+     * Length of the word analyzed to find edge ngram sizes. Fields with edge
+     * ngrams this long are treated as not having a limit.
+     */
+    private static final int PROBE_LENGTH = 100;
+    /**
+     * The word analyzed to find edge ngram sizes. It doesn't repeat for long
+     * so ngrams from the middle of it aren't prefixes of it.
+     */
+    private static final String PROBE;
+    static {
+        StringBuilder probe = new StringBuilder(PROBE_LENGTH);
+        for (int i = 0; i < PROBE_LENGTH; i++) {
+            probe.append((char) ('a' + i % 26));
+        }
+        PROBE = probe.toString();
+    }
+
+    private final Cache<Analyzer, Optional<Tuple<Integer, Integer>>> cache = CacheBuilder.newBuilder().weakKeys().build();
+
+    /**
+     * The shortest and longest edge ngram that an index analyzer makes or
+     * null if it doesn't make edge ngrams. The longest is 0 if there isn't a
+     * limit.
+     */
+    public Tuple<Integer, Integer> sizes(final String field, final Analyzer indexAnalyzer) {
+        try {
+            return cache.get(indexAnalyzer, new Callable<Optional<Tuple<Integer, Integer>>>() {
+                @Override
+                public Optional<Tuple<Integer, Integer>> call() {
+                    return Optional.fromNullable(probe(field, indexAnalyzer));
+                }
+            }).orNull();
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Unexpected exception finding edge ngram sizes", e.getCause());
+        }
+    }
+
+    /**
+     * Analyze the probe and work out the edge ngram sizes from the tokens.
+     */
+    static Tuple<Integer, Integer> probe(String field, Analyzer indexAnalyzer) {
+        int min = Integer.MAX_VALUE;
+        int max = 0;
+        try (TokenStream ts = indexAnalyzer.tokenStream(field, PROBE)) {
+            CharTermAttribute term = ts.addAttribute(CharTermAttribute.class);
+            ts.reset();
+            while (ts.incrementToken()) {
+                if (!PROBE.startsWith(term.toString())) {
+                    // Not making edge ngrams - probably infix ngrams
+                    return null;
+                }
+                min = Math.min(min, term.length());
+                max = Math.max(max, term.length());
+            }
+            ts.end();
+        } catch (IOException e) {
+            throw new RuntimeException("Unexpected IOException from Lucene when they shouldn't be possible.", e);
+        }
+        if (min >= PROBE_LENGTH) {
+            // No tokens or just the whole word so not making edge ngrams
+            return null;
+        }
+        return new Tuple<>(min, max >= PROBE_LENGTH ? 0 : max);
+    }
+}
@@ -8,9 +8,15 @@ import org.wikimedia.search.querystring.FieldResolver;
 
 public class ElasticsearchFieldResolver implements FieldResolver {
     private final QueryParseContext context;
+    private final EdgeNGramSizes edgeNGramSizes;
 
-    public ElasticsearchFieldResolver(QueryParseContext context) {
+    /**
+     * @param edgeNGramSizes node level cache of the edge ngram sizes of
+     *            index analyzers
+     */
+    public ElasticsearchFieldResolver(QueryParseContext context, EdgeNGramSizes edgeNGramSizes) {
         this.context = context;
+        this.edgeNGramSizes = edgeNGramSizes;
     }
 
     @Override
@@ -41,4 +47,13 @@ public class ElasticsearchFieldResolver implements FieldResolver {
     public Analyzer defaultPreciseSearchAnalyzer() {
         return context.mapperService().searchQuoteAnalyzer();
     }
+
+    @Override
+    public Tuple<Integer, Integer> edgeNGramSizes(String field) {
+        MapperService.SmartNameFieldMappers smart = context.smartFieldMappers(field);
+        if (smart == null || !smart.hasMapper() || smart.mapper().indexAnalyzer() == null) {
+            return null;
+        }
+        return edgeNGramSizes.sizes(field, smart.mapper().indexAnalyzer());
+    }
 }
@@ -0,0 +1,28 @@
+package org.wikimedia.search.querystring.elasticsearch;
+
+import org.elasticsearch.index.mapper.FieldMapper;
+import org.elasticsearch.index.query.QueryParseContext;
+import org.wikimedia.search.querystring.query.FieldStorage;
+
+/**
+ * Looks up how fields are stored in Elasticsearch's mapping.
+ */
+public class ElasticsearchFieldStorage implements FieldStorage {
+    private final QueryParseContext context;
+
+    public ElasticsearchFieldStorage(QueryParseContext context) {
+        this.context = context;
+    }
+
+    @Override
+    public boolean hasDocValues(String field) {
+        FieldMapper<?> mapper = context.fieldMapper(field);
+        return mapper != null && mapper.hasDocValues();
+    }
+
+    @Override
+    public boolean isStored(String field) {
+        FieldMapper<?> mapper = context.fieldMapper(field);
+        return mapper != null && mapper.fieldType().stored();
+    }
+}
@@ -0,0 +1,21 @@
+package org.wikimedia.search.querystring.elasticsearch;
+
+import org.apache.lucene.search.Filter;
+import org.elasticsearch.index.query.QueryParseContext;
+import org.wikimedia.search.querystring.query.FilterCache;
+
+/**
+ * Caches filters in Elasticsearch's filter cache.
+ */
+public class ElasticsearchFilterCache implements FilterCache {
+    private final QueryParseContext context;
+
+    public ElasticsearchFilterCache(QueryParseContext context) {
+        this.context = context;
+    }
+
+    @Override
+    public Filter cache(Filter filter) {
+        return context.cacheFilter(filter, null);
+    }
+}
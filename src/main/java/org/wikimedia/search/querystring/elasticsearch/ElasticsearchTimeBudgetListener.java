@@ -0,0 +1,21 @@
+package org.wikimedia.search.querystring.elasticsearch;
+
+import org.elasticsearch.search.internal.SearchContext;
+import org.wikimedia.search.querystring.query.TimeBudget;
+
+/**
+ * Marks the search as timed out when the budget is spent so the response
+ * tells the user the results are partial.
+ */
+public class ElasticsearchTimeBudgetListener implements TimeBudget.Listener {
+    private final SearchContext context;
+
+    public ElasticsearchTimeBudgetListener(SearchContext context) {
+        this.context = context;
+    }
+
+    @Override
+    public void exhausted() {
+        context.queryResult().searchTimedOut(true);
+    }
+}
@@ -0,0 +1,205 @@
+package org.wikimedia.search.querystring.elasticsearch;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.lucene.search.Query;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.wikimedia.search.querystring.query.ParseEvents;
+
+/**
+ * Sends parse events to Java Flight Recorder so they show up in recordings
+ * next to GC and thread pool activity. Each kind of event is its own event
+ * type named like org.wikimedia.search.querystring.Parse with queryType and
+ * fieldCount fields so they can be enabled and thresholded separately.
+ * <p>
+ * Flight Recorder's API is only on JVMs that have jdk.jfr (11+ and late 8
+ * updates) and we compile for 7 so everything is looked up reflectively.
+ * Nothing is created unless the event type is enabled in a running recording.
+ * Whether each event type is enabled is only checked when a recording changes
+ * state so sending events while nothing is recording is just reading a flag.
+ */
+public class FlightRecorderParseEvents implements ParseEvents {
+    private static final ESLogger log = ESLoggerFactory.getLogger(FlightRecorderParseEvents.class.getPackage().getName());
+    private static final String EVENT_PREFIX = "org.wikimedia.search.querystring.";
+
+    /**
+     * Events sent to Flight Recorder if the JVM has it, otherwise events that
+     * go nowhere.
+     */
+    public static ParseEvents create() {
+        try {
+            return new FlightRecorderParseEvents();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            log.debug("Flight Recorder isn't available so not sending parse events to it: {}", e.toString());
+            return NOOP;
+        }
+    }
+
+    private final Map<Kind, EventFactory> factories = new EnumMap<>(Kind.class);
+
+    private FlightRecorderParseEvents() throws ReflectiveOperationException {
+        Reflection jfr = new Reflection();
+        for (Kind kind : Kind.values()) {
+            factories.put(kind, new EventFactory(jfr, kind));
+        }
+        refreshEnabled();
+        Object listener = Proxy.newProxyInstance(jfr.listener.getClassLoader(), new Class<?>[] { jfr.listener },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        switch (method.getName()) {
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "toString":
+                            return "qsppp parse events listener";
+                        default:
+                            // Recordings starting and stopping change which events are enabled
+                            refreshEnabled();
+                            return null;
+                        }
+                    }
+                });
+        jfr.addListener.invoke(null, listener);
+    }
+
+    private void refreshEnabled() {
+        for (EventFactory factory : factories.values()) {
+            factory.refreshEnabled();
+        }
+    }
+
+    @Override
+    public Event begin(Kind kind) {
+        return factories.get(kind).begin();
+    }
+
+    /**
+     * The reflective handles into jdk.jfr.
+     */
+    private static class Reflection {
+        private final Class<? extends Annotation> name;
+        private final Class<? extends Annotation> label;
+        private final Class<? extends Annotation> category;
+        private final Constructor<?> annotationElement;
+        private final Constructor<?> valueDescriptor;
+        private final Method createFactory;
+        private final Method newEvent;
+        private final Method getEventType;
+        private final Method isEnabled;
+        private final Class<?> listener;
+        private final Method addListener;
+        private final Method begin;
+        private final Method set;
+        private final Method commit;
+
+        Reflection() throws ReflectiveOperationException {
+            name = annotation("jdk.jfr.Name");
+            label = annotation("jdk.jfr.Label");
+            category = annotation("jdk.jfr.Category");
+            annotationElement = Class.forName("jdk.jfr.AnnotationElement").getConstructor(Class.class, Object.class);
+            valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor").getConstructor(Class.class, String.class);
+            Class<?> factory = Class.forName("jdk.jfr.EventFactory");
+            createFactory = factory.getMethod("create", List.class, List.class);
+            newEvent = factory.getMethod("newEvent");
+            getEventType = factory.getMethod("getEventType");
+            isEnabled = Class.forName("jdk.jfr.EventType").getMethod("isEnabled");
+            listener = Class.forName("jdk.jfr.FlightRecorderListener");
+            addListener = Class.forName("jdk.jfr.FlightRecorder").getMethod("addListener", listener);
+            Class<?> event = Class.forName("jdk.jfr.Event");
+            begin = event.getMethod("begin");
+            set = event.getMethod("set", int.class, Object.class);
+            commit = event.getMethod("commit");
+        }
+
+        @SuppressWarnings("unchecked")
+        private static Class<? extends Annotation> annotation(String className) throws ClassNotFoundException {
+            return (Class<? extends Annotation>) Class.forName(className);
+        }
+    }
+
+    /**
+     * Builds and sends events of one kind.
+     */
+    private static class EventFactory {
+        private final Reflection jfr;
+        private final Object eventType;
+        private final Object factory;
+        private volatile boolean enabled;
+
+        EventFactory(Reflection jfr, Kind kind) throws ReflectiveOperationException {
+            this.jfr = jfr;
+            String kindName = kind.name().charAt(0) + kind.name().substring(1).toLowerCase(Locale.ROOT);
+            List<Object> annotations = new ArrayList<>();
+            annotations.add(jfr.annotationElement.newInstance(jfr.name, EVENT_PREFIX + kindName));
+            annotations.add(jfr.annotationElement.newInstance(jfr.label, "qsppp " + kindName));
+            annotations.add(jfr.annotationElement.newInstance(jfr.category, new String[] { "Elasticsearch", "qsppp" }));
+            // Order matters - Event#set refers to fields by index
+            List<Object> fields = Arrays.asList(jfr.valueDescriptor.newInstance(String.class, "queryType"),
+                    jfr.valueDescriptor.newInstance(int.class, "fieldCount"));
+            factory = jfr.createFactory.invoke(null, annotations, fields);
+            eventType = jfr.getEventType.invoke(factory);
+        }
+
+        /**
+         * Check if a recording has this event type enabled.
+         */
+        void refreshEnabled() {
+            try {
+                enabled = (Boolean) jfr.isEnabled.invoke(eventType);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                log.debug("Failed to check if Flight Recorder event is enabled", e);
+                enabled = false;
+            }
+        }
+
+        Event begin() {
+            if (!enabled) {
+                return Event.NOOP;
+            }
+            try {
+                Object event = jfr.newEvent.invoke(factory);
+                jfr.begin.invoke(event);
+                return new FlightRecorderEvent(jfr, event);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                log.debug("Failed to begin Flight Recorder event", e);
+                return Event.NOOP;
+            }
+        }
+    }
+
+    private static class FlightRecorderEvent implements Event {
+        private final Reflection jfr;
+        private final Object event;
+
+        FlightRecorderEvent(Reflection jfr, Object event) {
+            this.jfr = jfr;
+            this.event = event;
+        }
+
+        @Override
+        public void end(Query query, int fieldCount) {
+            try {
+                jfr.set.invoke(event, 0, query == null ? null : query.getClass().getSimpleName());
+                jfr.set.invoke(event, 1, fieldCount);
+                // Commit ends the event if it hasn't been ended
+                jfr.commit.invoke(event);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                log.debug("Failed to commit Flight Recorder event", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package org.wikimedia.search.querystring.elasticsearch;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.lucene.search.Query;
+import org.wikimedia.search.querystring.QueryComplexity;
+import org.wikimedia.search.querystring.query.AppliedRewrites;
+import org.wikimedia.search.querystring.query.AppliedRewrites.Rewrite;
+import org.wikimedia.search.querystring.query.ParseProfile;
+import org.wikimedia.search.querystring.query.ParseProfile.Phase;
+import org.wikimedia.search.querystring.query.RegexStats;
+
+/**
+ * Everything the parser can say about how it built a single query: the
+ * Lucene query, the rewrites it applied along the way, how complex it
+ * measured the query to be, the work done compiling its regexes, and where
+ * the time went. Filled in by
+ * QueryStringPlusPlusPlusParser#parse(QueryParseContext, ParseExplanation).
+ */
+public class ParseExplanation {
+    private final AppliedRewrites rewrites = new AppliedRewrites();
+    private String query;
+    private Query parsed;
+    private QueryComplexity complexity;
+    private ParseProfile profile;
+    private RegexStats regexStats;
+
+    /**
+     * Where the parser records the rewrites it applies.
+     */
+    public AppliedRewrites getRewrites() {
+        return rewrites;
+    }
+
+    /**
+     * The query string as sent by the user.
+     */
+    public String getQuery() {
+        return query;
+    }
+
+    /**
+     * The Lucene query that was built.
+     */
+    public Query getParsed() {
+        return parsed;
+    }
+
+    /**
+     * Complexity of the query or null if it wasn't measured.
+     */
+    public QueryComplexity getComplexity() {
+        return complexity;
+    }
+
+    /**
+     * Time and allocation spent in each phase of building the query.
+     */
+    public ParseProfile getProfile() {
+        return profile;
+    }
+
+    /**
+     * Work done compiling the query's regexes.
+     */
+    public RegexStats getRegexStats() {
+        return regexStats;
+    }
+
+    void parsed(String query, Query parsed, QueryComplexity complexity, ParseProfile profile, RegexStats regexStats) {
+        this.query = query;
+        this.parsed = parsed;
+        this.complexity = complexity;
+        this.profile = profile;
+        this.regexStats = regexStats;
+    }
+
+    /**
+     * The explanation in a shape that can be sent over the wire and rendered
+     * as xcontent.
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("query", query);
+        map.put("lucene", parsed.toString());
+        List<Object> rewriteList = new ArrayList<>();
+        for (Rewrite rewrite : rewrites.getRewrites()) {
+            Map<String, Object> rewriteMap = new LinkedHashMap<>();
+            rewriteMap.put("type", rewrite.getType().getName());
+            rewriteMap.put("field", rewrite.getField());
+            rewriteMap.put("detail", rewrite.getDetail());
+            rewriteList.add(rewriteMap);
+        }
+        map.put("rewrites", rewriteList);
+        if (complexity != null) {
+            Map<String, Object> complexityMap = new LinkedHashMap<>();
+            complexityMap.put("score", complexity.score());
+            complexityMap.put("clauses", complexity.getClauses());
+            complexityMap.put("max_depth", complexity.getMaxDepth());
+            complexityMap.put("multi_term_field_clauses", complexity.getMultiTermFieldClauses());
+            complexityMap.put("phrase_cost", complexity.getPhraseCost());
+            map.put("complexity", complexityMap);
+        }
+        Map<String, Object> regexMap = new LinkedHashMap<>();
+        regexMap.put("cache_hits", regexStats.getCacheHits());
+        regexMap.put("cache_misses", regexStats.getCacheMisses());
+        regexMap.put("states_built", regexStats.getStatesBuilt());
+        map.put("regex", regexMap);
+        Map<String, Object> timings = new LinkedHashMap<>();
+        timings.put("took_nanos", profile.getTotalNanos());
+        Map<String, Object> phases = new LinkedHashMap<>();
+        for (Phase phase : Phase.values()) {
+            Map<String, Object> phaseMap = new LinkedHashMap<>();
+            phaseMap.put("took_nanos", profile.getNanos(phase));
+            phaseMap.put("allocated_bytes", profile.getAllocatedBytes(phase));
+            phases.put(phase.name().toLowerCase(Locale.ROOT), phaseMap);
+        }
+        timings.put("phases", phases);
+        map.put("timings", timings);
+        return map;
+    }
+}
@@ -0,0 +1,137 @@
+package org.wikimedia.search.querystring.elasticsearch;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.DisjunctionMaxQuery;
+import org.apache.lucene.search.Query;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+
+/**
+ * Logs queries that took a long time to build. Elasticsearch's search slow
+ * log only covers running the query but for qsppp building it includes
+ * parsing the query string and analyzing every term. Configured by the
+ * qsppp.slowlog.threshold.warn, info, and debug node settings which all
+ * default to -1, disabled.
+ */
+public class ParseSlowLog {
+    private static final ESLogger log = ESLoggerFactory.getLogger(ParseSlowLog.class.getPackage().getName() + ".slowlog");
+
+    private final long warnNanos;
+    private final long infoNanos;
+    private final long debugNanos;
+
+    public ParseSlowLog(Settings settings) {
+        warnNanos = threshold(settings, "warn");
+        infoNanos = threshold(settings, "info");
+        debugNanos = threshold(settings, "debug");
+    }
+
+    /**
+     * Log the query if it took longer than any of the thresholds.
+     *
+     * @param settingsNanos time spent reading the settings
+     * @param resolveNanos time spent resolving the default fields
+     * @param parseNanos time spent parsing the query string and building the
+     *            query
+     */
+    public void log(String query, SettingsFingerprint fingerprint, long settingsNanos, long resolveNanos, long parseNanos, Query parsed) {
+        String level = level(settingsNanos + resolveNanos + parseNanos);
+        if (level == null) {
+            return;
+        }
+        Entry entry = new Entry(query, fingerprint, settingsNanos, resolveNanos, parseNanos, parsed);
+        switch (level) {
+        case "warn":
+            log.warn("{}", entry);
+            break;
+        case "info":
+            log.info("{}", entry);
+            break;
+        default:
+            log.debug("{}", entry);
+        }
+    }
+
+    /**
+     * The level to log a query that took tookNanos to build at or null if it
+     * shouldn't be logged.
+     */
+    String level(long tookNanos) {
+        if (warnNanos >= 0 && tookNanos > warnNanos) {
+            return "warn";
+        }
+        if (infoNanos >= 0 && tookNanos > infoNanos) {
+            return "info";
+        }
+        if (debugNanos >= 0 && tookNanos > debugNanos) {
+            return "debug";
+        }
+        return null;
+    }
+
+    private static long threshold(Settings settings, String level) {
+        return settings.getAsTime("qsppp.slowlog.threshold." + level, TimeValue.timeValueNanos(-1)).nanos();
+    }
+
+    /**
+     * Number of leaf clauses in a built query.
+     */
+    static int clauses(Query query) {
+        if (query instanceof BooleanQuery) {
+            int clauses = 0;
+            for (BooleanClause clause : ((BooleanQuery) query).clauses()) {
+                clauses += clauses(clause.getQuery());
+            }
+            return clauses;
+        }
+        if (query instanceof DisjunctionMaxQuery) {
+            int clauses = 0;
+            for (Query disjunct : ((DisjunctionMaxQuery) query).getDisjuncts()) {
+                clauses += clauses(disjunct);
+            }
+            return clauses;
+        }
+        return 1;
+    }
+
+    /**
+     * Formats the log line only if it is actually logged.
+     */
+    private static class Entry {
+        private final String query;
+        private final SettingsFingerprint fingerprint;
+        private final long settingsNanos;
+        private final long resolveNanos;
+        private final long parseNanos;
+        private final Query parsed;
+
+        public Entry(String query, SettingsFingerprint fingerprint, long settingsNanos, long resolveNanos, long parseNanos, Query parsed) {
+            this.query = query;
+            this.fingerprint = fingerprint;
+            this.settingsNanos = settingsNanos;
+            this.resolveNanos = resolveNanos;
+            this.parseNanos = parseNanos;
+            this.parsed = parsed;
+        }
+
+        @Override
+        public String toString() {
+            long tookNanos = settingsNanos + resolveNanos + parseNanos;
+            StringBuilder b = new StringBuilder();
+            b.append("took[").append(TimeValue.timeValueNanos(tookNanos)).append("], ");
+            b.append("took_millis[").append(TimeUnit.NANOSECONDS.toMillis(tookNanos)).append("], ");
+            b.append("settings[").append(TimeValue.timeValueNanos(settingsNanos)).append("], ");
+            b.append("resolve[").append(TimeValue.timeValueNanos(resolveNanos)).append("], ");
+            b.append("parse[").append(TimeValue.timeValueNanos(parseNanos)).append("], ");
+            b.append("clauses[").append(clauses(parsed)).append("], ");
+            b.append("fingerprint[").append(fingerprint).append("], ");
+            b.append("query[").append(query).append(']');
+            return b.toString();
+        }
+    }
+}
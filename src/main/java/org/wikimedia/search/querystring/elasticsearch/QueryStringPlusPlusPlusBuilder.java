@@ -25,6 +25,16 @@ public class QueryStringPlusPlusPlusBuilder extends BaseQueryBuilder implements
     private Boolean whitelistAll;
     private Boolean allowLeadingWildcard;
     private Boolean allowPrefix;
+    private Integer minPrefixLength;
+    private Boolean expandPhraseTerms;
+    private Float cutoffFrequency;
+    private Long budgetMs;
+    private Integer expansionBudget;
+    private String rewrite;
+    private String degrade;
+    private Integer maxComplexity;
+    private String complexityAction;
+    private Boolean profile;
     private Float boost;
     private ToXContent regexSettings;
 
@@ -143,6 +153,108 @@ public class QueryStringPlusPlusPlusBuilder extends BaseQueryBuilder implements
         return this;
     }
 
+    /**
+     * Prefix queries shorter than this that can't be looked up in a prefix
+     * field are searched as terms rather than expanded. Defaults to 0 which
+     * disables this.
+     */
+    public QueryStringPlusPlusPlusBuilder minPrefixLength(int minPrefixLength) {
+        this.minPrefixLength = minPrefixLength;
+        return this;
+    }
+
+    /**
+     * Should fuzzy, wildcard, and prefix terms in phrases be expanded against
+     * the index so the phrase can be a MultiPhraseQuery instead of a span
+     * query? Defaults to false.
+     */
+    public QueryStringPlusPlusPlusBuilder expandPhraseTerms(boolean expandPhraseTerms) {
+        this.expandPhraseTerms = expandPhraseTerms;
+        return this;
+    }
+
+    /**
+     * Terms that appear in more than this many documents are only used for
+     * scoring when the default operator would otherwise require them. Values
+     * less than 1 are a fraction of the documents in the shard. Values greater
+     * than or equal to 1 are an absolute number of documents. Defaults to 0
+     * which disables this.
+     */
+    public QueryStringPlusPlusPlusBuilder cutoffFrequency(float cutoffFrequency) {
+        this.cutoffFrequency = cutoffFrequency;
+        return this;
+    }
+
+    /**
+     * Milliseconds that wildcard, prefix, fuzzy, and regex clauses can spend
+     * matching documents on each shard. Once the budget is spent those
+     * clauses stop matching and the response is marked as timed out. Defaults
+     * to unlimited.
+     */
+    public QueryStringPlusPlusPlusBuilder budgetMs(long budgetMs) {
+        this.budgetMs = budgetMs;
+        return this;
+    }
+
+    /**
+     * Number of terms that all the wildcard, prefix, and fuzzy clauses can
+     * expand into together on each shard. Clauses that don't fit only use
+     * their best terms. Defaults to unlimited.
+     */
+    public QueryStringPlusPlusPlusBuilder expansionBudget(int expansionBudget) {
+        this.expansionBudget = expansionBudget;
+        return this;
+    }
+
+    /**
+     * How to rewrite wildcard, prefix, and fuzzy clauses. Either one of
+     * Elasticsearch's rewrite methods like "constant_score_filter" or
+     * "top_terms_10" or "auto" to pick one for each clause based on the number
+     * of terms it matches. Defaults to Lucene's default for each query.
+     */
+    public QueryStringPlusPlusPlusBuilder rewrite(String rewrite) {
+        this.rewrite = rewrite;
+        return this;
+    }
+
+    /**
+     * Should fuzzy, prefix, wildcard, regex, and sloppy phrase clauses be
+     * replaced with cheaper ones? Either "never", "always", or "auto" to do it
+     * when the node's search queue is long. Defaults to "never".
+     */
+    public QueryStringPlusPlusPlusBuilder degrade(String degrade) {
+        this.degrade = degrade;
+        return this;
+    }
+
+    /**
+     * Maximum complexity score for the query string. Defaults to the
+     * qsppp.complexity.max node setting which defaults to unlimited.
+     */
+    public QueryStringPlusPlusPlusBuilder maxComplexity(int maxComplexity) {
+        this.maxComplexity = maxComplexity;
+        return this;
+    }
+
+    /**
+     * What to do with queries that are more complex than maxComplexity. Either
+     * "reject" to fail them or "degrade" to degrade them. Defaults to
+     * "reject".
+     */
+    public QueryStringPlusPlusPlusBuilder complexityAction(String complexityAction) {
+        this.complexityAction = complexityAction;
+        return this;
+    }
+
+    /**
+     * Log how long each phase of building the query took and how much it
+     * allocated. Defaults to false.
+     */
+    public QueryStringPlusPlusPlusBuilder profile(boolean profile) {
+        this.profile = profile;
+        return this;
+    }
+
     /**
      * Settings to use when building regex. Set this to a
      * SourceRegexFilterBuilder.Settings to use wikimedia-extra's regexes. There
@@ -193,6 +305,12 @@ public class QueryStringPlusPlusPlusBuilder extends BaseQueryBuilder implements
                     if (definition.getPrefixPrecise() != null) {
                         builder.field("prefix_precise", definition.getPrefixPrecise());
                     }
+                    if (definition.getPrefixPreciseMinGram() > 0) {
+                        builder.field("prefix_min_gram", definition.getPrefixPreciseMinGram());
+                    }
+                    if (definition.getPrefixPreciseMaxGram() > 0) {
+                        builder.field("prefix_max_gram", definition.getPrefixPreciseMaxGram());
+                    }
                     if (definition.getNgramField() != null) {
                         builder.startObject("ngram");
                         builder.field("name", definition.getNgramField());
@@ -232,6 +350,36 @@ public class QueryStringPlusPlusPlusBuilder extends BaseQueryBuilder implements
         if (allowPrefix != null) {
             builder.field("allow_prefix", allowPrefix);
         }
+        if (minPrefixLength != null) {
+            builder.field("min_prefix_length", minPrefixLength);
+        }
+        if (expandPhraseTerms != null) {
+            builder.field("expand_phrase_terms", expandPhraseTerms);
+        }
+        if (cutoffFrequency != null) {
+            builder.field("cutoff_frequency", cutoffFrequency);
+        }
+        if (budgetMs != null) {
+            builder.field("budget_ms", budgetMs);
+        }
+        if (expansionBudget != null) {
+            builder.field("expansion_budget", expansionBudget);
+        }
+        if (rewrite != null) {
+            builder.field("rewrite", rewrite);
+        }
+        if (degrade != null) {
+            builder.field("degrade", degrade);
+        }
+        if (maxComplexity != null) {
+            builder.field("max_complexity", maxComplexity);
+        }
+        if (complexityAction != null) {
+            builder.field("complexity_action", complexityAction);
+        }
+        if (profile != null) {
+            builder.field("profile", profile);
+        }
         if (regexSettings != null) {
             builder.field("regex", regexSettings);
         }
@@ -10,26 +10,52 @@ import static org.wikimedia.search.querystring.QueryParserHelper.parseFields;
 import java.io.IOException;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.MultiTermQuery.RewriteMethod;
 import org.apache.lucene.search.Query;
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
 import org.elasticsearch.common.base.MoreObjects;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.xcontent.XContentFactory;
 import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.index.mapper.internal.FieldNamesFieldMapper;
 import org.elasticsearch.index.query.QueryParseContext;
 import org.elasticsearch.index.query.QueryParser;
 import org.elasticsearch.index.query.QueryParsingException;
+import org.elasticsearch.index.query.support.QueryParsers;
+import org.elasticsearch.search.internal.SearchContext;
+import org.elasticsearch.threadpool.ThreadPool;
 import org.wikimedia.search.querystring.FieldsHelper;
 import org.wikimedia.search.querystring.FieldsHelper.UnauthorizedAction;
+import org.wikimedia.search.querystring.ParseErrorException;
+import org.wikimedia.search.querystring.QueryComplexity;
 import org.wikimedia.search.querystring.QueryParserHelper;
+import org.wikimedia.search.querystring.elasticsearch.stats.QueryStringStats;
+import org.wikimedia.search.querystring.query.AutoRewriteMethod;
 import org.wikimedia.search.querystring.query.BasicQueryBuilder;
+import org.wikimedia.search.querystring.query.CompiledRegexCache;
 import org.wikimedia.search.querystring.query.DefaultingQueryBuilder;
+import org.wikimedia.search.querystring.query.Degradations;
+import org.wikimedia.search.querystring.query.ExpansionBudget;
 import org.wikimedia.search.querystring.query.FieldDefinition;
 import org.wikimedia.search.querystring.query.FieldQueryBuilder;
 import org.wikimedia.search.querystring.query.FieldReference;
 import org.wikimedia.search.querystring.query.FieldUsage;
+import org.wikimedia.search.querystring.query.ParseEvents;
+import org.wikimedia.search.querystring.query.ParseProfile;
+import org.wikimedia.search.querystring.query.ParseProfile.Phase;
 import org.wikimedia.search.querystring.query.RegexQueryBuilder;
+import org.wikimedia.search.querystring.query.RegexStats;
+import org.wikimedia.search.querystring.query.TimeBudget;
 
 /**
  * Parses QueryStringPlusPlusPlus.
@@ -37,6 +63,67 @@ import org.wikimedia.search.querystring.query.RegexQueryBuilder;
 public class QueryStringPlusPlusPlusParser implements QueryParser {
     public static final String[] NAMES = new String[] { "qsppp", "query_string_plus_plus_plus", "queryStringPlusPlusPlus" };
     private static final ESLogger log = ESLoggerFactory.getLogger(QueryStringPlusPlusPlusParser.class.getPackage().getName());
+    /**
+     * Where queries with profile set to true log their profile.
+     */
+    private static final ESLogger profileLog = ESLoggerFactory.getLogger(QueryStringPlusPlusPlusParser.class.getPackage().getName()
+            + ".profile");
+
+    /**
+     * Compiled regexes shared by every request on this node.
+     */
+    private final CompiledRegexCache regexCache;
+    /**
+     * Edge ngram sizes of the index analyzers on this node.
+     */
+    private final EdgeNGramSizes edgeNGramSizes = new EdgeNGramSizes();
+
+    /**
+     * Everything counted about the queries parsed on this node.
+     */
+    private final QueryStringStats stats;
+    /**
+     * Decides if queries with degrade set to auto should be degraded.
+     */
+    private final SearchQueuePressure pressure;
+    /**
+     * Maximum complexity score for queries that don't set their own or 0 for
+     * unlimited.
+     */
+    private final int defaultMaxComplexity;
+    /**
+     * Logs queries that took a long time to build.
+     */
+    private final ParseSlowLog slowLog;
+    /**
+     * Where to send events around the hot parts of parsing.
+     */
+    private final ParseEvents events;
+
+    @Inject
+    public QueryStringPlusPlusPlusParser(Settings settings, ThreadPool threadPool) {
+        regexCache = new CompiledRegexCache(settings.getAsBytesSize("qsppp.regex.cache_size", new ByteSizeValue(10, ByteSizeUnit.MB))
+                .bytes());
+        stats = new QueryStringStats(regexCache);
+        pressure = new SearchQueuePressure(threadPool, settings.getAsInt("qsppp.degrade.search_queue_threshold", 50));
+        defaultMaxComplexity = settings.getAsInt("qsppp.complexity.max", 0);
+        slowLog = new ParseSlowLog(settings);
+        events = settings.getAsBoolean("qsppp.flight_recorder.enabled", true) ? FlightRecorderParseEvents.create() : ParseEvents.NOOP;
+    }
+
+    /**
+     * Constructs that were degraded on this node.
+     */
+    public Degradations degradations() {
+        return stats.getDegradations();
+    }
+
+    /**
+     * Everything counted about the queries parsed on this node.
+     */
+    public QueryStringStats stats() {
+        return stats;
+    }
 
     @Override
     public String[] names() {
@@ -45,13 +132,57 @@ public class QueryStringPlusPlusPlusParser implements QueryParser {
 
     @Override
     public Query parse(QueryParseContext parseContext) throws IOException, QueryParsingException {
+        return parse(parseContext, null, null);
+    }
+
+    /**
+     * Parse a query, explaining how it was built. Queries that are explained
+     * aren't counted in the node's stats or slow log and aren't degraded
+     * because the node is under pressure.
+     *
+     * @param explanation filled in with the rewrites applied, the query's
+     *            complexity, and where the time went. Null to skip all that.
+     * @param reader reader used to look up terms and expand multi term
+     *            queries. Null to use the current search's reader if there
+     *            is one.
+     */
+    public Query parse(QueryParseContext parseContext, ParseExplanation explanation, IndexReader reader) throws IOException,
+            QueryParsingException {
+        // Explaining a query shouldn't show up in the node's stats
+        QueryStringStats stats = explanation == null ? this.stats : new QueryStringStats(regexCache);
+        try {
+            return parseAndBuild(parseContext, explanation, reader, stats);
+        } catch (Exception e) {
+            // Counts invalid settings as well as queries that fail to build
+            stats.failed();
+            throw e;
+        }
+    }
+
+    private Query parseAndBuild(QueryParseContext parseContext, ParseExplanation explanation, IndexReader reader, QueryStringStats stats)
+            throws IOException, QueryParsingException {
+        long start = System.nanoTime();
         DefaultingQueryBuilder.Settings defaultSettings = new DefaultingQueryBuilder.Settings();
         FieldQueryBuilder.Settings fieldSettings = new FieldQueryBuilder.Settings();
-        FieldsHelper fieldsHelper = new FieldsHelper(new ElasticsearchFieldResolver(parseContext));
+        fieldSettings.setFallbacks(stats.getFallbacks());
+        fieldSettings.setEvents(events);
+        if (explanation != null) {
+            fieldSettings.setRewrites(explanation.getRewrites());
+        }
+        RegexStats regexStats = new RegexStats();
+        SettingsFingerprint fingerprint = new SettingsFingerprint();
+        FieldsHelper fieldsHelper = new FieldsHelper(new ElasticsearchFieldResolver(parseContext, edgeNGramSizes));
+        fieldsHelper.setEvents(events);
         boolean defaultIsAnd = true;
         boolean emptyIsMatchAll = true;
         UnauthorizedAction defaultFieldUnauthorizedAction = UnauthorizedAction.WHITELIST;
         Float boost = null;
+        Long budgetMs = null;
+        String rewrite = null;
+        String degrade = null;
+        int maxComplexity = defaultMaxComplexity;
+        String complexityAction = "reject";
+        boolean profile = false;
         String fields = null;
         String query = null;
 
@@ -62,6 +193,9 @@ public class QueryStringPlusPlusPlusParser implements QueryParser {
             if (token == FIELD_NAME) {
                 currentFieldName = parser.currentName();
             } else if (token.isValue()) {
+                if (!"query".equals(currentFieldName)) {
+                    fingerprint.add(currentFieldName, parser.text());
+                }
                 switch (currentFieldName) {
                 case "query":
                     query = parser.text();
@@ -88,9 +222,46 @@ public class QueryStringPlusPlusPlusParser implements QueryParser {
                 case "allowPrefix":
                     fieldSettings.setAllowPrefix(parser.booleanValue());
                     break;
+                case "min_prefix_length":
+                case "minPrefixLength":
+                    fieldSettings.setMinPrefixLength(parser.intValue());
+                    break;
+                case "expand_phrase_terms":
+                case "expandPhraseTerms":
+                    fieldSettings.setExpandPhraseTerms(parser.booleanValue());
+                    break;
+                case "cutoff_frequency":
+                case "cutoffFrequency":
+                    fieldSettings.setCutoffFrequency(parser.floatValue());
+                    break;
+                case "budget_ms":
+                case "budgetMs":
+                    budgetMs = parser.longValue();
+                    break;
+                case "rewrite":
+                    rewrite = parser.text();
+                    break;
+                case "degrade":
+                    degrade = parser.text();
+                    break;
+                case "max_complexity":
+                case "maxComplexity":
+                    maxComplexity = parser.intValue();
+                    break;
+                case "complexity_action":
+                case "complexityAction":
+                    complexityAction = parser.text();
+                    break;
+                case "profile":
+                    profile = parser.booleanValue();
+                    break;
+                case "expansion_budget":
+                case "expansionBudget":
+                    fieldSettings.setExpansionBudget(new ExpansionBudget(parser.intValue()));
+                    break;
                 case "regex":
                     if (parser.booleanValue()) {
-                        initWikimediaExtraRegexBuilder(parseContext, fieldSettings);
+                        initRegexBuilder(parseContext, fieldSettings, regexStats, "wikimedia_extra");
                     }
                     break;
                 default:
@@ -103,6 +274,7 @@ public class QueryStringPlusPlusPlusParser implements QueryParser {
                         if (token == FIELD_NAME) {
                             currentFieldName = parser.currentName();
                         } else if (token.isValue()) {
+                            fingerprint.add("fields." + currentFieldName, parser.text());
                             switch (currentFieldName) {
                             case "default":
                                 fields = parser.text();
@@ -127,11 +299,13 @@ public class QueryStringPlusPlusPlusParser implements QueryParser {
                             switch (currentFieldName) {
                             case "whitelist":
                                 while ((token = parser.nextToken()) != END_ARRAY) {
+                                    fingerprint.add("fields.whitelist", parser.text());
                                     fieldsHelper.whitelist(parser.text());
                                 }
                                 break;
                             case "blacklist":
                                 while ((token = parser.nextToken()) != END_ARRAY) {
+                                    fingerprint.add("fields.blacklist", parser.text());
                                     fieldsHelper.blacklist(parser.text());
                                 }
                                 break;
@@ -146,6 +320,7 @@ public class QueryStringPlusPlusPlusParser implements QueryParser {
                                     if (token == FIELD_NAME) {
                                         currentFieldName = parser.currentName();
                                     } else if (token.isValue()) {
+                                        fingerprint.add("fields.aliases." + currentFieldName, parser.text());
                                         for (FieldReference target : parseFields(parser.text())) {
                                             fieldsHelper.addAlias(currentFieldName, target);
                                         }
@@ -153,7 +328,7 @@ public class QueryStringPlusPlusPlusParser implements QueryParser {
                                 }
                                 break;
                             case "definitions":
-                                parseDefinitions(parseContext, parser, fieldsHelper);
+                                parseDefinitions(parseContext, parser, fieldsHelper, fingerprint);
                                 break;
                             default:
                                 throw new QueryParsingException(parseContext.index(), "[qsppp] query does not support [fields."
@@ -163,14 +338,7 @@ public class QueryStringPlusPlusPlusParser implements QueryParser {
                     }
                     break;
                 case "regex":
-                    initWikimediaExtraRegexBuilder(parseContext, fieldSettings);
-                    while ((token = parser.nextToken()) != END_OBJECT) {
-                        if (token == FIELD_NAME) {
-                            currentFieldName = parser.currentName();
-                        } else {
-                            fieldSettings.getRegexQueryBuilder().parseSetting(currentFieldName, parser);
-                        }
-                    }
+                    parseRegex(parseContext, parser, fieldSettings, regexStats, fingerprint);
                     break;
                 default:
                     throw new QueryParsingException(parseContext.index(), "[qsppp] query does not support [" + currentFieldName + "]");
@@ -190,17 +358,74 @@ public class QueryStringPlusPlusPlusParser implements QueryParser {
         if (fieldNamesMapper != null && fieldNamesMapper.enabled()) {
             fieldSettings.setShouldUseFieldNamesFieldForExists(true);
         }
+        fieldSettings.setFilterCache(new ElasticsearchFilterCache(parseContext));
+        SearchContext searchContext = SearchContext.current();
+        if (reader != null) {
+            fieldSettings.setIndexReader(reader);
+        } else if (searchContext != null) {
+            fieldSettings.setIndexReader(searchContext.searcher().getIndexReader());
+        }
+        if (rewrite != null) {
+            fieldSettings.setRewriteMethod(parseRewrite(parseContext, fieldSettings, rewrite));
+        }
+        if (budgetMs != null) {
+            fieldSettings.setTimeBudget(new TimeBudget(budgetMs, searchContext == null ? TimeBudget.Listener.NOOP
+                    : new ElasticsearchTimeBudgetListener(searchContext)));
+        }
+        if (degrade != null && shouldDegrade(parseContext, degrade, explanation == null)) {
+            fieldSettings.setDegradations(stats.getDegradations());
+        }
+
+        /*
+         * Every query is profiled so the node stats have the time spent in
+         * each phase. Allocation is only tracked when someone asked to see
+         * the profile because looking it up isn't cheap.
+         */
+        ParseProfile parseProfile = new ParseProfile(Phase.SETTINGS, start, profile || explanation != null);
+        fieldSettings.setProfile(parseProfile);
 
+        parseProfile.enter(Phase.RESOLVE);
         List<FieldUsage> defaultFields = fieldsHelper.resolve(parseFields(fields), defaultFieldUnauthorizedAction);
+
         BasicQueryBuilder basicQueryBuilder = new BasicQueryBuilder(fieldSettings, defaultFields);
         DefaultingQueryBuilder queryBuilder = new DefaultingQueryBuilder(defaultSettings, basicQueryBuilder);
+        QueryParserHelper helper = new QueryParserHelper(fieldsHelper, queryBuilder, defaultIsAnd, emptyIsMatchAll);
+        helper.setFallbacks(stats.getFallbacks());
+        helper.setProfile(parseProfile);
+        helper.setEvents(events);
+        if (explanation != null) {
+            helper.setRewrites(explanation.getRewrites());
+        }
+        helper.setComplexityCheck(complexityCheck(parseContext, fieldSettings, stats, query, maxComplexity, complexityAction),
+                defaultFields.size());
         try {
-            Query parsed = new QueryParserHelper(fieldsHelper, queryBuilder, defaultIsAnd, emptyIsMatchAll).parse(query);
+            Query parsed = helper.parse(query);
             if (boost != null) {
                 parsed.setBoost(boost);
             }
+            if (log.isDebugEnabled() && regexStats.getCacheHits() + regexStats.getCacheMisses() > 0) {
+                log.debug("Compiled regexes for [{}]: {}", query, regexStats);
+            }
+            parseProfile.stop();
+            stats.record(parseProfile);
+            if (explanation == null) {
+                long settingsNanos = parseProfile.getNanos(Phase.SETTINGS);
+                long resolveNanos = parseProfile.getNanos(Phase.RESOLVE);
+                slowLog.log(query, fingerprint, settingsNanos, resolveNanos, parseProfile.getTotalNanos() - settingsNanos - resolveNanos,
+                        parsed);
+            }
+            stats.parsed();
+            if (profile) {
+                profileLog.info("Profiled [{}]: {} regex {}", query, parseProfile, regexStats);
+            }
+            if (explanation != null) {
+                explanation.parsed(query, parsed, helper.getComplexity(), parseProfile, regexStats);
+            }
             return parsed;
         } catch (Exception e) {
+            if (e instanceof ParseErrorException) {
+                stats.parseError();
+            }
             /*
              * Elasticsearch doesn't log the stack trace for these errors so we
              * log them ourselves.
@@ -210,7 +435,8 @@ public class QueryStringPlusPlusPlusParser implements QueryParser {
         }
     }
 
-    private void parseDefinitions(QueryParseContext parseContext, XContentParser parser, FieldsHelper fieldsHelper) throws IOException {
+    private void parseDefinitions(QueryParseContext parseContext, XContentParser parser, FieldsHelper fieldsHelper,
+            SettingsFingerprint fingerprint) throws IOException {
         String name = null;
         XContentParser.Token token;
         while ((token = parser.nextToken()) != END_OBJECT) {
@@ -224,10 +450,13 @@ public class QueryStringPlusPlusPlusParser implements QueryParser {
                 String prefixPrecise = null;
                 String ngram = null;
                 int ngramGramSize = 3;
+                int prefixMinGram = 0;
+                int prefixMaxGram = 0;
                 while ((token = parser.nextToken()) != END_OBJECT) {
                     if (token == FIELD_NAME) {
                         currentFieldName = parser.currentName();
                     } else if (token.isValue()) {
+                        fingerprint.add("fields.definitions." + name + "." + currentFieldName, parser.text());
                         switch (currentFieldName) {
                         case "standard":
                             standard = parser.text();
@@ -243,6 +472,14 @@ public class QueryStringPlusPlusPlusParser implements QueryParser {
                         case "prefixPrecise":
                             prefixPrecise = parser.text();
                             break;
+                        case "prefix_min_gram":
+                        case "prefixMinGram":
+                            prefixMinGram = parser.intValue();
+                            break;
+                        case "prefix_max_gram":
+                        case "prefixMaxGram":
+                            prefixMaxGram = parser.intValue();
+                            break;
                         default:
                             throw new QueryParsingException(parseContext.index(), "[qsppp] query does not support [fields.definitions."
                                     + currentFieldName + "]");
@@ -254,6 +491,7 @@ public class QueryStringPlusPlusPlusParser implements QueryParser {
                                 if (token == FIELD_NAME) {
                                     currentFieldName = parser.currentName();
                                 } else if (token.isValue()) {
+                                    fingerprint.add("fields.definitions." + name + ".ngram." + currentFieldName, parser.text());
                                     switch (currentFieldName) {
                                     case "name":
                                         ngram = parser.text();
@@ -276,17 +514,141 @@ public class QueryStringPlusPlusPlusParser implements QueryParser {
                     }
                 }
                 standard = MoreObjects.firstNonNull(standard, name);
-                fieldsHelper.addField(name, new FieldDefinition(standard, precise, reversePrecise, prefixPrecise, ngram, ngramGramSize));
+                fieldsHelper.addField(name, new FieldDefinition(standard, precise, reversePrecise, prefixPrecise, prefixMinGram,
+                        prefixMaxGram, ngram, ngramGramSize));
+            }
+        }
+    }
+
+    private void parseRegex(QueryParseContext parseContext, XContentParser parser, FieldQueryBuilder.Settings fieldSettings,
+            RegexStats regexStats, SettingsFingerprint fingerprint) throws IOException {
+        /*
+         * The implementation has to be picked before any of the other settings
+         * can be parsed and it can come in any order so we read the whole
+         * object and then parse it again.
+         */
+        Map<String, Object> settings = parser.mapOrdered();
+        fingerprint.add("regex", settings.toString());
+        Object implementation = settings.remove("implementation");
+        initRegexBuilder(parseContext, fieldSettings, regexStats, implementation == null ? "wikimedia_extra" : implementation.toString());
+        BytesReference settingsBytes = XContentFactory.jsonBuilder().map(settings).bytes();
+        try (XContentParser settingsParser = XContentFactory.xContent(XContentType.JSON).createParser(settingsBytes)) {
+            settingsParser.nextToken();
+            String currentFieldName = null;
+            XContentParser.Token token;
+            while ((token = settingsParser.nextToken()) != END_OBJECT) {
+                if (token == FIELD_NAME) {
+                    currentFieldName = settingsParser.currentName();
+                } else {
+                    fieldSettings.getRegexQueryBuilder().parseSetting(currentFieldName, settingsParser);
+                }
+            }
+        }
+    }
+
+    /**
+     * Build the check that rejects or degrades queries that are too complex.
+     *
+     * @param maxComplexity maximum complexity score or 0 for unlimited
+     * @param action reject to fail the query or degrade to replace its
+     *            expensive constructs with cheaper ones
+     */
+    private QueryParserHelper.ComplexityCheck complexityCheck(final QueryParseContext parseContext,
+            final FieldQueryBuilder.Settings fieldSettings, final QueryStringStats stats, final String query, final int maxComplexity,
+            String action) {
+        final boolean reject;
+        switch (action) {
+        case "reject":
+            reject = true;
+            break;
+        case "degrade":
+            reject = false;
+            break;
+        default:
+            throw new QueryParsingException(parseContext.index(), "[qsppp] query does not support [complexity_action] of [" + action
+                    + "]");
+        }
+        return new QueryParserHelper.ComplexityCheck() {
+            @Override
+            public void check(QueryComplexity complexity) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Complexity of [{}]: {}", query, complexity);
+                }
+                if (maxComplexity <= 0 || complexity.score() <= maxComplexity) {
+                    return;
+                }
+                if (reject) {
+                    throw new QueryParsingException(parseContext.index(), "[qsppp] query is too complex: score of ["
+                            + complexity.score() + "] is more than [" + maxComplexity + "]");
+                }
+                fieldSettings.setDegradations(stats.getDegradations());
+            }
+        };
+    }
+
+    /**
+     * Should expensive constructs be replaced with cheaper ones?
+     *
+     * @param degrade never, auto to degrade when the node is under pressure,
+     *            or always
+     * @param checkPressure should auto look at the node's pressure? If not
+     *            auto never degrades.
+     */
+    private boolean shouldDegrade(QueryParseContext parseContext, String degrade, boolean checkPressure) {
+        switch (degrade) {
+        case "never":
+            return false;
+        case "always":
+            return true;
+        case "auto":
+            if (!checkPressure || !pressure.underPressure()) {
+                return false;
             }
+            if (log.isDebugEnabled()) {
+                log.debug("Degrading query because {} searches are queued", pressure.queued());
+            }
+            return true;
+        default:
+            throw new QueryParsingException(parseContext.index(), "[qsppp] query does not support [degrade] of [" + degrade + "]");
         }
     }
 
-    private void initWikimediaExtraRegexBuilder(QueryParseContext parseContext, FieldQueryBuilder.Settings fieldSettings) {
+    private RewriteMethod parseRewrite(QueryParseContext parseContext, FieldQueryBuilder.Settings fieldSettings, String rewrite) {
+        if ("auto".equals(rewrite)) {
+            return new AutoRewriteMethod(fieldSettings.getFuzzyMaxExpansions());
+        }
         try {
-            fieldSettings.setRegexQueryBuilder(new RegexQueryBuilder.WikimediaExtraRegexQueryBuilder());
-        } catch (NoClassDefFoundError e) {
-            throw new QueryParsingException(parseContext.index(),
-                    "[qsppp] query tried to initialize regexes but Wikimedia-extra plugin not on the classpath", e);
+            return QueryParsers.parseRewriteMethod(rewrite);
+        } catch (ElasticsearchIllegalArgumentException | NumberFormatException e) {
+            throw new QueryParsingException(parseContext.index(), "[qsppp] query does not support [rewrite] of [" + rewrite + "]");
         }
     }
+
+    private void initRegexBuilder(QueryParseContext parseContext, FieldQueryBuilder.Settings fieldSettings, RegexStats regexStats,
+            String implementation) {
+        switch (implementation) {
+        case "wikimedia_extra":
+        case "wikimediaExtra":
+            try {
+                initWikimediaExtraRegexBuilder(parseContext, fieldSettings, regexStats);
+            } catch (NoClassDefFoundError e) {
+                throw new QueryParsingException(parseContext.index(),
+                        "[qsppp] query tried to initialize regexes but Wikimedia-extra plugin not on the classpath", e);
+            }
+            return;
+        case "lucene":
+            fieldSettings.setRegexQueryBuilder(new RegexQueryBuilder.LuceneRegexQueryBuilder(parseContext.index(), regexCache,
+                    regexStats));
+            return;
+        default:
+            throw new QueryParsingException(parseContext.index(), "[qsppp] query does not support [regex.implementation] of ["
+                    + implementation + "]");
+        }
+    }
+
+    private void initWikimediaExtraRegexBuilder(QueryParseContext parseContext, FieldQueryBuilder.Settings fieldSettings,
+            RegexStats regexStats) {
+        fieldSettings.setRegexQueryBuilder(new RegexQueryBuilder.WikimediaExtraRegexQueryBuilder(parseContext.index(),
+                new ElasticsearchFieldStorage(parseContext), regexCache, regexStats));
+    }
 }
@@ -1,7 +1,16 @@
 package org.wikimedia.search.querystring.elasticsearch;
 
+import org.elasticsearch.action.ActionModule;
+import org.elasticsearch.index.query.QueryParser;
 import org.elasticsearch.indices.query.IndicesQueriesModule;
 import org.elasticsearch.plugins.AbstractPlugin;
+import org.elasticsearch.rest.RestModule;
+import org.wikimedia.search.querystring.elasticsearch.explain.QueryStringExplainAction;
+import org.wikimedia.search.querystring.elasticsearch.explain.RestQueryStringExplainAction;
+import org.wikimedia.search.querystring.elasticsearch.explain.TransportQueryStringExplainAction;
+import org.wikimedia.search.querystring.elasticsearch.stats.QueryStringStatsAction;
+import org.wikimedia.search.querystring.elasticsearch.stats.RestQueryStringStatsAction;
+import org.wikimedia.search.querystring.elasticsearch.stats.TransportQueryStringStatsAction;
 
 public class QueryStringPlusPlusPlusPlugin extends AbstractPlugin {
 
@@ -18,7 +27,26 @@ public class QueryStringPlusPlusPlusPlugin extends AbstractPlugin {
     /**
      * Register our parser.
      */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
     public void onModule(IndicesQueriesModule module) {
-        module.addQuery(new QueryStringPlusPlusPlusParser());
+        // Registered by class so it can be injected with the thread pool
+        module.addQuery((Class<QueryParser>) (Class) QueryStringPlusPlusPlusParser.class);
+    }
+
+    /**
+     * Register the actions that collect stats from each node and explain
+     * queries.
+     */
+    public void onModule(ActionModule module) {
+        module.registerAction(QueryStringStatsAction.INSTANCE, TransportQueryStringStatsAction.class);
+        module.registerAction(QueryStringExplainAction.INSTANCE, TransportQueryStringExplainAction.class);
+    }
+
+    /**
+     * Register the stats and explain endpoints.
+     */
+    public void onModule(RestModule module) {
+        module.addRestAction(RestQueryStringStatsAction.class);
+        module.addRestAction(RestQueryStringExplainAction.class);
     }
 }
@@ -0,0 +1,46 @@
+package org.wikimedia.search.querystring.elasticsearch;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import org.elasticsearch.threadpool.ThreadPool;
+
+/**
+ * Decides if the node is under pressure by looking at how many requests are
+ * waiting in the search thread pool's queue.
+ */
+public class SearchQueuePressure {
+    private final ThreadPool threadPool;
+    private final int threshold;
+
+    /**
+     * @param threshold the node is under pressure if at least this many
+     *            searches are queued
+     */
+    public SearchQueuePressure(ThreadPool threadPool, int threshold) {
+        this.threadPool = threadPool;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Is the node under pressure?
+     */
+    public boolean underPressure() {
+        return queued() >= threshold;
+    }
+
+    /**
+     * Number of searches waiting in the queue or 0 if we can't tell.
+     */
+    public int queued() {
+        Executor executor = threadPool.executor(ThreadPool.Names.SEARCH);
+        if (!(executor instanceof ThreadPoolExecutor)) {
+            return 0;
+        }
+        return ((ThreadPoolExecutor) executor).getQueue().size();
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+}
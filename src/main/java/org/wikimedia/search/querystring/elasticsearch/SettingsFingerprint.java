@@ -0,0 +1,30 @@
+package org.wikimedia.search.querystring.elasticsearch;
+
+import org.elasticsearch.common.hash.Hasher;
+import org.elasticsearch.common.hash.Hashing;
+
+/**
+ * Hash of everything but the query text sent to qsppp so slow queries sent
+ * with the same settings can be grouped together without logging all the
+ * settings every time.
+ */
+public class SettingsFingerprint {
+    private final Hasher hasher = Hashing.murmur3_32().newHasher();
+    private String hash;
+
+    /**
+     * Add a setting to the fingerprint. Must be called before toString.
+     */
+    public void add(String name, String value) {
+        hasher.putUnencodedChars(name).putChar('=').putUnencodedChars(value).putChar('\n');
+    }
+
+    @Override
+    public String toString() {
+        // Hashers can only be hashed once
+        if (hash == null) {
+            hash = hasher.hash().toString();
+        }
+        return hash;
+    }
+}
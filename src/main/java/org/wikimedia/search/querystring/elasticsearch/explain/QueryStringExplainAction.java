@@ -0,0 +1,28 @@
+package org.wikimedia.search.querystring.elasticsearch.explain;
+
+import org.elasticsearch.action.admin.indices.IndicesAction;
+import org.elasticsearch.client.IndicesAdminClient;
+
+/**
+ * Builds a qsppp query against an index without running it and explains how
+ * it was built.
+ */
+public class QueryStringExplainAction extends
+        IndicesAction<QueryStringExplainRequest, QueryStringExplainResponse, QueryStringExplainRequestBuilder> {
+    public static final QueryStringExplainAction INSTANCE = new QueryStringExplainAction();
+    public static final String NAME = "indices:admin/qsppp/explain";
+
+    private QueryStringExplainAction() {
+        super(NAME);
+    }
+
+    @Override
+    public QueryStringExplainResponse newResponse() {
+        return new QueryStringExplainResponse();
+    }
+
+    @Override
+    public QueryStringExplainRequestBuilder newRequestBuilder(IndicesAdminClient client) {
+        return new QueryStringExplainRequestBuilder(client);
+    }
+}
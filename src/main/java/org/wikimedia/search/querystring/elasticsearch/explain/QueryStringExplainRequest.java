@@ -0,0 +1,62 @@
+package org.wikimedia.search.querystring.elasticsearch.explain;
+
+import static org.elasticsearch.action.ValidateActions.addValidationError;
+
+import java.io.IOException;
+
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.support.single.custom.SingleCustomOperationRequest;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+/**
+ * A qsppp query to explain and the index to build it against.
+ */
+public class QueryStringExplainRequest extends SingleCustomOperationRequest<QueryStringExplainRequest> {
+    private BytesReference source;
+
+    QueryStringExplainRequest() {
+    }
+
+    public QueryStringExplainRequest(String index) {
+        index(index);
+    }
+
+    /**
+     * The qsppp query's body - the same object sent inside of a search's
+     * qsppp query.
+     */
+    public BytesReference source() {
+        return source;
+    }
+
+    public QueryStringExplainRequest source(BytesReference source) {
+        this.source = source;
+        return this;
+    }
+
+    @Override
+    public ActionRequestValidationException validate() {
+        ActionRequestValidationException validationException = super.validate();
+        if (index() == null) {
+            validationException = addValidationError("index is missing", validationException);
+        }
+        if (source == null || source.length() == 0) {
+            validationException = addValidationError("source is missing", validationException);
+        }
+        return validationException;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        source = in.readBytesReference();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeBytesReference(source);
+    }
+}
@@ -0,0 +1,34 @@
+package org.wikimedia.search.querystring.elasticsearch.explain;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.support.single.custom.SingleCustomOperationRequestBuilder;
+import org.elasticsearch.client.IndicesAdminClient;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+public class QueryStringExplainRequestBuilder extends
+        SingleCustomOperationRequestBuilder<QueryStringExplainRequest, QueryStringExplainResponse, QueryStringExplainRequestBuilder> {
+    public QueryStringExplainRequestBuilder(IndicesAdminClient client) {
+        super(client, new QueryStringExplainRequest());
+    }
+
+    public QueryStringExplainRequestBuilder setIndex(String index) {
+        request.index(index);
+        return this;
+    }
+
+    public QueryStringExplainRequestBuilder setSource(String source) {
+        request.source(new BytesArray(source));
+        return this;
+    }
+
+    public QueryStringExplainRequestBuilder setSource(XContentBuilder source) {
+        request.source(source.bytes());
+        return this;
+    }
+
+    @Override
+    protected void doExecute(ActionListener<QueryStringExplainResponse> listener) {
+        client.execute(QueryStringExplainAction.INSTANCE, request, listener);
+    }
+}
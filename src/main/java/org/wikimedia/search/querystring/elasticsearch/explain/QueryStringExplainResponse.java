@@ -0,0 +1,54 @@
+package org.wikimedia.search.querystring.elasticsearch.explain;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/**
+ * How a qsppp query was built.
+ */
+public class QueryStringExplainResponse extends ActionResponse implements ToXContent {
+    private Map<String, Object> explanation;
+
+    QueryStringExplainResponse() {
+    }
+
+    /**
+     * @param explanation result of ParseExplanation#toMap
+     */
+    public QueryStringExplainResponse(Map<String, Object> explanation) {
+        this.explanation = explanation;
+    }
+
+    /**
+     * The explanation in the shape returned by ParseExplanation#toMap.
+     */
+    public Map<String, Object> getExplanation() {
+        return explanation;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        explanation = in.readMap();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeMap(explanation);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        for (Map.Entry<String, Object> entry : explanation.entrySet()) {
+            builder.field(entry.getKey(), entry.getValue());
+        }
+        return builder;
+    }
+}
@@ -0,0 +1,35 @@
+package org.wikimedia.search.querystring.elasticsearch.explain;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+import static org.elasticsearch.rest.RestRequest.Method.POST;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.action.support.RestToXContentListener;
+
+/**
+ * Explains a qsppp query at {index}/_qsppp/explain. The body is the qsppp
+ * query's body.
+ */
+public class RestQueryStringExplainAction extends BaseRestHandler {
+    @Inject
+    public RestQueryStringExplainAction(Settings settings, RestController controller, Client client) {
+        super(settings, controller, client);
+        controller.registerHandler(GET, "/{index}/_qsppp/explain", this);
+        controller.registerHandler(POST, "/{index}/_qsppp/explain", this);
+    }
+
+    @Override
+    protected void handleRequest(RestRequest request, RestChannel channel, Client client) throws Exception {
+        QueryStringExplainRequest explainRequest = new QueryStringExplainRequest(request.param("index"));
+        explainRequest.source(request.content());
+        explainRequest.listenerThreaded(false);
+        client.admin().indices()
+                .execute(QueryStringExplainAction.INSTANCE, explainRequest, new RestToXContentListener<QueryStringExplainResponse>(channel));
+    }
+}
@@ -0,0 +1,139 @@
+package org.wikimedia.search.querystring.elasticsearch.explain;
+
+import java.io.IOException;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.single.custom.TransportSingleCustomOperationAction;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.routing.ShardsIterator;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.IndexService;
+import org.elasticsearch.index.engine.Engine;
+import org.elasticsearch.index.query.QueryParseContext;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.indices.IndicesService;
+import org.elasticsearch.indices.query.IndicesQueriesRegistry;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.BaseTransportRequestHandler;
+import org.elasticsearch.transport.TransportChannel;
+import org.elasticsearch.transport.TransportService;
+import org.wikimedia.search.querystring.elasticsearch.ParseExplanation;
+import org.wikimedia.search.querystring.elasticsearch.QueryStringPlusPlusPlusParser;
+
+/**
+ * Builds the query on a node that has the index so it sees the index's
+ * mapping just like a search would.
+ */
+public class TransportQueryStringExplainAction extends
+        TransportSingleCustomOperationAction<QueryStringExplainRequest, QueryStringExplainResponse> {
+    private final IndicesService indicesService;
+    private final IndicesQueriesRegistry queriesRegistry;
+
+    @Inject
+    public TransportQueryStringExplainAction(Settings settings, ThreadPool threadPool, ClusterService clusterService,
+            TransportService transportService, ActionFilters actionFilters, IndicesService indicesService,
+            IndicesQueriesRegistry queriesRegistry) {
+        super(settings, QueryStringExplainAction.NAME, threadPool, clusterService, transportService, actionFilters);
+        this.indicesService = indicesService;
+        this.queriesRegistry = queriesRegistry;
+        // The base class only registers the shard level action
+        transportService.registerHandler(QueryStringExplainAction.NAME, new TransportHandler());
+    }
+
+    @Override
+    protected String executor() {
+        return ThreadPool.Names.SEARCH;
+    }
+
+    @Override
+    protected QueryStringExplainRequest newRequest() {
+        return new QueryStringExplainRequest();
+    }
+
+    @Override
+    protected QueryStringExplainResponse newResponse() {
+        return new QueryStringExplainResponse();
+    }
+
+    @Override
+    protected boolean resolveIndex(QueryStringExplainRequest request) {
+        return true;
+    }
+
+    @Override
+    protected ShardsIterator shards(ClusterState state, InternalRequest request) {
+        return state.routingTable().index(request.concreteIndex()).randomAllActiveShardsIt();
+    }
+
+    @Override
+    protected QueryStringExplainResponse shardOperation(QueryStringExplainRequest request, ShardId shardId)
+            throws ElasticsearchException {
+        IndexService indexService = indicesService.indexServiceSafe(shardId.getIndex());
+        QueryParseContext parseContext = new QueryParseContext(indexService.index(), indexService.queryParserService());
+        QueryStringPlusPlusPlusParser parser = (QueryStringPlusPlusPlusParser) queriesRegistry.queryParsers().get(
+                QueryStringPlusPlusPlusParser.NAMES[0]);
+        // Expand multi term queries against the shard just like a search would
+        Engine.Searcher searcher = indexService.shardSafe(shardId.id()).acquireSearcher("qsppp_explain");
+        try (XContentParser sourceParser = XContentFactory.xContent(request.source()).createParser(request.source())) {
+            if (sourceParser.nextToken() != XContentParser.Token.START_OBJECT) {
+                throw new ElasticsearchIllegalArgumentException("[qsppp] explain expects an object");
+            }
+            parseContext.reset(sourceParser);
+            ParseExplanation explanation = new ParseExplanation();
+            parser.parse(parseContext, explanation, searcher.reader());
+            return new QueryStringExplainResponse(explanation.toMap());
+        } catch (IOException e) {
+            throw new ElasticsearchException("[qsppp] failed to explain query", e);
+        } finally {
+            searcher.close();
+        }
+    }
+
+    /**
+     * Receives requests from transport clients and nodes without the index.
+     */
+    private class TransportHandler extends BaseTransportRequestHandler<QueryStringExplainRequest> {
+        @Override
+        public QueryStringExplainRequest newInstance() {
+            return newRequest();
+        }
+
+        @Override
+        public void messageReceived(QueryStringExplainRequest request, final TransportChannel channel) throws Exception {
+            // No need to fork the listener, we're already on a thread
+            request.listenerThreaded(false);
+            request.operationThreaded(true);
+            execute(request, new ActionListener<QueryStringExplainResponse>() {
+                @Override
+                public void onResponse(QueryStringExplainResponse response) {
+                    try {
+                        channel.sendResponse(response);
+                    } catch (Throwable e) {
+                        onFailure(e);
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable e) {
+                    try {
+                        channel.sendResponse(e);
+                    } catch (Exception e1) {
+                        logger.warn("Failed to send response for explain", e1);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public String executor() {
+            return ThreadPool.Names.SAME;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package org.wikimedia.search.querystring.elasticsearch.stats;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of how long something took with fixed buckets. Safe to share
+ * between threads and cheap enough to update on every query.
+ */
+public class LatencyHistogram {
+    /**
+     * Upper bound of each bucket in microseconds. Anything slower lands in
+     * one last bucket.
+     */
+    private static final long[] BOUNDS_MICROS = new long[] { 100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000,
+            500000, 1000000 };
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS_MICROS.length + 1);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+
+    /**
+     * Record something that took nanos nanoseconds.
+     */
+    public void record(long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        int bucket = 0;
+        while (bucket < BOUNDS_MICROS.length && micros > BOUNDS_MICROS[bucket]) {
+            bucket++;
+        }
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Copy of the histogram in a form that can be sent to other nodes and
+     * rendered as xcontent. Buckets aren't cumulative and are keyed by their
+     * upper bound in microseconds.
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("count", count.get());
+        map.put("total_micros", TimeUnit.NANOSECONDS.toMicros(totalNanos.get()));
+        Map<String, Object> bucketMap = new LinkedHashMap<>();
+        for (int i = 0; i < BOUNDS_MICROS.length; i++) {
+            bucketMap.put(Long.toString(BOUNDS_MICROS[i]), buckets.get(i));
+        }
+        bucketMap.put("+Inf", buckets.get(BOUNDS_MICROS.length));
+        map.put("buckets_micros", bucketMap);
+        return map;
+    }
+}
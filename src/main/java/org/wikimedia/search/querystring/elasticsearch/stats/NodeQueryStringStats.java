@@ -0,0 +1,57 @@
+package org.wikimedia.search.querystring.elasticsearch.stats;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.elasticsearch.action.support.nodes.NodeOperationResponse;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/**
+ * qsppp's stats from a single node.
+ */
+public class NodeQueryStringStats extends NodeOperationResponse implements ToXContent {
+    private Map<String, Object> stats;
+
+    NodeQueryStringStats() {
+    }
+
+    /**
+     * @param stats result of QueryStringStats#toMap
+     */
+    public NodeQueryStringStats(DiscoveryNode node, Map<String, Object> stats) {
+        super(node);
+        this.stats = stats;
+    }
+
+    /**
+     * The stats in the shape returned by QueryStringStats#toMap.
+     */
+    public Map<String, Object> getStats() {
+        return stats;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        stats = in.readMap();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeMap(stats);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.field("name", getNode().name());
+        builder.field("transport_address", getNode().address().toString());
+        builder.field("host", getNode().getHostName());
+        builder.field("qsppp", stats);
+        return builder;
+    }
+}
@@ -0,0 +1,130 @@
+package org.wikimedia.search.querystring.elasticsearch.stats;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.common.cache.CacheStats;
+import org.wikimedia.search.querystring.query.CompiledRegexCache;
+import org.wikimedia.search.querystring.query.Degradations;
+import org.wikimedia.search.querystring.query.Fallbacks;
+import org.wikimedia.search.querystring.query.ParseProfile;
+import org.wikimedia.search.querystring.query.ParseProfile.Phase;
+
+/**
+ * Everything this node counts about the queries it parses. Safe to share
+ * between threads.
+ */
+public class QueryStringStats {
+    private final CompiledRegexCache regexCache;
+    private final AtomicLong parses = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong parseErrors = new AtomicLong();
+    private final Map<Phase, LatencyHistogram> latency = new EnumMap<>(Phase.class);
+    private final Degradations degradations = new Degradations();
+    private final Fallbacks fallbacks = new Fallbacks();
+
+    /**
+     * @param regexCache cache whose hit rate is reported with the rest of
+     *            the stats
+     */
+    public QueryStringStats(CompiledRegexCache regexCache) {
+        this.regexCache = regexCache;
+        for (Phase phase : Phase.values()) {
+            latency.put(phase, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * Count a query that was parsed and built.
+     */
+    public void parsed() {
+        parses.incrementAndGet();
+    }
+
+    /**
+     * Count a query that couldn't be parsed or built.
+     */
+    public void failed() {
+        failures.incrementAndGet();
+    }
+
+    /**
+     * Count a query with a syntax error the grammar couldn't recover from.
+     */
+    public void parseError() {
+        parseErrors.incrementAndGet();
+    }
+
+    public long getParses() {
+        return parses.get();
+    }
+
+    /**
+     * Time spent in a phase of building queries.
+     */
+    public LatencyHistogram getLatency(Phase phase) {
+        return latency.get(phase);
+    }
+
+    /**
+     * Record the time a query spent in each phase.
+     */
+    public void record(ParseProfile profile) {
+        for (Map.Entry<Phase, LatencyHistogram> phase : latency.entrySet()) {
+            phase.getValue().record(profile.getNanos(phase.getKey()));
+        }
+    }
+
+    public Degradations getDegradations() {
+        return degradations;
+    }
+
+    public Fallbacks getFallbacks() {
+        return fallbacks;
+    }
+
+    /**
+     * Copy of the stats in a form that can be sent to other nodes and
+     * rendered as xcontent.
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("parses", parses.get());
+        map.put("failures", failures.get());
+
+        Map<String, Object> latencyMap = new LinkedHashMap<>();
+        for (Map.Entry<Phase, LatencyHistogram> phase : latency.entrySet()) {
+            latencyMap.put(phase.getKey().name().toLowerCase(Locale.ROOT), phase.getValue().toMap());
+        }
+        map.put("latency", latencyMap);
+
+        CacheStats cacheStats = regexCache.stats();
+        Map<String, Object> regexCacheMap = new LinkedHashMap<>();
+        regexCacheMap.put("hit_count", cacheStats.hitCount());
+        regexCacheMap.put("miss_count", cacheStats.missCount());
+        regexCacheMap.put("hit_rate", cacheStats.hitRate());
+        regexCacheMap.put("eviction_count", cacheStats.evictionCount());
+        regexCacheMap.put("estimated_size_in_bytes", regexCache.estimatedBytes());
+        map.put("regex_cache", regexCacheMap);
+
+        Map<String, Object> fallbackMap = new LinkedHashMap<>();
+        fallbackMap.put("unauthorized_field", fallbacks.getUnauthorizedField());
+        fallbackMap.put("leading_wildcard", fallbacks.getLeadingWildcard());
+        fallbackMap.put("prefix", fallbacks.getPrefix());
+        fallbackMap.put("regex_unsupported", fallbacks.getRegexUnsupported());
+        fallbackMap.put("parse_error", parseErrors.get());
+        map.put("fallbacks", fallbackMap);
+
+        Map<String, Object> degradationMap = new LinkedHashMap<>();
+        degradationMap.put("fuzzy", degradations.getFuzzy());
+        degradationMap.put("prefix", degradations.getPrefix());
+        degradationMap.put("wildcard", degradations.getWildcard());
+        degradationMap.put("regex", degradations.getRegex());
+        degradationMap.put("sloppy_phrase", degradations.getSloppyPhrase());
+        map.put("degradations", degradationMap);
+        return map;
+    }
+}
@@ -0,0 +1,27 @@
+package org.wikimedia.search.querystring.elasticsearch.stats;
+
+import org.elasticsearch.action.admin.cluster.ClusterAction;
+import org.elasticsearch.client.ClusterAdminClient;
+
+/**
+ * Fetches qsppp's stats from some or all of the nodes.
+ */
+public class QueryStringStatsAction extends
+        ClusterAction<QueryStringStatsRequest, QueryStringStatsResponse, QueryStringStatsRequestBuilder> {
+    public static final QueryStringStatsAction INSTANCE = new QueryStringStatsAction();
+    public static final String NAME = "cluster:monitor/nodes/qsppp/stats";
+
+    private QueryStringStatsAction() {
+        super(NAME);
+    }
+
+    @Override
+    public QueryStringStatsResponse newResponse() {
+        return new QueryStringStatsResponse();
+    }
+
+    @Override
+    public QueryStringStatsRequestBuilder newRequestBuilder(ClusterAdminClient client) {
+        return new QueryStringStatsRequestBuilder(client);
+    }
+}
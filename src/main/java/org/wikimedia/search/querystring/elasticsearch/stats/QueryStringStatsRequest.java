@@ -0,0 +1,15 @@
+package org.wikimedia.search.querystring.elasticsearch.stats;
+
+import org.elasticsearch.action.support.nodes.NodesOperationRequest;
+
+/**
+ * Request for qsppp's stats from some or all of the nodes.
+ */
+public class QueryStringStatsRequest extends NodesOperationRequest<QueryStringStatsRequest> {
+    /**
+     * @param nodesIds nodes to ask or none to ask all of them
+     */
+    public QueryStringStatsRequest(String... nodesIds) {
+        super(nodesIds);
+    }
+}
@@ -0,0 +1,17 @@
+package org.wikimedia.search.querystring.elasticsearch.stats;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.support.nodes.NodesOperationRequestBuilder;
+import org.elasticsearch.client.ClusterAdminClient;
+
+public class QueryStringStatsRequestBuilder extends
+        NodesOperationRequestBuilder<QueryStringStatsRequest, QueryStringStatsResponse, QueryStringStatsRequestBuilder> {
+    public QueryStringStatsRequestBuilder(ClusterAdminClient client) {
+        super(client, new QueryStringStatsRequest());
+    }
+
+    @Override
+    protected void doExecute(ActionListener<QueryStringStatsResponse> listener) {
+        client.execute(QueryStringStatsAction.INSTANCE, request, listener);
+    }
+}
@@ -0,0 +1,54 @@
+package org.wikimedia.search.querystring.elasticsearch.stats;
+
+import java.io.IOException;
+
+import org.elasticsearch.action.support.nodes.NodesOperationResponse;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/**
+ * qsppp's stats from each node that was asked.
+ */
+public class QueryStringStatsResponse extends NodesOperationResponse<NodeQueryStringStats> implements ToXContent {
+    QueryStringStatsResponse() {
+    }
+
+    public QueryStringStatsResponse(ClusterName clusterName, NodeQueryStringStats[] nodes) {
+        super(clusterName, nodes);
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        nodes = new NodeQueryStringStats[in.readVInt()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = new NodeQueryStringStats();
+            nodes[i].readFrom(in);
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeVInt(nodes.length);
+        for (NodeQueryStringStats node : nodes) {
+            node.writeTo(out);
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.field("cluster_name", getClusterName().value());
+        builder.startObject("nodes");
+        for (NodeQueryStringStats node : nodes) {
+            builder.startObject(node.getNode().id());
+            node.toXContent(builder, params);
+            builder.endObject();
+        }
+        builder.endObject();
+        return builder;
+    }
+}
@@ -0,0 +1,33 @@
+package org.wikimedia.search.querystring.elasticsearch.stats;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.action.support.RestToXContentListener;
+
+/**
+ * Exposes qsppp's stats at _nodes/stats/qsppp like the rest of the node stats.
+ */
+public class RestQueryStringStatsAction extends BaseRestHandler {
+    @Inject
+    public RestQueryStringStatsAction(Settings settings, RestController controller, Client client) {
+        super(settings, controller, client);
+        controller.registerHandler(GET, "/_nodes/stats/qsppp", this);
+        controller.registerHandler(GET, "/_nodes/{nodeId}/stats/qsppp", this);
+    }
+
+    @Override
+    protected void handleRequest(RestRequest request, RestChannel channel, Client client) throws Exception {
+        QueryStringStatsRequest statsRequest = new QueryStringStatsRequest(Strings.splitStringByCommaToArray(request.param("nodeId")));
+        statsRequest.listenerThreaded(false);
+        client.admin().cluster()
+                .execute(QueryStringStatsAction.INSTANCE, statsRequest, new RestToXContentListener<QueryStringStatsResponse>(channel));
+    }
+}
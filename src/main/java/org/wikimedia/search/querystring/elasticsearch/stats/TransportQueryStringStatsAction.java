@@ -0,0 +1,93 @@
+package org.wikimedia.search.querystring.elasticsearch.stats;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.nodes.NodeOperationRequest;
+import org.elasticsearch.action.support.nodes.TransportNodesOperationAction;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.indices.query.IndicesQueriesRegistry;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+import org.wikimedia.search.querystring.elasticsearch.QueryStringPlusPlusPlusParser;
+
+/**
+ * Collects qsppp's stats from each node.
+ */
+public class TransportQueryStringStatsAction extends
+        TransportNodesOperationAction<QueryStringStatsRequest, QueryStringStatsResponse, TransportQueryStringStatsAction.NodeRequest, NodeQueryStringStats> {
+    private final IndicesQueriesRegistry queriesRegistry;
+
+    @Inject
+    public TransportQueryStringStatsAction(Settings settings, ClusterName clusterName, ThreadPool threadPool,
+            ClusterService clusterService, TransportService transportService, ActionFilters actionFilters,
+            IndicesQueriesRegistry queriesRegistry) {
+        super(settings, QueryStringStatsAction.NAME, clusterName, threadPool, clusterService, transportService, actionFilters);
+        this.queriesRegistry = queriesRegistry;
+    }
+
+    @Override
+    protected String executor() {
+        return ThreadPool.Names.MANAGEMENT;
+    }
+
+    @Override
+    protected QueryStringStatsRequest newRequest() {
+        return new QueryStringStatsRequest();
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    protected QueryStringStatsResponse newResponse(QueryStringStatsRequest request, AtomicReferenceArray responses) {
+        List<NodeQueryStringStats> nodes = new ArrayList<>();
+        for (int i = 0; i < responses.length(); i++) {
+            Object response = responses.get(i);
+            if (response instanceof NodeQueryStringStats) {
+                nodes.add((NodeQueryStringStats) response);
+            }
+        }
+        return new QueryStringStatsResponse(clusterName, nodes.toArray(new NodeQueryStringStats[nodes.size()]));
+    }
+
+    @Override
+    protected NodeRequest newNodeRequest() {
+        return new NodeRequest();
+    }
+
+    @Override
+    protected NodeRequest newNodeRequest(String nodeId, QueryStringStatsRequest request) {
+        return new NodeRequest(nodeId, request);
+    }
+
+    @Override
+    protected NodeQueryStringStats newNodeResponse() {
+        return new NodeQueryStringStats();
+    }
+
+    @Override
+    protected NodeQueryStringStats nodeOperation(NodeRequest request) throws ElasticsearchException {
+        QueryStringPlusPlusPlusParser parser = (QueryStringPlusPlusPlusParser) queriesRegistry.queryParsers().get(
+                QueryStringPlusPlusPlusParser.NAMES[0]);
+        return new NodeQueryStringStats(clusterService.localNode(), parser.stats().toMap());
+    }
+
+    @Override
+    protected boolean accumulateExceptions() {
+        return false;
+    }
+
+    static class NodeRequest extends NodeOperationRequest {
+        NodeRequest() {
+        }
+
+        NodeRequest(String nodeId, QueryStringStatsRequest request) {
+            super(request, nodeId);
+        }
+    }
+}
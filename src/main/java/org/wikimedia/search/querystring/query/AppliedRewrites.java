@@ -0,0 +1,91 @@
+package org.wikimedia.search.querystring.query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The rewrites applied while building a single query, in the order they were
+ * applied. Used to explain why a query came out the way it did. Not thread
+ * safe - each query gets its own.
+ */
+public class AppliedRewrites {
+    public enum Type {
+        /**
+         * Leading wildcard reversed and run against the reverse_precise field.
+         */
+        REVERSE_PRECISE,
+        /**
+         * Prefix looked up as a single term in the prefix_precise field.
+         */
+        PREFIX_PRECISE,
+        /**
+         * Regex accelerated by the trigrams in the ngram field.
+         */
+        NGRAM_REGEX,
+        /**
+         * Clause became a term query because it couldn't be built as asked.
+         */
+        FALLBACK_TO_TERM,
+        /**
+         * Clause replaced with something cheaper because the query was
+         * degraded.
+         */
+        DEGRADED;
+
+        public String getName() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private final List<Rewrite> rewrites = new ArrayList<>();
+
+    /**
+     * Record a rewrite.
+     *
+     * @param field field the rewritten clause runs against
+     * @param detail what was rewritten and why
+     */
+    public void record(Type type, String field, String detail) {
+        rewrites.add(new Rewrite(type, field, detail));
+    }
+
+    public List<Rewrite> getRewrites() {
+        return Collections.unmodifiableList(rewrites);
+    }
+
+    @Override
+    public String toString() {
+        return rewrites.toString();
+    }
+
+    public static class Rewrite {
+        private final Type type;
+        private final String field;
+        private final String detail;
+
+        public Rewrite(Type type, String field, String detail) {
+            this.type = type;
+            this.field = field;
+            this.detail = detail;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        public String getField() {
+            return field;
+        }
+
+        public String getDetail() {
+            return detail;
+        }
+
+        @Override
+        public String toString() {
+            return type.getName() + "[" + field + "]: " + detail;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package org.wikimedia.search.querystring.query;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.FuzzyQuery;
+import org.apache.lucene.search.MultiTermQuery;
+import org.apache.lucene.search.MultiTermQuery.RewriteMethod;
+import org.apache.lucene.search.MultiTermQuery.TopTermsScoringBooleanQueryRewrite;
+import org.apache.lucene.search.Query;
+
+/**
+ * Picks a rewrite method for each multi term query based on the number of
+ * unique terms it matches in the shard. Queries that match only a few terms
+ * are rewritten into a scoring boolean query so the rarer terms score higher.
+ * Fuzzy queries that match more terms keep only the terms closest to what
+ * the user typed, just like FuzzyQuery's default rewrite. Other queries that
+ * match more terms use a constant score filter so they never build huge
+ * boolean queries.
+ */
+public class AutoRewriteMethod extends ExpandingRewriteMethod {
+    /**
+     * Queries that match at most this many terms use a scoring boolean query.
+     */
+    public static final int DEFAULT_MAX_SCORING_TERMS = 16;
+
+    private final int topTermsSize;
+    private final int maxScoringTerms;
+
+    /**
+     * @param topTermsSize number of terms fuzzy queries use
+     */
+    public AutoRewriteMethod(int topTermsSize) {
+        this(topTermsSize, DEFAULT_MAX_SCORING_TERMS);
+    }
+
+    /**
+     * @param topTermsSize number of terms fuzzy queries use
+     * @param maxScoringTerms queries that match at most this many terms use a
+     *            scoring boolean query
+     */
+    public AutoRewriteMethod(int topTermsSize, int maxScoringTerms) {
+        this.topTermsSize = topTermsSize;
+        this.maxScoringTerms = maxScoringTerms;
+    }
+
+    @Override
+    public Query rewrite(IndexReader reader, MultiTermQuery query) throws IOException {
+        // One extra so we can tell when there are too many
+        Expansion expansion = expand(reader, query, maxScoringTerms + 1);
+        if (expansion.size() <= maxScoringTerms) {
+            // We've already read all the terms so build them rather than reading them again
+            return expansion.scoringQuery();
+        }
+        return pick(query, expansion.size()).rewrite(reader, query);
+    }
+
+    /**
+     * Pick the rewrite method to use for query.
+     *
+     * @param terms number of unique terms the query matches, or at least
+     *            one more than maxScoringTerms if it matches more than that
+     */
+    RewriteMethod pick(MultiTermQuery query, int terms) {
+        if (terms <= maxScoringTerms) {
+            return MultiTermQuery.SCORING_BOOLEAN_QUERY_REWRITE;
+        }
+        if (query instanceof FuzzyQuery) {
+            return new TopTermsScoringBooleanQueryRewrite(topTermsSize);
+        }
+        return MultiTermQuery.CONSTANT_SCORE_FILTER_REWRITE;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        AutoRewriteMethod other = (AutoRewriteMethod) obj;
+        return topTermsSize == other.topTermsSize && maxScoringTerms == other.maxScoringTerms;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * topTermsSize + maxScoringTerms;
+    }
+}
@@ -1,9 +1,15 @@
 package org.wikimedia.search.querystring.query;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
 import org.elasticsearch.common.lucene.search.Queries;
 
 /**
@@ -22,7 +28,7 @@ public class BasicQueryBuilder implements QueryBuilder {
             for (FieldUsage field : fields) {
                 fieldBuilders.add(buildFieldQueryBuilder(field));
             }
-            fieldQueryBuilder = new MultiFieldQueryBuilder(fieldBuilders);
+            fieldQueryBuilder = new MultiFieldQueryBuilder(fieldBuilders, fields, fieldQuerySettings);
         }
     }
 
@@ -76,11 +82,55 @@ public class BasicQueryBuilder implements QueryBuilder {
         return fieldQueryBuilder.fieldExists();
     }
 
+    @Override
+    public boolean isCommon(Query query) {
+        float cutoffFrequency = fieldQuerySettings.getCutoffFrequency();
+        IndexReader reader = fieldQuerySettings.getIndexReader();
+        if (cutoffFrequency <= 0 || reader == null) {
+            return false;
+        }
+        int maxDocFreq;
+        if (cutoffFrequency >= 1) {
+            maxDocFreq = (int) cutoffFrequency;
+        } else {
+            maxDocFreq = (int) Math.ceil(cutoffFrequency * reader.maxDoc());
+        }
+        try {
+            return isCommon(reader, maxDocFreq, query);
+        } catch (IOException e) {
+            throw new RuntimeException("Unexpected IOException checking term frequencies", e);
+        }
+    }
+
     @Override
     public String toString() {
         return fieldQueryBuilder.toString();
     }
 
+    /**
+     * Is the query a term query, or a disjunction of term queries like we build
+     * for multiple fields or synonyms, where every term has a docFreq greater
+     * than maxDocFreq?
+     */
+    private boolean isCommon(IndexReader reader, int maxDocFreq, Query query) throws IOException {
+        if (query instanceof TermQuery) {
+            return reader.docFreq(((TermQuery) query).getTerm()) > maxDocFreq;
+        }
+        if (!(query instanceof BooleanQuery)) {
+            return false;
+        }
+        BooleanQuery bq = (BooleanQuery) query;
+        if (bq.clauses().isEmpty() || bq.getMinimumNumberShouldMatch() > 1) {
+            return false;
+        }
+        for (BooleanClause clause : bq.clauses()) {
+            if (clause.getOccur() != Occur.SHOULD || !isCommon(reader, maxDocFreq, clause.getQuery())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Builds the field queries based on field definitions.
      */
@@ -0,0 +1,268 @@
+package org.wikimedia.search.querystring.query;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.RegexpQuery;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.automaton.Automaton;
+import org.apache.lucene.util.automaton.CharacterRunAutomaton;
+import org.apache.lucene.util.automaton.RegExp;
+import org.apache.lucene.util.automaton.TooComplexToDeterminizeException;
+import org.elasticsearch.common.base.Optional;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.cache.CacheStats;
+import org.elasticsearch.common.cache.Weigher;
+import org.elasticsearch.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Node level cache of compiled regexes and the ngrams extracted from them so
+ * repeated regex searches don't have to compile them again. Everything in the
+ * cache is immutable or copied before it is handed out so it is safe to share
+ * between requests. The cache is sized by an estimate of the memory its
+ * entries use because a single compiled regex can be thousands of times larger
+ * than another.
+ */
+public class CompiledRegexCache {
+    /**
+     * Rough size of a query object without the things it references.
+     */
+    private static final long QUERY_BYTES = 64;
+
+    private final Cache<List<Object>, Entry> cache;
+
+    /**
+     * @param maxBytes maximum estimated bytes of compiled regexes to keep
+     */
+    public CompiledRegexCache(long maxBytes) {
+        cache = CacheBuilder.newBuilder().maximumWeight(maxBytes).weigher(new Weigher<List<Object>, Entry>() {
+            @Override
+            public int weigh(List<Object> key, Entry entry) {
+                return (int) Math.min(entry.bytes, Integer.MAX_VALUE);
+            }
+        }).recordStats().build();
+    }
+
+    /**
+     * Build a RegexpQuery, reusing the compiled automaton if possible.
+     */
+    public RegexpQuery regexpQuery(final Term term, final int flags, final int maxDeterminizedStates, RegexStats stats) {
+        List<Object> key = Arrays.<Object> asList("regexp", term, flags, maxDeterminizedStates);
+        RegexpQuery query = get(key, stats, new Loader<RegexpQuery>() {
+            @Override
+            public RegexpQuery load() {
+                return new RegexpQuery(term, flags, maxDeterminizedStates);
+            }
+
+            @Override
+            public long states(RegexpQuery loaded) {
+                return loaded.getAutomaton().getNumStates();
+            }
+
+            @Override
+            public long bytes(RegexpQuery loaded) {
+                return QUERY_BYTES + automatonBytes(loaded.getAutomaton());
+            }
+        });
+        // Queries are mutable so we can't hand out the cached copy
+        return (RegexpQuery) query.clone();
+    }
+
+    /**
+     * Build an automaton that accepts strings containing a match for the
+     * regex anywhere.
+     *
+     * @throws TooComplexToDeterminizeException if the automaton needs more
+     *             than maxDeterminizedStates states
+     */
+    public CharacterRunAutomaton matchAnywhere(final String regex, final int flags, final int maxDeterminizedStates, RegexStats stats) {
+        List<Object> key = Arrays.<Object> asList("anywhere", regex, flags, maxDeterminizedStates);
+        return get(key, stats, new Loader<CharacterRunAutomaton>() {
+            private Automaton automaton;
+
+            @Override
+            public CharacterRunAutomaton load() {
+                automaton = new RegExp(".*(" + regex + ").*", flags).toAutomaton(maxDeterminizedStates);
+                return new CharacterRunAutomaton(automaton, maxDeterminizedStates);
+            }
+
+            @Override
+            public long states(CharacterRunAutomaton loaded) {
+                return automaton.getNumStates();
+            }
+
+            @Override
+            public long bytes(CharacterRunAutomaton loaded) {
+                return automatonBytes(automaton);
+            }
+        });
+    }
+
+    /**
+     * Build the ngram prefilter for a regex without limiting the number of
+     * alternatives.
+     *
+     * @return the prefilter or null if there isn't one
+     * @see RegexNGrams#prefilter(String, String, int, Locale)
+     */
+    public Query ngramPrefilter(String regex, String ngramField, int gramSize, Locale locale, RegexStats stats) {
+        return ngramPrefilter(regex, ngramField, gramSize, Integer.MAX_VALUE, locale, stats);
+    }
+
+    /**
+     * Build the ngram prefilter for a regex.
+     *
+     * @return the prefilter or null if there isn't one
+     * @see RegexNGrams#prefilter(String, String, int, int, Locale)
+     */
+    public Query ngramPrefilter(final String regex, final String ngramField, final int gramSize, final int maxExpand,
+            final Locale locale, RegexStats stats) {
+        if (ngramField == null) {
+            return null;
+        }
+        List<Object> key = Arrays.<Object> asList("ngram", regex, ngramField, gramSize, maxExpand, locale);
+        Optional<Query> prefilter = get(key, stats, new Loader<Optional<Query>>() {
+            @Override
+            public Optional<Query> load() {
+                return Optional.fromNullable(RegexNGrams.prefilter(regex, ngramField, gramSize, maxExpand, locale));
+            }
+
+            @Override
+            public long states(Optional<Query> loaded) {
+                return 0;
+            }
+
+            @Override
+            public long bytes(Optional<Query> loaded) {
+                return loaded.isPresent() ? queryBytes(loaded.get()) : 0;
+            }
+        });
+        return prefilter.isPresent() ? deepCopy(prefilter.get()) : null;
+    }
+
+    /**
+     * Stats for the whole cache.
+     */
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    /**
+     * Estimated bytes used by everything in the cache.
+     */
+    public long estimatedBytes() {
+        long bytes = 0;
+        for (Entry entry : cache.asMap().values()) {
+            bytes += entry.bytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * Estimate the bytes used by an automaton and the run automaton built
+     * from it. Automatons keep two ints per state and three per transition
+     * and the run automaton's transition table is about the same size again.
+     */
+    static long automatonBytes(Automaton automaton) {
+        long transitions = 0;
+        for (int state = 0; state < automaton.getNumStates(); state++) {
+            transitions += automaton.getNumTransitions(state);
+        }
+        return 2 * (automaton.getNumStates() * 2L + transitions * 3L) * RamUsageEstimator.NUM_BYTES_INT;
+    }
+
+    /**
+     * Copy a prefilter. BooleanQuery#clone shares its clauses so we copy them
+     * too.
+     */
+    private static Query deepCopy(Query query) {
+        if (!(query instanceof BooleanQuery)) {
+            return query.clone();
+        }
+        BooleanQuery original = (BooleanQuery) query;
+        BooleanQuery copy = new BooleanQuery(original.isCoordDisabled());
+        copy.setBoost(original.getBoost());
+        copy.setMinimumNumberShouldMatch(original.getMinimumNumberShouldMatch());
+        for (BooleanClause clause : original.clauses()) {
+            copy.add(deepCopy(clause.getQuery()), clause.getOccur());
+        }
+        return copy;
+    }
+
+    private static long queryBytes(Query query) {
+        if (query instanceof BooleanQuery) {
+            long bytes = QUERY_BYTES;
+            for (BooleanClause clause : ((BooleanQuery) query).clauses()) {
+                bytes += QUERY_BYTES + queryBytes(clause.getQuery());
+            }
+            return bytes;
+        }
+        if (query instanceof TermQuery) {
+            return QUERY_BYTES + ((TermQuery) query).getTerm().bytes().length;
+        }
+        return QUERY_BYTES;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T get(List<Object> key, RegexStats stats, final Loader<T> loader) {
+        final boolean[] loaded = new boolean[1];
+        try {
+            Entry entry = cache.get(key, new Callable<Entry>() {
+                @Override
+                public Entry call() {
+                    loaded[0] = true;
+                    T value = loader.load();
+                    return new Entry(value, loader.states(value), loader.bytes(value));
+                }
+            });
+            if (loaded[0]) {
+                stats.miss(entry.states);
+            } else {
+                stats.hit();
+            }
+            return (T) entry.value;
+        } catch (UncheckedExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Unexpected checked exception compiling a regex", e.getCause());
+        }
+    }
+
+    private interface Loader<T> {
+        T load();
+
+        /**
+         * How many states were built loading the result.
+         */
+        long states(T loaded);
+
+        /**
+         * Estimated bytes the result uses.
+         */
+        long bytes(T loaded);
+    }
+
+    private static class Entry {
+        private final Object value;
+        private final long states;
+        private final long bytes;
+
+        Entry(Object value, long states, long bytes) {
+            this.value = value;
+            this.states = states;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -91,4 +91,9 @@ public class DefaultingQueryBuilder implements QueryBuilder {
     public Query matchAll() {
         return delegate.matchAll();
     }
+
+    @Override
+    public boolean isCommon(Query query) {
+        return delegate.isCommon(query);
+    }
 }
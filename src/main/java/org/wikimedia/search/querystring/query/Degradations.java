@@ -0,0 +1,81 @@
+package org.wikimedia.search.querystring.query;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts expensive constructs that were replaced with cheaper ones because
+ * the node was under pressure. Safe to share between threads.
+ */
+public class Degradations {
+    private final AtomicLong fuzzy = new AtomicLong();
+    private final AtomicLong prefix = new AtomicLong();
+    private final AtomicLong wildcard = new AtomicLong();
+    private final AtomicLong regex = new AtomicLong();
+    private final AtomicLong sloppyPhrase = new AtomicLong();
+
+    /**
+     * Fuzzy queries replaced with term queries.
+     */
+    public long getFuzzy() {
+        return fuzzy.get();
+    }
+
+    /**
+     * Prefix queries replaced with term queries.
+     */
+    public long getPrefix() {
+        return prefix.get();
+    }
+
+    /**
+     * Wildcard queries replaced with term queries.
+     */
+    public long getWildcard() {
+        return wildcard.get();
+    }
+
+    /**
+     * Regex queries replaced with term queries.
+     */
+    public long getRegex() {
+        return regex.get();
+    }
+
+    /**
+     * Sloppy phrase queries replaced with exact phrase queries.
+     */
+    public long getSloppyPhrase() {
+        return sloppyPhrase.get();
+    }
+
+    public long getTotal() {
+        return getFuzzy() + getPrefix() + getWildcard() + getRegex() + getSloppyPhrase();
+    }
+
+    void fuzzy() {
+        fuzzy.incrementAndGet();
+    }
+
+    void prefix() {
+        prefix.incrementAndGet();
+    }
+
+    void wildcard() {
+        wildcard.incrementAndGet();
+    }
+
+    void regex() {
+        regex.incrementAndGet();
+    }
+
+    void sloppyPhrase() {
+        sloppyPhrase.incrementAndGet();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "fuzzy=%s prefix=%s wildcard=%s regex=%s sloppy_phrase=%s", getFuzzy(), getPrefix(),
+                getWildcard(), getRegex(), getSloppyPhrase());
+    }
+}
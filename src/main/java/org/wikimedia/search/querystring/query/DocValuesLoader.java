@@ -0,0 +1,56 @@
+package org.wikimedia.search.querystring.query;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.SlowCompositeReaderWrapper;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.wikimedia.search.extra.util.FieldValues;
+
+/**
+ * Loads field values from doc values. Much cheaper than loading _source
+ * because it doesn't need to decompress and parse the whole document. Note
+ * that doc values are sorted and deduplicated so this won't return the values
+ * in the order they were indexed.
+ */
+public class DocValuesLoader implements FieldValues.Loader {
+    public static final DocValuesLoader INSTANCE = new DocValuesLoader();
+
+    private DocValuesLoader() {
+    }
+
+    @Override
+    public List<String> load(String path, IndexReader reader, int docId) throws IOException {
+        // Filters get per segment readers so this is almost always a noop
+        AtomicReader atomic = SlowCompositeReaderWrapper.wrap(reader);
+        SortedSetDocValues sortedSet = atomic.getSortedSetDocValues(path);
+        if (sortedSet != null) {
+            sortedSet.setDocument(docId);
+            List<String> values = new ArrayList<>();
+            long ord;
+            while ((ord = sortedSet.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS) {
+                values.add(sortedSet.lookupOrd(ord).utf8ToString());
+            }
+            return values;
+        }
+        SortedDocValues sorted = atomic.getSortedDocValues(path);
+        if (sorted != null) {
+            int ord = sorted.getOrd(docId);
+            if (ord < 0) {
+                return Collections.emptyList();
+            }
+            return Collections.singletonList(sorted.lookupOrd(ord).utf8ToString());
+        }
+        return Collections.emptyList();
+    }
+
+    @Override
+    public String toString() {
+        return "doc_values";
+    }
+}
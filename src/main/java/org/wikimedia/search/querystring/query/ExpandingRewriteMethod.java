@@ -0,0 +1,121 @@
+package org.wikimedia.search.querystring.query;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.queries.TermsFilter;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostAttribute;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.MultiTermQuery;
+import org.apache.lucene.search.MultiTermQuery.ConstantScoreAutoRewrite;
+import org.apache.lucene.search.MultiTermQuery.RewriteMethod;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.AttributeSource;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Rewrite method that looks at the terms a multi term query matches before
+ * deciding how to rewrite it. Terms come from a view merged across every
+ * segment so a term in many segments is only seen once and the terms that
+ * were read can be built straight into the rewritten query rather than read
+ * again.
+ */
+abstract class ExpandingRewriteMethod extends RewriteMethod {
+    /**
+     * Read up to max of the terms that query matches in the shard.
+     */
+    protected Expansion expand(IndexReader reader, MultiTermQuery query, int max) throws IOException {
+        Expansion expansion = new Expansion(query);
+        Terms terms = MultiFields.getTerms(reader, query.getField());
+        if (terms == null) {
+            return expansion;
+        }
+        TermsEnum termsEnum = getTermsEnum(query, terms, new AttributeSource());
+        BoostAttribute boost = termsEnum.attributes().addAttribute(BoostAttribute.class);
+        BytesRef term;
+        while (expansion.size() < max && (term = termsEnum.next()) != null) {
+            expansion.add(BytesRef.deepCopyOf(term), boost.getBoost());
+        }
+        return expansion;
+    }
+
+    /**
+     * Terms read from the shard for a multi term query.
+     */
+    static class Expansion {
+        private final MultiTermQuery query;
+        private final List<BytesRef> terms = new ArrayList<>();
+        private final List<Float> boosts = new ArrayList<>();
+
+        Expansion(MultiTermQuery query) {
+            this.query = query;
+        }
+
+        private void add(BytesRef term, float boost) {
+            terms.add(term);
+            boosts.add(boost);
+        }
+
+        /**
+         * Number of terms read.
+         */
+        int size() {
+            return terms.size();
+        }
+
+        /**
+         * Build the terms into the query that method would have built from
+         * them. Only valid if every term the query matches was read.
+         *
+         * @return the query or null if method isn't one that can be built
+         *         from the terms
+         */
+        Query build(RewriteMethod method) {
+            if (method == MultiTermQuery.SCORING_BOOLEAN_QUERY_REWRITE) {
+                return scoringQuery();
+            }
+            if (method == MultiTermQuery.CONSTANT_SCORE_FILTER_REWRITE || method == MultiTermQuery.CONSTANT_SCORE_BOOLEAN_QUERY_REWRITE
+                    || method instanceof ConstantScoreAutoRewrite) {
+                return constantScoreQuery();
+            }
+            return null;
+        }
+
+        /**
+         * A boolean query with a clause for each term like
+         * SCORING_BOOLEAN_QUERY_REWRITE builds.
+         */
+        Query scoringQuery() {
+            BooleanQuery bq = new BooleanQuery(true);
+            for (int i = 0; i < terms.size(); i++) {
+                TermQuery tq = new TermQuery(new Term(query.getField(), terms.get(i)));
+                tq.setBoost(query.getBoost() * boosts.get(i));
+                bq.add(tq, Occur.SHOULD);
+            }
+            return bq;
+        }
+
+        /**
+         * A constant score query matching any of the terms. Uses a filter so
+         * it doesn't care how many terms there are.
+         */
+        Query constantScoreQuery() {
+            if (terms.isEmpty()) {
+                // Matches nothing just like rewriting into an empty boolean query
+                return new BooleanQuery(true);
+            }
+            ConstantScoreQuery csq = new ConstantScoreQuery(new TermsFilter(query.getField(), terms));
+            csq.setBoost(query.getBoost());
+            return csq;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package org.wikimedia.search.querystring.query;
+
+import java.io.IOException;
+import java.util.Objects;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.FuzzyQuery;
+import org.apache.lucene.search.MultiTermQuery;
+import org.apache.lucene.search.MultiTermQuery.RewriteMethod;
+import org.apache.lucene.search.MultiTermQuery.TopTermsScoringBooleanQueryRewrite;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopTermsRewrite;
+import org.apache.lucene.search.spans.SpanMultiTermQueryWrapper.SpanRewriteMethod;
+import org.apache.lucene.search.spans.SpanMultiTermQueryWrapper.TopTermsSpanBooleanQueryRewrite;
+import org.apache.lucene.search.spans.SpanOrQuery;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+
+/**
+ * Number of terms that all the multi term queries in a query can expand into
+ * together. Each query counts its terms when it is rewritten and takes them
+ * from the budget. Queries that would expand into more terms than are left
+ * only get their best terms and once the budget is spent prefix and fuzzy
+ * queries become term queries and everything else gets its single best term.
+ * Terms are counted once no matter how many segments they are in.
+ */
+public class ExpansionBudget {
+    private static final ESLogger log = ESLoggerFactory.getLogger(ExpansionBudget.class.getPackage().getName());
+
+    private final int maxExpansions;
+    private int remaining;
+
+    public ExpansionBudget(int maxExpansions) {
+        this.maxExpansions = maxExpansions;
+        this.remaining = maxExpansions;
+    }
+
+    public int getMaxExpansions() {
+        return maxExpansions;
+    }
+
+    /**
+     * Number of terms left in the budget.
+     */
+    public int getRemaining() {
+        return remaining;
+    }
+
+    /**
+     * Wrap a rewrite method so it takes its terms from this budget.
+     *
+     * @param delegate rewrite method to use when the query fits in the budget
+     */
+    public RewriteMethod rewrite(RewriteMethod delegate) {
+        return new Rewrite(delegate, this);
+    }
+
+    /**
+     * Rewrite method for multi term queries in spans that takes its terms
+     * from this budget.
+     *
+     * @param size maximum number of terms to use if the budget allows
+     */
+    public SpanRewriteMethod spanRewrite(int size) {
+        return new SpanRewrite(size, this);
+    }
+
+    /**
+     * Take up to wanted terms from the budget.
+     *
+     * @return the number of terms granted which is less than wanted if the
+     *         budget doesn't have enough left
+     */
+    private int take(int wanted) {
+        int granted = Math.min(wanted, remaining);
+        remaining -= granted;
+        return granted;
+    }
+
+    /**
+     * Take exactly wanted terms from the budget if it has that many left.
+     *
+     * @return true if the terms were taken, false if the budget doesn't have
+     *         enough left in which case nothing is taken
+     */
+    boolean takeAll(int wanted) {
+        if (wanted > remaining) {
+            return false;
+        }
+        remaining -= wanted;
+        return true;
+    }
+
+    private boolean sameLimit(ExpansionBudget other) {
+        return maxExpansions == other.maxExpansions;
+    }
+
+    /**
+     * Rewrites using a delegate if the query fits in the budget and using the
+     * top terms if it doesn't.
+     */
+    private static class Rewrite extends ExpandingRewriteMethod {
+        private final RewriteMethod delegate;
+        private final ExpansionBudget budget;
+
+        public Rewrite(RewriteMethod delegate, ExpansionBudget budget) {
+            this.delegate = delegate;
+            this.budget = budget;
+        }
+
+        @Override
+        public Query rewrite(IndexReader reader, MultiTermQuery query) throws IOException {
+            if (delegate instanceof TopTermsRewrite) {
+                return topTerms(reader, query, ((TopTermsRewrite<?>) delegate).getSize());
+            }
+            // One extra so we can tell when the query doesn't fit
+            int wanted = (int) Math.min(budget.getRemaining() + 1L, Integer.MAX_VALUE);
+            Expansion expansion = expand(reader, query, wanted);
+            if (!budget.takeAll(expansion.size())) {
+                return topTerms(reader, query, Integer.MAX_VALUE);
+            }
+            // Every term was read so build them rather than reading them again if we can
+            RewriteMethod method = delegate;
+            if (delegate instanceof AutoRewriteMethod) {
+                method = ((AutoRewriteMethod) delegate).pick(query, expansion.size());
+            }
+            Query rewritten = expansion.build(method);
+            return rewritten == null ? method.rewrite(reader, query) : rewritten;
+        }
+
+        /**
+         * Rewrite into the top terms, using fewer of them if the budget
+         * doesn't have enough left. Reads the terms once and takes however
+         * many terms it used from the budget.
+         */
+        private Query topTerms(IndexReader reader, MultiTermQuery query, int size) throws IOException {
+            int limit = Math.min(size, budget.getRemaining());
+            if (limit < size && log.isDebugEnabled()) {
+                log.debug("Expansion budget of {} spent so limiting {} to {} terms", budget.getMaxExpansions(), query, limit);
+            }
+            if (limit == 0) {
+                if (query instanceof PrefixQuery) {
+                    return new TermQuery(((PrefixQuery) query).getPrefix());
+                }
+                if (query instanceof FuzzyQuery) {
+                    return new TermQuery(((FuzzyQuery) query).getTerm());
+                }
+            }
+            RewriteMethod method = delegate;
+            if (!(delegate instanceof TopTermsRewrite) || limit < size) {
+                method = new TopTermsScoringBooleanQueryRewrite(Math.max(limit, 1));
+            }
+            Query rewritten = method.rewrite(reader, query);
+            budget.take(rewritten instanceof BooleanQuery ? ((BooleanQuery) rewritten).clauses().size() : 1);
+            return rewritten;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            Rewrite other = (Rewrite) obj;
+            return Objects.equals(delegate, other.delegate) && budget.sameLimit(other.budget);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(delegate, budget.getMaxExpansions());
+        }
+    }
+
+    /**
+     * Rewrites into the top terms, using fewer terms if the budget doesn't
+     * have enough left.
+     */
+    private static class SpanRewrite extends SpanRewriteMethod {
+        private final int size;
+        private final ExpansionBudget budget;
+
+        public SpanRewrite(int size, ExpansionBudget budget) {
+            this.size = size;
+            this.budget = budget;
+        }
+
+        @Override
+        public SpanQuery rewrite(IndexReader reader, MultiTermQuery query) throws IOException {
+            int limit = Math.min(size, budget.getRemaining());
+            if (limit < size && log.isDebugEnabled()) {
+                log.debug("Expansion budget of {} spent so limiting {} to {} terms", budget.getMaxExpansions(), query, limit);
+            }
+            // Top terms rewrites read the terms once so take however many it used
+            SpanQuery rewritten = new TopTermsSpanBooleanQueryRewrite(Math.max(limit, 1)).rewrite(reader, query);
+            budget.take(rewritten instanceof SpanOrQuery ? ((SpanOrQuery) rewritten).getClauses().length : 1);
+            return rewritten;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            SpanRewrite other = (SpanRewrite) obj;
+            return size == other.size && budget.sameLimit(other.budget);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(size, budget.getMaxExpansions());
+        }
+    }
+}
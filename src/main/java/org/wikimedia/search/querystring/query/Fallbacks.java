@@ -0,0 +1,73 @@
+package org.wikimedia.search.querystring.query;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the times the parser couldn't build what the user asked for and
+ * built something simpler instead. Safe to share between threads.
+ */
+public class Fallbacks {
+    private final AtomicLong unauthorizedField = new AtomicLong();
+    private final AtomicLong leadingWildcard = new AtomicLong();
+    private final AtomicLong prefix = new AtomicLong();
+    private final AtomicLong regexUnsupported = new AtomicLong();
+
+    /**
+     * Fielded clauses that became term queries because none of their fields
+     * could be searched.
+     */
+    public long getUnauthorizedField() {
+        return unauthorizedField.get();
+    }
+
+    /**
+     * Wildcard queries that became term queries because leading wildcards
+     * aren't allowed.
+     */
+    public long getLeadingWildcard() {
+        return leadingWildcard.get();
+    }
+
+    /**
+     * Prefix queries that became term queries because prefixes aren't
+     * allowed or the prefix was too short.
+     */
+    public long getPrefix() {
+        return prefix.get();
+    }
+
+    /**
+     * Regex queries that became term queries because regexes aren't enabled
+     * or the field can't run them.
+     */
+    public long getRegexUnsupported() {
+        return regexUnsupported.get();
+    }
+
+    public long getTotal() {
+        return getUnauthorizedField() + getLeadingWildcard() + getPrefix() + getRegexUnsupported();
+    }
+
+    public void unauthorizedField() {
+        unauthorizedField.incrementAndGet();
+    }
+
+    void leadingWildcard() {
+        leadingWildcard.incrementAndGet();
+    }
+
+    void prefix() {
+        prefix.incrementAndGet();
+    }
+
+    void regexUnsupported() {
+        regexUnsupported.incrementAndGet();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "unauthorized_field=%s leading_wildcard=%s prefix=%s regex_unsupported=%s",
+                getUnauthorizedField(), getLeadingWildcard(), getPrefix(), getRegexUnsupported());
+    }
+}
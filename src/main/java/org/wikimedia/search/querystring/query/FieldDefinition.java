@@ -12,17 +12,32 @@ public class FieldDefinition {
     private final String prefixPrecise;
     private final String ngramField;
     private final int ngramFieldGramSize;
+    private final int prefixPreciseMinGram;
+    private final int prefixPreciseMaxGram;
 
+    /**
+     * @param prefixPreciseMinGram shortest edge ngram in the prefixPrecise
+     *            field or 0 if it isn't known
+     * @param prefixPreciseMaxGram longest edge ngram in the prefixPrecise
+     *            field or 0 if it isn't known or there isn't a limit
+     */
     public FieldDefinition(String standard, @Nullable String precise, @Nullable String reversePrecise, @Nullable String prefixPrecise,
-            String ngramField, int ngramFieldGramSize) {
+            int prefixPreciseMinGram, int prefixPreciseMaxGram, String ngramField, int ngramFieldGramSize) {
         this.standard = standard;
         this.precise = precise;
         this.reversePrecise = reversePrecise;
         this.prefixPrecise = prefixPrecise;
+        this.prefixPreciseMinGram = prefixPreciseMinGram;
+        this.prefixPreciseMaxGram = prefixPreciseMaxGram;
         this.ngramField = ngramField;
         this.ngramFieldGramSize = ngramFieldGramSize;
     }
 
+    public FieldDefinition(String standard, @Nullable String precise, @Nullable String reversePrecise, @Nullable String prefixPrecise,
+            String ngramField, int ngramFieldGramSize) {
+        this(standard, precise, reversePrecise, prefixPrecise, 0, 0, ngramField, ngramFieldGramSize);
+    }
+
     public FieldDefinition(String standard, @Nullable String precise) {
         this(standard, precise, null, null, null, -1);
     }
@@ -64,6 +79,22 @@ public class FieldDefinition {
         return prefixPrecise;
     }
 
+    /**
+     * Shortest edge ngram in the prefixPrecise field or 0 if it isn't known.
+     * Shorter prefixes can't be looked up in that field.
+     */
+    public int getPrefixPreciseMinGram() {
+        return prefixPreciseMinGram;
+    }
+
+    /**
+     * Longest edge ngram in the prefixPrecise field or 0 if it isn't known or
+     * there isn't a limit. Longer prefixes can't be looked up in that field.
+     */
+    public int getPrefixPreciseMaxGram() {
+        return prefixPreciseMaxGram;
+    }
+
     /**
      * Field used by ngram accelerated regex search.
      */
@@ -88,6 +119,9 @@ public class FieldDefinition {
         }
         if (prefixPrecise != null) {
             b.append('*').append(prefixPrecise);
+            if (prefixPreciseMinGram > 0 || prefixPreciseMaxGram > 0) {
+                b.append('[').append(prefixPreciseMinGram).append(',').append(prefixPreciseMaxGram).append(']');
+            }
         }
         if (ngramField != null) {
             b.append('/').append(ngramField).append('(').append(ngramFieldGramSize).append(')');
@@ -2,6 +2,7 @@ package org.wikimedia.search.querystring.query;
 
 import java.util.List;
 
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.search.FuzzyQuery;
 import org.apache.lucene.search.MultiTermQuery.RewriteMethod;
 import org.apache.lucene.search.Query;
@@ -45,8 +46,20 @@ public interface FieldQueryBuilder {
         private int fuzzyMaxExpansions = FuzzyQuery.defaultMaxExpansions;
         private boolean allowLeadingWildcard;
         private boolean allowPrefix = true;
+        private int minPrefixLength = 0;
         private boolean shouldUseFieldNamesFieldForExists = false;
         private RegexQueryBuilder regexQueryBuilder = RegexQueryBuilder.NONE;
+        private FilterCache filterCache = FilterCache.NONE;
+        private boolean expandPhraseTerms = false;
+        private float cutoffFrequency = 0;
+        private IndexReader indexReader;
+        private TimeBudget timeBudget;
+        private ExpansionBudget expansionBudget;
+        private Degradations degradations;
+        private Fallbacks fallbacks = new Fallbacks();
+        private ParseProfile profile;
+        private AppliedRewrites rewrites;
+        private ParseEvents events = ParseEvents.NOOP;
 
         public int getMaxPhraseSlop() {
             return maxPhraseSlop;
@@ -125,6 +138,19 @@ public interface FieldQueryBuilder {
             this.allowPrefix = allowPrefix;
         }
 
+        /**
+         * Prefix queries shorter than this that can't be looked up in a
+         * prefix field are searched as terms rather than expanded because
+         * they'd match too many terms. Defaults to 0 which disables this.
+         */
+        public int getMinPrefixLength() {
+            return minPrefixLength;
+        }
+
+        public void setMinPrefixLength(int minPrefixLength) {
+            this.minPrefixLength = minPrefixLength;
+        }
+
         public boolean getShouldUseFieldNamesFieldForExists() {
             return shouldUseFieldNamesFieldForExists;
         }
@@ -140,5 +166,145 @@ public interface FieldQueryBuilder {
         public void setRegexQueryBuilder(RegexQueryBuilder regexQueryBuilder) {
             this.regexQueryBuilder = regexQueryBuilder;
         }
+
+        /**
+         * Cache for filters that are expensive to build but don't change from
+         * query to query.
+         */
+        public FilterCache getFilterCache() {
+            return filterCache;
+        }
+
+        public void setFilterCache(FilterCache filterCache) {
+            this.filterCache = filterCache;
+        }
+
+        /**
+         * Should fuzzy, wildcard, and prefix terms inside of phrases be expanded
+         * against the index so the phrase can be a MultiPhraseQuery rather than
+         * a SpanNearQuery? Only does anything if there is an indexReader.
+         */
+        public boolean getExpandPhraseTerms() {
+            return expandPhraseTerms;
+        }
+
+        public void setExpandPhraseTerms(boolean expandPhraseTerms) {
+            this.expandPhraseTerms = expandPhraseTerms;
+        }
+
+        /**
+         * Terms that appear in more than this many documents are only used for
+         * scoring when they'd otherwise be required by the default AND operator.
+         * Values less than 1 are a fraction of the documents in the index.
+         * Values greater than or equal to 1 are an absolute number of documents.
+         * 0, the default, disables this. Only does anything if there is an
+         * indexReader.
+         */
+        public float getCutoffFrequency() {
+            return cutoffFrequency;
+        }
+
+        public void setCutoffFrequency(float cutoffFrequency) {
+            this.cutoffFrequency = cutoffFrequency;
+        }
+
+        /**
+         * Reader used to look at the index while building queries or null if
+         * we don't have one.
+         */
+        public IndexReader getIndexReader() {
+            return indexReader;
+        }
+
+        public void setIndexReader(IndexReader indexReader) {
+            this.indexReader = indexReader;
+        }
+
+        /**
+         * Time that wildcard, prefix, fuzzy, regex, and span multi term
+         * clauses can spend matching documents or null if they can take as
+         * long as they like.
+         */
+        public TimeBudget getTimeBudget() {
+            return timeBudget;
+        }
+
+        public void setTimeBudget(TimeBudget timeBudget) {
+            this.timeBudget = timeBudget;
+        }
+
+        /**
+         * Number of terms that all the multi term queries built with these
+         * settings can expand into together or null if there isn't a limit.
+         */
+        public ExpansionBudget getExpansionBudget() {
+            return expansionBudget;
+        }
+
+        public void setExpansionBudget(ExpansionBudget expansionBudget) {
+            this.expansionBudget = expansionBudget;
+        }
+
+        /**
+         * Where to count degraded constructs if expensive constructs should
+         * be replaced with cheaper ones or null if they shouldn't be. When
+         * set fuzzy, prefix, wildcard, and regex queries become term queries
+         * and sloppy phrases become exact phrases.
+         */
+        public Degradations getDegradations() {
+            return degradations;
+        }
+
+        public void setDegradations(Degradations degradations) {
+            this.degradations = degradations;
+        }
+
+        /**
+         * Where to count constructs that fell back to something simpler than
+         * what the user asked for.
+         */
+        public Fallbacks getFallbacks() {
+            return fallbacks;
+        }
+
+        public void setFallbacks(Fallbacks fallbacks) {
+            this.fallbacks = fallbacks;
+        }
+
+        /**
+         * Where to charge time spent analyzing or null if the query isn't
+         * being profiled.
+         */
+        public ParseProfile getProfile() {
+            return profile;
+        }
+
+        public void setProfile(ParseProfile profile) {
+            this.profile = profile;
+        }
+
+        /**
+         * Where to record the rewrites applied to the query or null if they
+         * aren't being explained.
+         */
+        public AppliedRewrites getRewrites() {
+            return rewrites;
+        }
+
+        public void setRewrites(AppliedRewrites rewrites) {
+            this.rewrites = rewrites;
+        }
+
+        /**
+         * Where to send an event around analysis and building regex and
+         * fuzzy queries.
+         */
+        public ParseEvents getEvents() {
+            return events;
+        }
+
+        public void setEvents(ParseEvents events) {
+            this.events = events;
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,37 @@
+package org.wikimedia.search.querystring.query;
+
+/**
+ * Describes how fields are stored in the index so queries that must inspect
+ * the field's values can pick the cheapest place to load them from.
+ */
+public interface FieldStorage {
+    /**
+     * FieldStorage that doesn't know anything about any fields.
+     */
+    public static final FieldStorage NONE = new None();
+
+    /**
+     * Does the field have doc values?
+     */
+    boolean hasDocValues(String field);
+
+    /**
+     * Is the field stored?
+     */
+    boolean isStored(String field);
+
+    /**
+     * Storage that claims no field has doc values or is stored.
+     */
+    public static class None implements FieldStorage {
+        @Override
+        public boolean hasDocValues(String field) {
+            return false;
+        }
+
+        @Override
+        public boolean isStored(String field) {
+            return false;
+        }
+    }
+}
@@ -16,8 +16,9 @@ public class FieldUsage extends FieldDefinition {
 
     public FieldUsage(String standard, Analyzer standardSearchAnalyzer, String precise, Analyzer preciseSearchAnalyzer,
             String reversePrecise, Analyzer reversePreciseSearchAnalyzer, String prefixPrecise, Analyzer prefixPreciseSearchAnalyzer,
-            String ngramField, int ngramFieldGramSize, float boost) {
-        super(standard, precise, reversePrecise, prefixPrecise, ngramField, ngramFieldGramSize);
+            int prefixPreciseMinGram, int prefixPreciseMaxGram, String ngramField, int ngramFieldGramSize, float boost) {
+        super(standard, precise, reversePrecise, prefixPrecise, prefixPreciseMinGram, prefixPreciseMaxGram, ngramField,
+                ngramFieldGramSize);
         this.standardSearchAnalyzer = standardSearchAnalyzer;
         this.preciseSearchAnalyzer = preciseSearchAnalyzer;
         this.reversePreciseSearchAnalyzer = reversePreciseSearchAnalyzer;
@@ -25,6 +26,13 @@ public class FieldUsage extends FieldDefinition {
         this.boost = boost;
     }
 
+    public FieldUsage(String standard, Analyzer standardSearchAnalyzer, String precise, Analyzer preciseSearchAnalyzer,
+            String reversePrecise, Analyzer reversePreciseSearchAnalyzer, String prefixPrecise, Analyzer prefixPreciseSearchAnalyzer,
+            String ngramField, int ngramFieldGramSize, float boost) {
+        this(standard, standardSearchAnalyzer, precise, preciseSearchAnalyzer, reversePrecise, reversePreciseSearchAnalyzer,
+                prefixPrecise, prefixPreciseSearchAnalyzer, 0, 0, ngramField, ngramFieldGramSize, boost);
+    }
+
     public Analyzer getStandardSearchAnalyzer() {
         return standardSearchAnalyzer;
     }
@@ -0,0 +1,29 @@
+package org.wikimedia.search.querystring.query;
+
+import org.apache.lucene.search.Filter;
+
+/**
+ * Caches filters so the work to build them for each segment can be reused by
+ * later queries.
+ */
+public interface FilterCache {
+    /**
+     * FilterCache that never caches anything.
+     */
+    public static final FilterCache NONE = new None();
+
+    /**
+     * Wrap a filter so it is cached.
+     */
+    Filter cache(Filter filter);
+
+    /**
+     * Cache that doesn't cache anything.
+     */
+    public static class None implements FilterCache {
+        @Override
+        public Filter cache(Filter filter) {
+            return filter;
+        }
+    }
+}
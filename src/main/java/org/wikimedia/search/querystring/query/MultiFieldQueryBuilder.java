@@ -5,15 +5,25 @@ import java.util.List;
 import org.apache.lucene.search.BooleanClause.Occur;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.Query;
+import org.wikimedia.search.querystring.query.AppliedRewrites.Type;
+import org.wikimedia.search.querystring.query.ParseEvents.Event;
+import org.wikimedia.search.querystring.query.ParseEvents.Kind;
 
 public class MultiFieldQueryBuilder implements FieldQueryBuilder {
     /**
      * One query build per field.
      */
     private final List<FieldQueryBuilder> fieldDelegates;
+    /**
+     * The fields in the same order as fieldDelegates.
+     */
+    private final List<FieldUsage> fields;
+    private final Settings settings;
 
-    public MultiFieldQueryBuilder(List<FieldQueryBuilder> fieldDelegates) {
+    public MultiFieldQueryBuilder(List<FieldQueryBuilder> fieldDelegates, List<FieldUsage> fields, Settings settings) {
         this.fieldDelegates = fieldDelegates;
+        this.fields = fields;
+        this.settings = settings;
     }
 
     @Override
@@ -63,6 +73,24 @@ public class MultiFieldQueryBuilder implements FieldQueryBuilder {
 
     @Override
     public Query regexQuery(String regex) {
+        // Degraded regexes are handled by each field
+        Query q = null;
+        if (settings.getDegradations() == null) {
+            Event event = settings.getEvents().begin(Kind.REGEX);
+            q = settings.getRegexQueryBuilder().regexQuery(fields, regex);
+            event.end(q, fields.size());
+        }
+        if (q != null) {
+            AppliedRewrites rewrites = settings.getRewrites();
+            if (rewrites != null) {
+                for (FieldUsage field : fields) {
+                    if (field.getNgramField() != null) {
+                        rewrites.record(Type.NGRAM_REGEX, field.getNgramField(), "regex [" + regex + "] prefiltered by ngrams");
+                    }
+                }
+            }
+            return TimeLimitedQuery.wrap(q, settings.getTimeBudget());
+        }
         BooleanQuery bq = or();
         for (FieldQueryBuilder fieldDelegate : fieldDelegates) {
             bq.add(fieldDelegate.regexQuery(regex), Occur.SHOULD);
@@ -0,0 +1,367 @@
+package org.wikimedia.search.querystring.query;
+
+import static org.elasticsearch.common.lucene.search.Queries.newMatchAllQuery;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.FilteredDocIdSet;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.automaton.CharacterRunAutomaton;
+import org.apache.lucene.util.automaton.RegExp;
+import org.apache.lucene.util.automaton.TooComplexToDeterminizeException;
+import org.elasticsearch.common.lucene.search.Queries;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.index.fieldvisitor.JustSourceFieldsVisitor;
+import org.elasticsearch.search.lookup.SourceLookup;
+import org.wikimedia.search.extra.util.FieldValues;
+
+/**
+ * Finds documents where any of a list of fields contains a match for a
+ * regex. Unlike one SourceRegexFilter per field this runs a single ngram
+ * prefilter for all the fields and loads each candidate's _source at most
+ * once. Use {@link #field(String)} to get a filter for each field that shares
+ * the loading so each field can be scored on its own.
+ */
+public class MultiFieldRegexFilter extends Filter {
+    /**
+     * Flags used to parse the regex.
+     */
+    public static final int FLAGS = RegExp.ALL ^ RegExp.AUTOMATON;
+
+    private final List<String> sourceFields;
+    private final Map<String, FieldValues.Loader> loadedFields;
+    private final String regex;
+    private final Query prefilter;
+    private final boolean caseSensitive;
+    private final Locale locale;
+    private final int maxInspect;
+    private final boolean rejectUnaccelerated;
+    private final CharacterRunAutomaton automaton;
+    /**
+     * Every field in the order they are checked.
+     */
+    private final List<String> fields;
+    /**
+     * Fields each segment's candidates matched, shared by the per field
+     * filters.
+     */
+    private final Map<AtomicReader, Checked> checked = new IdentityHashMap<>();
+
+    /**
+     * @param sourceFields fields to load from _source
+     * @param loadedFields fields to load some other way and how to load them
+     * @param prefilter query that finds all candidate documents or null if
+     *            there isn't one and every document must be checked
+     * @param maxInspect maximum number of candidates to check per segment
+     * @param rejectUnaccelerated should we refuse to run without a prefilter?
+     * @param maxDeterminizedStates maximum number of states compiling the
+     *            regex can create
+     * @throws TooComplexToDeterminizeException if compiling the regex needs
+     *             more than maxDeterminizedStates states
+     */
+    public MultiFieldRegexFilter(List<String> sourceFields, Map<String, FieldValues.Loader> loadedFields, String regex, Query prefilter,
+            boolean caseSensitive, Locale locale, int maxInspect, boolean rejectUnaccelerated, int maxDeterminizedStates) {
+        this(sourceFields, loadedFields, regex, prefilter, caseSensitive, locale, maxInspect, rejectUnaccelerated, new CharacterRunAutomaton(
+                new RegExp(".*(" + matchedRegex(regex, caseSensitive, locale) + ").*", FLAGS).toAutomaton(maxDeterminizedStates),
+                maxDeterminizedStates));
+    }
+
+    /**
+     * Build the filter with an automaton that's already been compiled.
+     *
+     * @param automaton automaton that accepts strings containing a match for
+     *            matchedRegex(regex, caseSensitive, locale) anywhere
+     */
+    public MultiFieldRegexFilter(List<String> sourceFields, Map<String, FieldValues.Loader> loadedFields, String regex, Query prefilter,
+            boolean caseSensitive, Locale locale, int maxInspect, boolean rejectUnaccelerated, CharacterRunAutomaton automaton) {
+        this.sourceFields = sourceFields;
+        this.loadedFields = loadedFields;
+        this.regex = regex;
+        this.prefilter = prefilter;
+        this.caseSensitive = caseSensitive;
+        this.locale = locale;
+        this.maxInspect = maxInspect;
+        this.rejectUnaccelerated = rejectUnaccelerated;
+        this.automaton = automaton;
+        fields = new ArrayList<>(loadedFields.keySet());
+        fields.addAll(sourceFields);
+    }
+
+    /**
+     * Filter for the documents where field contains a match. All of the
+     * filters for the same MultiFieldRegexFilter load each candidate once and
+     * check all of the fields at the same time, remembering which fields
+     * matched.
+     */
+    public Filter field(String field) {
+        int index = fields.indexOf(field);
+        if (index < 0) {
+            throw new IllegalArgumentException("Not one of the filter's fields:  " + field);
+        }
+        return new FieldFilter(index);
+    }
+
+    /**
+     * The regex that the automaton actually runs. Values are lowercased
+     * before they are checked if the regex isn't case sensitive.
+     */
+    public static String matchedRegex(String regex, boolean caseSensitive, Locale locale) {
+        return caseSensitive ? regex : regex.toLowerCase(locale);
+    }
+
+    @Override
+    public DocIdSet getDocIdSet(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+        DocIdSet candidates = candidates(context, acceptDocs);
+        if (candidates == null) {
+            return null;
+        }
+        final AtomicReader reader = context.reader();
+        return new FilteredDocIdSet(candidates) {
+            private int inspected = 0;
+
+            @Override
+            protected boolean match(int docid) {
+                if (inspected >= maxInspect) {
+                    return false;
+                }
+                inspected++;
+                try {
+                    return matches(reader, docid);
+                } catch (IOException e) {
+                    throw new RuntimeException("Unexpected IOException loading a document to check it against a regex", e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Documents that might match.
+     */
+    private DocIdSet candidates(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+        if (prefilter == null && rejectUnaccelerated) {
+            throw new IllegalArgumentException("Unable to accelerate \"" + regex + "\"");
+        }
+        Query candidatesQuery = prefilter == null ? newMatchAllQuery() : prefilter;
+        return Queries.wrap(candidatesQuery, null).getDocIdSet(context, acceptDocs);
+    }
+
+    private boolean matches(AtomicReader reader, int docid) throws IOException {
+        for (Map.Entry<String, FieldValues.Loader> field : loadedFields.entrySet()) {
+            if (anyMatches(field.getValue().load(field.getKey(), reader, docid))) {
+                return true;
+            }
+        }
+        Map<String, Object> source = source(reader, docid);
+        if (source == null) {
+            return false;
+        }
+        for (String field : sourceFields) {
+            if (anyMatches(XContentMapValues.extractRawValues(field, source))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check every field of a document, setting docid in the matched bits of
+     * the fields that contain a match.
+     */
+    private void matchFields(AtomicReader reader, int docid, FixedBitSet[] matched) throws IOException {
+        int index = 0;
+        for (Map.Entry<String, FieldValues.Loader> field : loadedFields.entrySet()) {
+            if (anyMatches(field.getValue().load(field.getKey(), reader, docid))) {
+                matched[index].set(docid);
+            }
+            index++;
+        }
+        Map<String, Object> source = source(reader, docid);
+        if (source == null) {
+            return;
+        }
+        for (String field : sourceFields) {
+            if (anyMatches(XContentMapValues.extractRawValues(field, source))) {
+                matched[index].set(docid);
+            }
+            index++;
+        }
+    }
+
+    /**
+     * Load the document's _source if any fields come from it.
+     *
+     * @return the source or null if no fields come from it or the document
+     *         doesn't have one
+     */
+    private Map<String, Object> source(AtomicReader reader, int docid) throws IOException {
+        if (sourceFields.isEmpty()) {
+            return null;
+        }
+        JustSourceFieldsVisitor visitor = new JustSourceFieldsVisitor();
+        reader.document(docid, visitor);
+        if (visitor.source() == null) {
+            return null;
+        }
+        return SourceLookup.sourceAsMap(visitor.source());
+    }
+
+    private boolean anyMatches(Iterable<?> values) {
+        for (Object value : values) {
+            if (matches(value.toString())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean matches(String value) {
+        return automaton.run(caseSensitive ? value : value.toLowerCase(locale));
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        MultiFieldRegexFilter other = (MultiFieldRegexFilter) obj;
+        return sourceFields.equals(other.sourceFields) && loadedFields.equals(other.loadedFields) && regex.equals(other.regex)
+                && Objects.equals(prefilter, other.prefilter) && caseSensitive == other.caseSensitive && locale.equals(other.locale)
+                && maxInspect == other.maxInspect && rejectUnaccelerated == other.rejectUnaccelerated;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(sourceFields, loadedFields, regex, prefilter, caseSensitive, locale, maxInspect, rejectUnaccelerated);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder b = new StringBuilder();
+        b.append("multi_field_regex(").append(sourceFields);
+        if (!loadedFields.isEmpty()) {
+            b.append(loadedFields.keySet());
+        }
+        b.append(':').append(regex);
+        if (prefilter != null) {
+            b.append(" prefiltered by ").append(prefilter);
+        }
+        return b.append(')').toString();
+    }
+
+    private synchronized Checked checked(AtomicReader reader) {
+        Checked c = checked.get(reader);
+        if (c == null) {
+            c = new Checked(reader);
+            checked.put(reader, c);
+        }
+        return c;
+    }
+
+    /**
+     * The candidates in a segment that have been checked and the fields they
+     * matched. The per field filters run over the same candidates at their own
+     * pace so this remembers every candidate rather than just the latest.
+     */
+    private class Checked {
+        private final AtomicReader reader;
+        private final FixedBitSet checked;
+        private final FixedBitSet[] matched;
+        private int inspected = 0;
+
+        Checked(AtomicReader reader) {
+            this.reader = reader;
+            checked = new FixedBitSet(reader.maxDoc());
+            matched = new FixedBitSet[fields.size()];
+            for (int i = 0; i < matched.length; i++) {
+                matched[i] = new FixedBitSet(reader.maxDoc());
+            }
+        }
+
+        synchronized boolean matches(int docid, int field) {
+            if (!checked.get(docid)) {
+                if (inspected >= maxInspect) {
+                    return false;
+                }
+                inspected++;
+                checked.set(docid);
+                try {
+                    matchFields(reader, docid, matched);
+                } catch (IOException e) {
+                    throw new RuntimeException("Unexpected IOException loading a document to check it against a regex", e);
+                }
+            }
+            return matched[field].get(docid);
+        }
+    }
+
+    /**
+     * Finds documents where a single one of the fields contains a match.
+     */
+    private class FieldFilter extends Filter {
+        private final int field;
+
+        FieldFilter(int field) {
+            this.field = field;
+        }
+
+        @Override
+        public DocIdSet getDocIdSet(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+            DocIdSet candidates = candidates(context, acceptDocs);
+            if (candidates == null) {
+                return null;
+            }
+            final Checked c = checked(context.reader());
+            return new FilteredDocIdSet(candidates) {
+                @Override
+                protected boolean match(int docid) {
+                    return c.matches(docid, field);
+                }
+            };
+        }
+
+        private MultiFieldRegexFilter parent() {
+            return MultiFieldRegexFilter.this;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            FieldFilter other = (FieldFilter) obj;
+            return name().equals(other.name()) && parent().equals(other.parent());
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * parent().hashCode() + name().hashCode();
+        }
+
+        private String name() {
+            return fields.get(field);
+        }
+
+        @Override
+        public String toString() {
+            return name() + " in " + parent();
+        }
+    }
+}
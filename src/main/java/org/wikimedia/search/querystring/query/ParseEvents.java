@@ -0,0 +1,69 @@
+package org.wikimedia.search.querystring.query;
+
+import org.apache.lucene.search.Query;
+
+/**
+ * Receives an event around each hot phase of parsing and building a query so
+ * the work can be lined up with what the rest of the JVM was doing at the
+ * time. Implementations must be cheap when nothing is listening and safe to
+ * share between threads.
+ */
+public interface ParseEvents {
+    /**
+     * Events that go nowhere.
+     */
+    public static final ParseEvents NOOP = new ParseEvents() {
+        @Override
+        public Event begin(Kind kind) {
+            return Event.NOOP;
+        }
+    };
+
+    public static enum Kind {
+        /**
+         * Parsing and building the whole query string.
+         */
+        PARSE,
+        /**
+         * Resolving field names into the fields to search.
+         */
+        RESOLVE,
+        /**
+         * Analyzing a term or phrase and building its query.
+         */
+        ANALYSIS,
+        /**
+         * Building a regex query.
+         */
+        REGEX,
+        /**
+         * Building a fuzzy query.
+         */
+        FUZZY;
+    }
+
+    /**
+     * Start an event.
+     */
+    Event begin(Kind kind);
+
+    public interface Event {
+        /**
+         * Event that goes nowhere.
+         */
+        public static final Event NOOP = new Event() {
+            @Override
+            public void end(Query query, int fieldCount) {
+            }
+        };
+
+        /**
+         * Finish the event.
+         *
+         * @param query what was built, used to describe the event's query
+         *            type. Null if the phase doesn't build a query.
+         * @param fieldCount number of fields the phase worked on
+         */
+        void end(Query query, int fieldCount);
+    }
+}
@@ -0,0 +1,259 @@
+package org.wikimedia.search.querystring.query;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+
+/**
+ * Wall time and allocation spent in each phase of building a query. Time is
+ * charged to whichever phase was entered last so nested phases like analysis
+ * aren't counted in the phase that contains them. Not thread safe - each
+ * query gets its own.
+ */
+public class ParseProfile {
+    public enum Phase {
+        /**
+         * Reading the query's settings.
+         */
+        SETTINGS,
+        /**
+         * Resolving the default fields.
+         */
+        RESOLVE,
+        /**
+         * Splitting the query string into tokens.
+         */
+        LEX,
+        /**
+         * Building the parse tree from the tokens.
+         */
+        PARSE,
+        /**
+         * Turning the parse tree into Lucene queries, not counting analysis.
+         */
+        BUILD,
+        /**
+         * Running the analyzers.
+         */
+        ANALYSIS;
+    }
+
+    /**
+     * Where the profile gets the time. Tests replace it so they don't have to
+     * sleep to make time pass.
+     */
+    interface Clock {
+        Clock SYSTEM = new Clock() {
+            @Override
+            public long nanoTime() {
+                return System.nanoTime();
+            }
+        };
+
+        long nanoTime();
+    }
+
+    /**
+     * HotSpot's ThreadMXBean#getThreadAllocatedBytes(long) or null if the
+     * JVM doesn't have it. Looked up reflectively because it isn't part of
+     * the standard API.
+     */
+    private static final Method ALLOCATED_BYTES = allocatedBytesMethod();
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final Clock clock;
+    private final boolean trackAllocation;
+    private final long[] nanos = new long[Phase.values().length];
+    private final long[] allocated = new long[Phase.values().length];
+    private Phase current;
+    private long lastNanos;
+    private long lastAllocated;
+
+    /**
+     * Start profiling in a phase.
+     *
+     * @param startNanos System.nanoTime() when the phase started. The
+     *            allocation of the first phase isn't known unless it starts
+     *            now.
+     */
+    public ParseProfile(Phase phase, long startNanos) {
+        this(phase, startNanos, true);
+    }
+
+    /**
+     * Start profiling in a phase.
+     *
+     * @param startNanos System.nanoTime() when the phase started
+     * @param trackAllocation should allocation be tracked? Looking it up is
+     *            much slower than reading the clock so profiles kept for
+     *            every query only track time.
+     */
+    public ParseProfile(Phase phase, long startNanos, boolean trackAllocation) {
+        this(phase, startNanos, trackAllocation, Clock.SYSTEM);
+    }
+
+    ParseProfile(Phase phase, long startNanos, boolean trackAllocation, Clock clock) {
+        this.clock = clock;
+        this.trackAllocation = trackAllocation;
+        current = phase;
+        lastNanos = startNanos;
+        lastAllocated = allocatedBytes();
+        // We don't know how much the first phase allocated before we started
+        allocated[phase.ordinal()] = -1;
+    }
+
+    /**
+     * Stop charging the current phase and start charging phase.
+     *
+     * @return the phase that was being charged so callers can return to it
+     */
+    public Phase enter(Phase phase) {
+        long now = clock.nanoTime();
+        long nowAllocated = allocatedBytes();
+        Phase previous = current;
+        if (previous != null) {
+            nanos[previous.ordinal()] += now - lastNanos;
+            if (allocated[previous.ordinal()] >= 0 && nowAllocated >= 0 && lastAllocated >= 0) {
+                allocated[previous.ordinal()] += nowAllocated - lastAllocated;
+            }
+        }
+        current = phase;
+        lastNanos = now;
+        lastAllocated = nowAllocated;
+        return previous;
+    }
+
+    /**
+     * Stop charging any phase.
+     */
+    public void stop() {
+        enter(null);
+    }
+
+    /**
+     * Nanoseconds spent in a phase.
+     */
+    public long getNanos(Phase phase) {
+        return nanos[phase.ordinal()];
+    }
+
+    /**
+     * Bytes allocated in a phase or -1 if the JVM can't tell us.
+     */
+    public long getAllocatedBytes(Phase phase) {
+        return ALLOCATED_BYTES == null || !trackAllocation ? -1 : allocated[phase.ordinal()];
+    }
+
+    public long getTotalNanos() {
+        long total = 0;
+        for (long n : nanos) {
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Wrap a token stream so time spent running it is charged to analysis.
+     */
+    public TokenStream analysis(TokenStream ts) {
+        return new ProfiledTokenStream(ts, this);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder b = new StringBuilder();
+        b.append("took=").append(new TimeValue(getTotalNanos(), TimeUnit.NANOSECONDS));
+        for (Phase phase : Phase.values()) {
+            b.append(' ').append(phase.name().toLowerCase(Locale.ROOT)).append("=[");
+            b.append(new TimeValue(getNanos(phase), TimeUnit.NANOSECONDS));
+            long bytes = getAllocatedBytes(phase);
+            if (bytes >= 0) {
+                b.append(' ').append(new ByteSizeValue(bytes));
+            }
+            b.append(']');
+        }
+        return b.toString();
+    }
+
+    private long allocatedBytes() {
+        if (ALLOCATED_BYTES == null || !trackAllocation) {
+            return -1;
+        }
+        try {
+            return (Long) ALLOCATED_BYTES.invoke(THREADS, Thread.currentThread().getId());
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            return -1;
+        }
+    }
+
+    private static Method allocatedBytesMethod() {
+        try {
+            Class<?> sunThreads = Class.forName("com.sun.management.ThreadMXBean");
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            if (!sunThreads.isInstance(threads)) {
+                return null;
+            }
+            if (!(Boolean) sunThreads.getMethod("isThreadAllocatedMemorySupported").invoke(threads)
+                    || !(Boolean) sunThreads.getMethod("isThreadAllocatedMemoryEnabled").invoke(threads)) {
+                return null;
+            }
+            return sunThreads.getMethod("getThreadAllocatedBytes", long.class);
+        } catch (ReflectiveOperationException e) {
+            // Not running on a HotSpot derived JVM
+            return null;
+        }
+    }
+
+    /**
+     * Charges the time spent in the wrapped token stream to analysis. Shares
+     * attributes with the wrapped stream so callers use it just like the
+     * wrapped stream.
+     */
+    private static final class ProfiledTokenStream extends TokenFilter {
+        private final ParseProfile profile;
+
+        public ProfiledTokenStream(TokenStream input, ParseProfile profile) {
+            super(input);
+            this.profile = profile;
+        }
+
+        @Override
+        public boolean incrementToken() throws IOException {
+            Phase previous = profile.enter(Phase.ANALYSIS);
+            try {
+                return input.incrementToken();
+            } finally {
+                profile.enter(previous);
+            }
+        }
+
+        @Override
+        public void reset() throws IOException {
+            Phase previous = profile.enter(Phase.ANALYSIS);
+            try {
+                super.reset();
+            } finally {
+                profile.enter(previous);
+            }
+        }
+
+        @Override
+        public void end() throws IOException {
+            Phase previous = profile.enter(Phase.ANALYSIS);
+            try {
+                super.end();
+            } finally {
+                profile.enter(previous);
+            }
+        }
+    }
+}
@@ -15,4 +15,10 @@ public interface QueryBuilder extends FieldQueryBuilder {
     Query matchAll();
 
     Query fieldExists();
-}
\ No newline at end of file
+
+    /**
+     * Is this query made only of terms so common that they should just be used
+     * for scoring when they'd otherwise be required by the default operator?
+     */
+    boolean isCommon(Query query);
+}
@@ -0,0 +1,289 @@
+package org.wikimedia.search.querystring.query;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+
+/**
+ * Extracts ngrams that every string matching a regex must contain so regex
+ * queries can find candidate documents in an ngram field before checking
+ * them against the regex. This only looks at runs of literal characters
+ * outside of groups so it is much less thorough than Wikimedia-extra's
+ * automaton based extraction but it handles the common cases and it never
+ * explodes. Callers should fall back to Wikimedia-extra when it can't find
+ * any ngrams. Regexes are in Lucene's RegExp syntax.
+ */
+public final class RegexNGrams {
+    private RegexNGrams() {
+        // Util class
+    }
+
+    /**
+     * Build a query that finds every document that might match the regex
+     * using the ngram field without limiting the number of alternatives.
+     *
+     * @return the query or null if the regex can't be accelerated
+     * @see #prefilter(String, String, int, int, Locale)
+     */
+    public static Query prefilter(String regex, String ngramField, int gramSize, Locale locale) {
+        return prefilter(regex, ngramField, gramSize, Integer.MAX_VALUE, locale);
+    }
+
+    /**
+     * Build a query that finds every document that might match the regex
+     * using the ngram field. The ngrams are always lowercased because ngram
+     * fields are almost always lowercased.
+     *
+     * @param gramSize size of the ngrams in code points
+     * @param maxExpand maximum number of alternatives to OR together
+     * @return the query or null if the regex can't be accelerated
+     */
+    public static Query prefilter(String regex, String ngramField, int gramSize, int maxExpand, Locale locale) {
+        if (ngramField == null) {
+            return null;
+        }
+        List<List<String>> branches = requiredRuns(regex);
+        if (branches == null || branches.size() > maxExpand) {
+            return null;
+        }
+        List<Query> branchQueries = new ArrayList<>(branches.size());
+        for (List<String> runs : branches) {
+            Set<String> grams = new LinkedHashSet<>();
+            for (String run : runs) {
+                run = run.toLowerCase(locale);
+                // Step by code point so we never split a surrogate pair
+                int codePoints = run.codePointCount(0, run.length());
+                int start = 0;
+                for (int i = 0; i + gramSize <= codePoints; i++) {
+                    grams.add(run.substring(start, run.offsetByCodePoints(start, gramSize)));
+                    start = run.offsetByCodePoints(start, 1);
+                }
+            }
+            if (grams.isEmpty()) {
+                // One unaccelerated branch means we have to check everything
+                return null;
+            }
+            if (grams.size() == 1) {
+                branchQueries.add(new TermQuery(new Term(ngramField, grams.iterator().next())));
+                continue;
+            }
+            BooleanQuery bq = new BooleanQuery();
+            for (String gram : grams) {
+                bq.add(new TermQuery(new Term(ngramField, gram)), Occur.MUST);
+            }
+            branchQueries.add(bq);
+        }
+        if (branchQueries.size() == 1) {
+            return branchQueries.get(0);
+        }
+        BooleanQuery bq = new BooleanQuery();
+        for (Query branchQuery : branchQueries) {
+            bq.add(branchQuery, Occur.SHOULD);
+        }
+        return bq;
+    }
+
+    /**
+     * Find the runs of literal characters required by each top level
+     * alternative of the regex.
+     *
+     * @return runs for each alternative or null if we can't tell what is
+     *         required
+     */
+    private static List<List<String>> requiredRuns(String regex) {
+        List<List<String>> branches = new ArrayList<>();
+        List<String> runs = new ArrayList<>();
+        StringBuilder run = new StringBuilder();
+        int i = 0;
+        while (i < regex.length()) {
+            String literal;
+            char c = regex.charAt(i);
+            switch (c) {
+            case '|':
+                flush(run, runs);
+                branches.add(runs);
+                runs = new ArrayList<>();
+                i++;
+                continue;
+            case '&':
+            case '~':
+                // Intersections and complements are too complex to bother with
+                return null;
+            case '(':
+            case '[':
+            case '<':
+            case '.':
+            case '#':
+            case '@':
+                i = skipAtom(regex, i);
+                if (i < 0) {
+                    return null;
+                }
+                i = skipQuantifiers(regex, i);
+                if (i < 0) {
+                    return null;
+                }
+                flush(run, runs);
+                continue;
+            case '"':
+                int end = regex.indexOf('"', i + 1);
+                if (end < 0) {
+                    return null;
+                }
+                literal = regex.substring(i + 1, end);
+                i = end + 1;
+                break;
+            case '\\':
+                if (i + 1 >= regex.length()) {
+                    return null;
+                }
+                i++;
+                literal = codePointAt(regex, i);
+                i += literal.length();
+                break;
+            case ')':
+            case ']':
+            case '>':
+            case '?':
+            case '*':
+            case '+':
+            case '{':
+                // Not valid here so its safest not to guess
+                return null;
+            default:
+                literal = codePointAt(regex, i);
+                i += literal.length();
+            }
+            int end = skipQuantifiers(regex, i);
+            if (end < 0) {
+                return null;
+            }
+            String quantifiers = regex.substring(i, end);
+            i = end;
+            if (quantifiers.isEmpty()) {
+                run.append(literal);
+                continue;
+            }
+            if (!allowsZero(quantifiers)) {
+                // Required at least once but we don't know what comes next
+                run.append(literal);
+            }
+            flush(run, runs);
+        }
+        flush(run, runs);
+        branches.add(runs);
+        return branches;
+    }
+
+    /**
+     * Skip an atom that isn't a literal.
+     *
+     * @return the index after the atom or -1 if the atom isn't closed
+     */
+    private static int skipAtom(String regex, int start) {
+        switch (regex.charAt(start)) {
+        case '(':
+            int depth = 0;
+            for (int i = start; i < regex.length(); i++) {
+                switch (regex.charAt(i)) {
+                case '\\':
+                    i++;
+                    break;
+                case '"':
+                    i = regex.indexOf('"', i + 1);
+                    if (i < 0) {
+                        return -1;
+                    }
+                    break;
+                case '[':
+                    i = skipAtom(regex, i);
+                    if (i < 0) {
+                        return -1;
+                    }
+                    // Back up because the loop is about to skip forward
+                    i--;
+                    break;
+                case '(':
+                    depth++;
+                    break;
+                case ')':
+                    depth--;
+                    if (depth == 0) {
+                        return i + 1;
+                    }
+                    break;
+                default:
+                }
+            }
+            return -1;
+        case '[':
+            for (int i = start + 1; i < regex.length(); i++) {
+                switch (regex.charAt(i)) {
+                case '\\':
+                    i++;
+                    break;
+                case ']':
+                    return i + 1;
+                default:
+                }
+            }
+            return -1;
+        case '<':
+            int end = regex.indexOf('>', start);
+            return end < 0 ? -1 : end + 1;
+        default:
+            return start + 1;
+        }
+    }
+
+    /**
+     * Skip any quantifiers starting at start.
+     *
+     * @return the index after the quantifiers or -1 if one isn't closed
+     */
+    private static int skipQuantifiers(String regex, int start) {
+        int i = start;
+        while (i < regex.length()) {
+            switch (regex.charAt(i)) {
+            case '?':
+            case '*':
+            case '+':
+                i++;
+                break;
+            case '{':
+                int end = regex.indexOf('}', i);
+                if (end < 0) {
+                    return -1;
+                }
+                i = end + 1;
+                break;
+            default:
+                return i;
+            }
+        }
+        return i;
+    }
+
+    private static String codePointAt(String regex, int i) {
+        return regex.substring(i, regex.offsetByCodePoints(i, 1));
+    }
+
+    private static boolean allowsZero(String quantifiers) {
+        return quantifiers.indexOf('?') >= 0 || quantifiers.indexOf('*') >= 0 || quantifiers.contains("{0");
+    }
+
+    private static void flush(StringBuilder run, List<String> runs) {
+        if (run.length() > 0) {
+            runs.add(run.toString());
+            run.setLength(0);
+        }
+    }
+}
@@ -1,12 +1,28 @@
 package org.wikimedia.search.querystring.query;
 
+import static org.elasticsearch.common.base.MoreObjects.firstNonNull;
 import static org.elasticsearch.common.lucene.search.Queries.newMatchAllQuery;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.util.automaton.CharacterRunAutomaton;
+import org.apache.lucene.util.automaton.Operations;
+import org.apache.lucene.util.automaton.RegExp;
+import org.apache.lucene.util.automaton.TooComplexToDeterminizeException;
+import org.elasticsearch.common.lucene.search.Queries;
 import org.elasticsearch.common.lucene.search.XFilteredQuery;
 import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.Index;
 import org.elasticsearch.index.query.QueryParsingException;
 import org.wikimedia.search.extra.regex.SourceRegexFilter;
 import org.wikimedia.search.extra.regex.SourceRegexFilterParser;
@@ -27,6 +43,14 @@ public interface RegexQueryBuilder {
      */
     Query regexQuery(FieldUsage field, String regex);
 
+    /**
+     * Build a single regex query that matches if any of the fields match.
+     *
+     * @return the query or null if the builder can't combine fields in which
+     *         case the caller should combine one query per field
+     */
+    Query regexQuery(List<FieldUsage> fields, String regex);
+
     /**
      * Builder that never returns any queries.
      */
@@ -40,24 +64,338 @@ public interface RegexQueryBuilder {
         public Query regexQuery(FieldUsage field, String regex) {
             return null;
         }
+
+        @Override
+        public Query regexQuery(List<FieldUsage> fields, String regex) {
+            return null;
+        }
+    }
+
+    /**
+     * Builds regexes using Lucene's RegexpQuery against the precise field so
+     * it doesn't need any other plugins. Like Elasticsearch's regexp query the
+     * regex has to match a whole term rather than a substring of the field.
+     * If the field has an ngram field then documents are prefiltered by the
+     * ngrams that any match must contain.
+     */
+    public static class LuceneRegexQueryBuilder implements RegexQueryBuilder {
+        private final Index index;
+        private final CompiledRegexCache cache;
+        private final RegexStats stats;
+        private int maxDeterminizedStates = Operations.DEFAULT_MAX_DETERMINIZED_STATES;
+        private boolean caseSensitive = false;
+
+        /**
+         * @param index index being queried, reported in errors
+         */
+        public LuceneRegexQueryBuilder(Index index) {
+            this(index, new CompiledRegexCache(0), new RegexStats());
+        }
+
+        /**
+         * @param index index being queried, reported in errors
+         * @param cache cache of compiled regexes
+         * @param stats counts the work done compiling regexes
+         */
+        public LuceneRegexQueryBuilder(Index index, CompiledRegexCache cache, RegexStats stats) {
+            this.index = index;
+            this.cache = cache;
+            this.stats = stats;
+        }
+
+        public int getMaxDeterminizedStates() {
+            return maxDeterminizedStates;
+        }
+
+        /**
+         * Maximum number of states that compiling the regex can create. Regexes
+         * that need more are rejected.
+         */
+        public void setMaxDeterminizedStates(int maxDeterminizedStates) {
+            this.maxDeterminizedStates = maxDeterminizedStates;
+        }
+
+        public boolean getCaseSensitive() {
+            return caseSensitive;
+        }
+
+        /**
+         * Should the regex be case sensitive? Defaults to false which
+         * lowercases the regex because the precise field is almost always
+         * lowercased. Case sensitive regexes aren't prefiltered by the ngram
+         * field.
+         */
+        public void setCaseSensitive(boolean caseSensitive) {
+            this.caseSensitive = caseSensitive;
+        }
+
+        @Override
+        public boolean parseSetting(String name, XContentParser parser) throws IOException, QueryParsingException {
+            switch (name) {
+            case "max_determinized_states":
+            case "maxDeterminizedStates":
+                maxDeterminizedStates = parser.intValue();
+                return true;
+            case "case_sensitive":
+            case "caseSensitive":
+                caseSensitive = parser.booleanValue();
+                return true;
+            default:
+                return false;
+            }
+        }
+
+        @Override
+        public Query regexQuery(FieldUsage field, String regex) {
+            String r = caseSensitive ? regex : regex.toLowerCase(Locale.ROOT);
+            Term term = new Term(firstNonNull(field.getPrecise(), field.getStandard()), r);
+            Query query;
+            try {
+                query = cache.regexpQuery(term, RegExp.ALL ^ RegExp.AUTOMATON, maxDeterminizedStates, stats);
+            } catch (TooComplexToDeterminizeException e) {
+                // Lucene's exception isn't serializable so we don't send it along
+                throw new QueryParsingException(index, "[qsppp] regex [" + regex + "] needs more than [" + maxDeterminizedStates
+                        + "] states");
+            } catch (IllegalArgumentException e) {
+                throw new QueryParsingException(index, "[qsppp] invalid regex [" + regex + "]", e);
+            }
+            if (caseSensitive) {
+                // The ngram field is lowercased so it can't tell cases apart
+                return query;
+            }
+            Query prefilter = cache.ngramPrefilter(regex, field.getNgramField(), field.getNgramFieldGramSize(), Locale.ROOT, stats);
+            if (prefilter == null) {
+                return query;
+            }
+            return new XFilteredQuery(query, Queries.wrap(prefilter, null));
+        }
+
+        @Override
+        public Query regexQuery(List<FieldUsage> fields, String regex) {
+            // One query per field is fine because nothing is loaded from _source
+            return null;
+        }
     }
 
     public static class WikimediaExtraRegexQueryBuilder implements RegexQueryBuilder {
+        /**
+         * Where to load the field's values from to check them against the
+         * regex.
+         */
+        public static enum LoadFrom {
+            /**
+             * Use doc values if the field has them, otherwise the stored
+             * field if the field is stored, otherwise _source.
+             */
+            AUTO,
+            SOURCE,
+            STORED_FIELD,
+            DOC_VALUES;
+        }
+
         private final SourceRegexFilter.Settings settings = new SourceRegexFilter.Settings();
+        private final Index index;
+        private final FieldStorage storage;
+        private final CompiledRegexCache cache;
+        private final RegexStats stats;
+        private LoadFrom loadFrom = LoadFrom.AUTO;
+        private int maxDeterminizedStates = Operations.DEFAULT_MAX_DETERMINIZED_STATES;
+        private int maxNgramAlternatives = 4;
+
+        /**
+         * @param index index being queried, reported in errors
+         */
+        public WikimediaExtraRegexQueryBuilder(Index index) {
+            this(index, FieldStorage.NONE, new CompiledRegexCache(0), new RegexStats());
+        }
+
+        /**
+         * @param index index being queried, reported in errors
+         * @param storage used to look up where to load fields from when
+         *            loadFrom is AUTO
+         * @param cache cache of compiled regexes
+         * @param stats counts the work done compiling regexes
+         */
+        public WikimediaExtraRegexQueryBuilder(Index index, FieldStorage storage, CompiledRegexCache cache, RegexStats stats) {
+            this.index = index;
+            this.storage = storage;
+            this.cache = cache;
+            this.stats = stats;
+        }
+
+        public LoadFrom getLoadFrom() {
+            return loadFrom;
+        }
+
+        public void setLoadFrom(LoadFrom loadFrom) {
+            this.loadFrom = loadFrom;
+        }
+
+        public int getMaxDeterminizedStates() {
+            return maxDeterminizedStates;
+        }
+
+        /**
+         * Maximum number of states that compiling the regex can create. Regexes
+         * that need more are rejected.
+         */
+        public void setMaxDeterminizedStates(int maxDeterminizedStates) {
+            this.maxDeterminizedStates = maxDeterminizedStates;
+        }
+
+        public int getMaxNgramAlternatives() {
+            return maxNgramAlternatives;
+        }
+
+        /**
+         * Maximum number of alternatives the ngram prefilter can OR together.
+         * Regexes with more are left to Wikimedia-extra one field at a time.
+         */
+        public void setMaxNgramAlternatives(int maxNgramAlternatives) {
+            this.maxNgramAlternatives = maxNgramAlternatives;
+        }
 
         @Override
         public boolean parseSetting(String name, XContentParser parser) throws IOException, QueryParsingException {
-            return SourceRegexFilterParser.parseInto(settings, name, parser);
+            switch (name) {
+            case "load_from":
+            case "loadFrom":
+                try {
+                    loadFrom = LoadFrom.valueOf(parser.text().toUpperCase(Locale.ROOT));
+                } catch (IllegalArgumentException e) {
+                    throw new QueryParsingException(index, "[qsppp] query does not support [regex.load_from] of [" + parser.text() + "]");
+                }
+                return true;
+            case "load_from_source":
+            case "loadFromSource":
+                loadFrom = parser.booleanValue() ? LoadFrom.SOURCE : LoadFrom.STORED_FIELD;
+                return true;
+            case "max_determinized_states":
+            case "maxDeterminizedStates":
+                maxDeterminizedStates = parser.intValue();
+                return true;
+            case "max_ngram_alternatives":
+            case "maxNgramAlternatives":
+                maxNgramAlternatives = parser.intValue();
+                return true;
+            default:
+                return SourceRegexFilterParser.parseInto(settings, name, parser);
+            }
         }
 
         @Override
         public Query regexQuery(FieldUsage field, String regex) {
-            // TODO look this up properly
-            FieldValues.Loader loader = FieldValues.loadFromSource();
-            // TODO is it always right to load the standard field?
-            SourceRegexFilter filter = new SourceRegexFilter(field.getStandard(), field.getNgramField(), regex, loader, settings,
-                    field.getNgramFieldGramSize());
-            return new XFilteredQuery(newMatchAllQuery(), filter);
+            MultiFieldRegexFilter filter = filter(Collections.singletonList(field), regex);
+            if (filter != null) {
+                return new XFilteredQuery(newMatchAllQuery(), filter);
+            }
+            SourceRegexFilter sourceFilter = new SourceRegexFilter(field.getStandard(), field.getNgramField(), regex,
+                    loader(resolveLoadFrom(field.getStandard())), settings, field.getNgramFieldGramSize());
+            return new XFilteredQuery(newMatchAllQuery(), sourceFilter);
+        }
+
+        @Override
+        public Query regexQuery(List<FieldUsage> fields, String regex) {
+            MultiFieldRegexFilter filter = filter(fields, regex);
+            if (filter == null) {
+                return null;
+            }
+            /*
+             * One clause per field like the per field regexes so each field
+             * is scored with its own boost but every clause shares the
+             * filter's loading so each candidate is only loaded once.
+             */
+            BooleanQuery bq = new BooleanQuery();
+            bq.setMinimumNumberShouldMatch(1);
+            for (FieldUsage field : fields) {
+                Query query = new XFilteredQuery(newMatchAllQuery(), filter.field(field.getStandard()));
+                query.setBoost(field.getBoost());
+                bq.add(query, Occur.SHOULD);
+            }
+            return bq;
+        }
+
+        /**
+         * Build a filter that checks all of the fields using a cached
+         * automaton and a single ngram prefilter.
+         *
+         * @return the filter or null if a field has an ngram field but we
+         *         couldn't extract ngrams for it. Wikimedia-extra's
+         *         extraction can accelerate regexes that ours can't so those
+         *         are left to it one field at a time.
+         */
+        private MultiFieldRegexFilter filter(List<FieldUsage> fields, String regex) {
+            List<String> sourceFields = new ArrayList<>();
+            Map<String, FieldValues.Loader> loadedFields = new LinkedHashMap<>();
+            BooleanQuery prefilter = new BooleanQuery();
+            boolean accelerated = true;
+            for (FieldUsage field : fields) {
+                /*
+                 * The standard field is loaded because it is the field that
+                 * has the text as it was sent. The others are copies of it
+                 * analyzed differently so they don't have their own values in
+                 * _source.
+                 */
+                LoadFrom fieldLoadFrom = resolveLoadFrom(field.getStandard());
+                if (fieldLoadFrom == LoadFrom.SOURCE) {
+                    sourceFields.add(field.getStandard());
+                } else {
+                    loadedFields.put(field.getStandard(), loader(fieldLoadFrom));
+                }
+                Query fieldPrefilter = cache.ngramPrefilter(regex, field.getNgramField(), field.getNgramFieldGramSize(),
+                        maxNgramAlternatives, settings.getLocale(), stats);
+                if (fieldPrefilter == null) {
+                    if (field.getNgramField() != null) {
+                        return null;
+                    }
+                    accelerated = false;
+                } else {
+                    prefilter.add(fieldPrefilter, Occur.SHOULD);
+                }
+            }
+            String matchedRegex = MultiFieldRegexFilter.matchedRegex(regex, settings.getCaseSensitive(), settings.getLocale());
+            CharacterRunAutomaton automaton;
+            try {
+                automaton = cache.matchAnywhere(matchedRegex, MultiFieldRegexFilter.FLAGS, maxDeterminizedStates, stats);
+            } catch (TooComplexToDeterminizeException e) {
+                // Lucene's exception isn't serializable so we don't send it along
+                throw new QueryParsingException(index, "[qsppp] regex [" + regex + "] needs more than [" + maxDeterminizedStates
+                        + "] states");
+            } catch (IllegalArgumentException e) {
+                throw new QueryParsingException(index, "[qsppp] invalid regex [" + regex + "]", e);
+            }
+            return new MultiFieldRegexFilter(sourceFields, loadedFields, regex, accelerated ? prefilter : null,
+                    settings.getCaseSensitive(), settings.getLocale(), settings.getMaxInspect(), settings.getRejectUnaccelerated(),
+                    automaton);
+        }
+
+        /**
+         * Resolve AUTO into a real place to load the field from.
+         */
+        private LoadFrom resolveLoadFrom(String field) {
+            if (loadFrom != LoadFrom.AUTO) {
+                return loadFrom;
+            }
+            if (storage.hasDocValues(field)) {
+                return LoadFrom.DOC_VALUES;
+            }
+            if (storage.isStored(field)) {
+                return LoadFrom.STORED_FIELD;
+            }
+            return LoadFrom.SOURCE;
+        }
+
+        private FieldValues.Loader loader(LoadFrom loadFrom) {
+            switch (loadFrom) {
+            case SOURCE:
+                return FieldValues.loadFromSource();
+            case STORED_FIELD:
+                return FieldValues.loadFromStoredField();
+            case DOC_VALUES:
+                return DocValuesLoader.INSTANCE;
+            default:
+                throw new IllegalArgumentException("Unknown loadFrom: " + loadFrom);
+            }
         }
     }
 }
@@ -0,0 +1,45 @@
+package org.wikimedia.search.querystring.query;
+
+/**
+ * Counts the work done building regexes for one request.
+ */
+public class RegexStats {
+    private int cacheHits;
+    private int cacheMisses;
+    private long statesBuilt;
+
+    /**
+     * Number of compiled regexes found in the cache.
+     */
+    public int getCacheHits() {
+        return cacheHits;
+    }
+
+    /**
+     * Number of regexes that had to be compiled.
+     */
+    public int getCacheMisses() {
+        return cacheMisses;
+    }
+
+    /**
+     * Number of states in the automatons compiled for cache misses.
+     */
+    public long getStatesBuilt() {
+        return statesBuilt;
+    }
+
+    void hit() {
+        cacheHits++;
+    }
+
+    void miss(long states) {
+        cacheMisses++;
+        statesBuilt += states;
+    }
+
+    @Override
+    public String toString() {
+        return "cache_hits=" + cacheHits + " cache_misses=" + cacheMisses + " states_built=" + statesBuilt;
+    }
+}
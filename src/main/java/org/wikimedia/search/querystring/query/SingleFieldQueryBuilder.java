@@ -3,6 +3,8 @@ package org.wikimedia.search.querystring.query;
 import static java.lang.Math.min;
 import static org.elasticsearch.common.base.MoreObjects.firstNonNull;
 import static org.elasticsearch.common.collect.Iterators.singletonIterator;
+import static org.elasticsearch.common.lucene.search.Queries.newMatchAllQuery;
+import static org.elasticsearch.common.lucene.search.Queries.newMatchNoDocsQuery;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -13,16 +15,21 @@ import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
 import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanClause.Occur;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Filter;
 import org.apache.lucene.search.FuzzyQuery;
 import org.apache.lucene.search.MultiPhraseQuery;
 import org.apache.lucene.search.MultiTermQuery;
+import org.apache.lucene.search.MultiTermQuery.TopTermsScoringBooleanQueryRewrite;
 import org.apache.lucene.search.PhraseQuery;
 import org.apache.lucene.search.PrefixQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermRangeFilter;
 import org.apache.lucene.search.WildcardQuery;
 import org.apache.lucene.search.spans.FieldMaskingSpanQuery;
 import org.apache.lucene.search.spans.SpanMultiTermQueryWrapper;
@@ -35,8 +42,14 @@ import org.apache.lucene.util.BytesRef;
 import org.elasticsearch.common.base.Joiner;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.lucene.search.XFilteredQuery;
 import org.elasticsearch.index.mapper.internal.FieldNamesFieldMapper;
 import org.elasticsearch.index.query.support.QueryParsers;
+import org.wikimedia.search.querystring.query.AppliedRewrites.Type;
+import org.wikimedia.search.querystring.query.ParseEvents.Event;
+import org.wikimedia.search.querystring.query.ParseEvents.Kind;
+import org.wikimedia.search.querystring.query.ParseProfile.Phase;
+import org.wikimedia.search.querystring.query.phraseterm.PrefixPhraseTerm;
 import org.wikimedia.search.querystring.query.phraseterm.SimpleStringPhraseTerm;
 
 public class SingleFieldQueryBuilder implements FieldQueryBuilder {
@@ -59,6 +72,11 @@ public class SingleFieldQueryBuilder implements FieldQueryBuilder {
     @Override
     public Query phraseQuery(List<PhraseTerm> terms, int slop, boolean useQuotedTerm) {
         slop = min(slop, settings.getMaxPhraseSlop());
+        if (slop > 0 && settings.getDegradations() != null) {
+            settings.getDegradations().sloppyPhrase();
+            rewrote(Type.DEGRADED, field.getStandard(), "sloppy phrase became exact phrase");
+            slop = 0;
+        }
         String fieldName;
         Analyzer analyzer;
         if (useQuotedTerm && field.getPrecise() != null) {
@@ -73,6 +91,13 @@ public class SingleFieldQueryBuilder implements FieldQueryBuilder {
 
     @Override
     public Query fuzzyQuery(String term, float similaritySpec) {
+        Event event = settings.getEvents().begin(Kind.FUZZY);
+        Query query = buildFuzzyQuery(term, similaritySpec);
+        event.end(query, 1);
+        return query;
+    }
+
+    private Query buildFuzzyQuery(String term, float similaritySpec) {
         // TODO it should totally be possible to rewrite some fuzzy
         if (similaritySpec == Float.NEGATIVE_INFINITY) {
             similaritySpec = settings.getDefaultFuzzySimilaritySpec();
@@ -82,30 +107,55 @@ public class SingleFieldQueryBuilder implements FieldQueryBuilder {
         if (numEdits == 0) {
             return termQuery(term);
         }
+        if (settings.getDegradations() != null) {
+            settings.getDegradations().fuzzy();
+            rewrote(Type.DEGRADED, field.getStandard(), "fuzzy [" + term + "] became term query");
+            return termQuery(term);
+        }
         // TODO the analyzer?
         FuzzyQuery query = new FuzzyQuery(preciseTerm(term), numEdits, settings.getFuzzyPrefixLength(), settings.getFuzzyMaxExpansions(),
                 false);
-        QueryParsers.setRewriteMethod(query, settings.getRewriteMethod());
-        return query;
+        setRewriteMethod(query);
+        return budgeted(query);
     }
 
     @Override
     public Query prefixQuery(String term) {
-        if (field.getPrefixPrecise() != null) {
-            // TODO the analyzer?
-            return new TermQuery(new Term(field.getPrefixPrecise(), term));
+        Term prefixPreciseTerm = prefixPreciseTermIfItFits(term);
+        if (prefixPreciseTerm != null) {
+            rewrote(Type.PREFIX_PRECISE, prefixPreciseTerm.field(), "prefix [" + term + "] became term [" + prefixPreciseTerm.text()
+                    + "]");
+            return new TermQuery(prefixPreciseTerm);
         }
         if (!settings.getAllowPrefix()) {
+            settings.getFallbacks().prefix();
+            rewrote(Type.FALLBACK_TO_TERM, field.getStandard(), "prefix [" + term + "] isn't allowed");
+            return termQuery(term + "*");
+        }
+        if (settings.getDegradations() != null) {
+            settings.getDegradations().prefix();
+            rewrote(Type.DEGRADED, field.getStandard(), "prefix [" + term + "] became term query");
+            return termQuery(term + "*");
+        }
+        if (term.codePointCount(0, term.length()) < settings.getMinPrefixLength()) {
+            // Too short to expand so fall back to a term query.
+            settings.getFallbacks().prefix();
+            rewrote(Type.FALLBACK_TO_TERM, field.getStandard(), "prefix [" + term + "] is too short");
             return termQuery(term + "*");
         }
         // TODO analyzer?
         PrefixQuery query = new PrefixQuery(preciseTerm(term));
-        QueryParsers.setRewriteMethod(query, settings.getRewriteMethod());
-        return query;
+        setRewriteMethod(query);
+        return budgeted(query);
     }
 
     @Override
     public Query wildcardQuery(String term) {
+        if (settings.getDegradations() != null) {
+            settings.getDegradations().wildcard();
+            rewrote(Type.DEGRADED, field.getStandard(), "wildcard [" + term + "] became term query");
+            return termQuery(term);
+        }
         boolean hasLeadingWildcard = hasLeadingWildcard(term);
         if (hasLeadingWildcard && field.getReversePrecise() != null) {
             term = new StringBuilder(term).reverse().toString();
@@ -115,30 +165,52 @@ public class SingleFieldQueryBuilder implements FieldQueryBuilder {
                  * Still has a leading wildcards aren't allowed so fall back to
                  * a term query.
                  */
+                settings.getFallbacks().leadingWildcard();
+                rewrote(Type.FALLBACK_TO_TERM, field.getStandard(), "wildcard [" + term + "] has a leading wildcard either way");
                 return termQuery(term);
             }
+            rewrote(Type.REVERSE_PRECISE, field.getReversePrecise(), "wildcard reversed to [" + term + "]");
             // TODO the analyzer?
             Term reversed = new Term(field.getReversePrecise(), term);
             WildcardQuery query = new WildcardQuery(reversed);
-            QueryParsers.setRewriteMethod(query, settings.getRewriteMethod());
-            return query;
+            setRewriteMethod(query);
+            return budgeted(query);
         }
         if (!settings.getAllowLeadingWildcard() && hasLeadingWildcard) {
             // Leading wildcards aren't allowed so fall back to a term query.
+            settings.getFallbacks().leadingWildcard();
+            rewrote(Type.FALLBACK_TO_TERM, field.getStandard(), "wildcard [" + term + "] has a leading wildcard");
             return termQuery(term);
         }
         // TODO the analyzer?
         WildcardQuery query = new WildcardQuery(preciseTerm(term));
-        QueryParsers.setRewriteMethod(query, settings.getRewriteMethod());
-        return query;
+        setRewriteMethod(query);
+        return budgeted(query);
     }
 
     @Override
     public Query regexQuery(String regex) {
+        Event event = settings.getEvents().begin(Kind.REGEX);
+        Query query = buildRegexQuery(regex);
+        event.end(query, 1);
+        return query;
+    }
+
+    private Query buildRegexQuery(String regex) {
+        if (settings.getDegradations() != null) {
+            settings.getDegradations().regex();
+            rewrote(Type.DEGRADED, field.getStandard(), "regex [" + regex + "] became term query");
+            return termQuery("/" + regex + "/");
+        }
         Query q = settings.getRegexQueryBuilder().regexQuery(field, regex);
         if (q != null) {
-            return q;
+            if (field.getNgramField() != null) {
+                rewrote(Type.NGRAM_REGEX, field.getNgramField(), "regex [" + regex + "] prefiltered by ngrams");
+            }
+            return budgeted(q);
         }
+        settings.getFallbacks().regexUnsupported();
+        rewrote(Type.FALLBACK_TO_TERM, field.getStandard(), "regex [" + regex + "] isn't supported");
         return termQuery("/" + regex + "/");
     }
 
@@ -147,23 +219,169 @@ public class SingleFieldQueryBuilder implements FieldQueryBuilder {
         if (settings.getShouldUseFieldNamesFieldForExists()) {
             return new TermQuery(new Term(FieldNamesFieldMapper.NAME, field.getStandard()));
         }
-        return prefixQuery("");
+        /*
+         * Without _field_names we have to find all documents with any term in
+         * the field. That means walking every term in the field so we cache
+         * the result for each segment rather than doing it on every query.
+         */
+        Filter exists = settings.getFilterCache().cache(new TermRangeFilter(field.getStandard(), null, null, true, true));
+        return new XFilteredQuery(newMatchAllQuery(), exists);
     }
 
     public Term preciseTerm(String term) {
         return new Term(firstNonNull(field.getPrecise(), field.getStandard()), term);
     }
 
+    /**
+     * Build the term to look up in the prefix_precise field. The prefix is
+     * normalized with the precise analyzer if it analyzes to a single token so
+     * "Sta*" finds the same thing as "sta*". We can't use the prefix field's
+     * analyzer for this because it'd chop the prefix into edge ngrams.
+     */
+    private Term prefixPreciseTerm(String term) {
+        if (field.getPrecise() != null && field.getPreciseSearchAnalyzer() != null) {
+            String normalized = analyzeToSingleToken(field.getPrecise(), field.getPreciseSearchAnalyzer(), term);
+            if (normalized != null) {
+                term = normalized;
+            }
+        }
+        return new Term(field.getPrefixPrecise(), term);
+    }
+
+    /**
+     * Build the term to look up in the prefix_precise field if there is one
+     * and the prefix is in the range of edge ngrams it contains.
+     *
+     * @return the term or null if the prefix has to be expanded against the
+     *         precise field instead
+     */
+    private Term prefixPreciseTermIfItFits(String term) {
+        if (field.getPrefixPrecise() == null) {
+            return null;
+        }
+        Term prefixPreciseTerm = prefixPreciseTerm(term);
+        String text = prefixPreciseTerm.text();
+        int length = text.codePointCount(0, text.length());
+        if (length < field.getPrefixPreciseMinGram()) {
+            return null;
+        }
+        if (field.getPrefixPreciseMaxGram() > 0 && length > field.getPrefixPreciseMaxGram()) {
+            return null;
+        }
+        return prefixPreciseTerm;
+    }
+
+    /**
+     * Record a rewrite if the query's rewrites are being explained.
+     */
+    private void rewrote(Type type, String fieldName, String detail) {
+        if (settings.getRewrites() != null) {
+            settings.getRewrites().record(type, fieldName, detail);
+        }
+    }
+
+    /**
+     * Start analyzing a string, charging the time to analysis if the query
+     * is being profiled.
+     */
+    private TokenStream tokenStream(Analyzer analyzer, String fieldName, String str) throws IOException {
+        ParseProfile profile = settings.getProfile();
+        if (profile == null) {
+            return analyzer.tokenStream(fieldName, str);
+        }
+        Phase previous = profile.enter(Phase.ANALYSIS);
+        try {
+            return profile.analysis(analyzer.tokenStream(fieldName, str));
+        } finally {
+            profile.enter(previous);
+        }
+    }
+
+    /**
+     * Analyze a string expecting it to produce a single token.
+     *
+     * @return the token or null if the analyzer produced zero or more than one
+     *         token
+     */
+    private String analyzeToSingleToken(String fieldName, Analyzer analyzer, String str) {
+        try (TokenStream ts = tokenStream(analyzer, fieldName, str)) {
+            TermToBytesRefAttribute termAtt = ts.addAttribute(TermToBytesRefAttribute.class);
+            BytesRef bytes = termAtt.getBytesRef();
+            ts.reset();
+            if (!ts.incrementToken()) {
+                ts.end();
+                return null;
+            }
+            termAtt.fillBytesRef();
+            String token = bytes.utf8ToString();
+            boolean moreTokens = ts.incrementToken();
+            ts.end();
+            return moreTokens ? null : token;
+        } catch (IOException e) {
+            throw new RuntimeException("Unexpected IOException from Lucene when they shouldn't be possible.", e);
+        }
+    }
+
+    /**
+     * The query for a term inside of a phrase or null if the term's raw string
+     * should just be analyzed. Prefix terms are looked up directly in the
+     * prefix_precise field when there is one and the prefix fits its edge
+     * ngrams. The edge ngrams in that field sit at the same position as the
+     * token they came from so the span lines up with the rest of the phrase
+     * and the position becomes a single term lookup rather than an expansion.
+     */
+    private Query phraseTermQuery(PhraseTerm term) {
+        if (term instanceof PrefixPhraseTerm) {
+            Term prefixPreciseTerm = prefixPreciseTermIfItFits(term.rawString());
+            if (prefixPreciseTerm != null) {
+                rewrote(Type.PREFIX_PRECISE, prefixPreciseTerm.field(), "phrase prefix [" + term.rawString() + "] became term ["
+                        + prefixPreciseTerm.text() + "]");
+                return new SpanTermQuery(prefixPreciseTerm);
+            }
+        }
+        return term.query(this);
+    }
+
     @Override
     public String toString() {
         return field.toString();
     }
 
+    /**
+     * Set the rewrite method for a multi term query, taking its terms from the
+     * expansion budget if there is one.
+     */
+    private void setRewriteMethod(MultiTermQuery query) {
+        QueryParsers.setRewriteMethod(query, settings.getRewriteMethod());
+        if (settings.getExpansionBudget() != null) {
+            query.setRewriteMethod(settings.getExpansionBudget().rewrite(query.getRewriteMethod()));
+        }
+    }
+
+    /**
+     * Wrap an expensive query so it stops matching when the time budget is
+     * spent.
+     */
+    private Query budgeted(Query query) {
+        return TimeLimitedQuery.wrap(query, settings.getTimeBudget());
+    }
+
     private boolean hasLeadingWildcard(String term) {
         return term.charAt(0) == WildcardQuery.WILDCARD_STRING || term.charAt(0) == WildcardQuery.WILDCARD_CHAR;
     }
 
+    /**
+     * Analyze terms into a term, phrase, or span query, sending an event
+     * around the whole thing.
+     */
     private Query termOrPhraseQuery(String field, Analyzer analyzer, Iterator<? extends PhraseTerm> terms, int phraseSlop) {
+        Event event = settings.getEvents().begin(Kind.ANALYSIS);
+        Query query = buildTermOrPhraseQuery(field, analyzer, terms, phraseSlop);
+        event.end(query, 1);
+        return query;
+    }
+
+    private Query buildTermOrPhraseQuery(String field, Analyzer analyzer, Iterator<? extends PhraseTerm> terms, int phraseSlop) {
         // TODO position increments!l
 
         /*
@@ -200,7 +418,7 @@ public class SingleFieldQueryBuilder implements FieldQueryBuilder {
                         return builder.lastPosition(termsAtCurrentPosition);
                     }
                     PhraseTerm term = terms.next();
-                    Query queryForTerm = term.query(this);
+                    Query queryForTerm = phraseTermQuery(term);
                     if (queryForTerm != null) {
                         /*
                          * Note that we have to flush the current position or
@@ -211,7 +429,7 @@ public class SingleFieldQueryBuilder implements FieldQueryBuilder {
                         builder.query(queryForTerm);
                         continue;
                     }
-                    ts = analyzer.tokenStream(field, term.rawString());
+                    ts = tokenStream(analyzer, field, term.rawString());
                     termAtt = ts.addAttribute(TermToBytesRefAttribute.class);
                     posIncAtt = ts.addAttribute(PositionIncrementAttribute.class);
                     analyzedTerm = termAtt.getBytesRef();
@@ -262,12 +480,22 @@ public class SingleFieldQueryBuilder implements FieldQueryBuilder {
         }
     }
 
+    /**
+     * Builds the term, phrase, multi phrase, or span query for a stream of
+     * positions. Positions are collected first and then inspected all at once
+     * to pick the simplest query type that can match them. That way we only
+     * ever build the final query and never have to convert between query types
+     * part way through.
+     */
     private class TermOrPhraseOrSpanQueryBuilder {
         private final String fieldName;
         private final int phraseSlop;
-        private PhraseQuery phraseQuery;
-        private MultiPhraseQuery multiPhraseQuery;
-        private List<SpanQuery> spanNear;
+        private final List<Position> positions = new ArrayList<>();
+        /**
+         * Did any of the positions come from an expensive query that should
+         * be limited by the time budget?
+         */
+        private boolean budgeted = false;
 
         public TermOrPhraseOrSpanQueryBuilder(String fieldName, int phraseSlop) {
             this.fieldName = fieldName;
@@ -277,171 +505,301 @@ public class SingleFieldQueryBuilder implements FieldQueryBuilder {
         /**
          * The next position can contain any of the matching terms.
          */
-        private void position(List<Term> terms) {
-            switch (terms.size()) {
-            case 0:
+        public void position(List<Term> terms) {
+            if (terms.isEmpty()) {
                 return;
-            case 1:
-                if (spanNear != null) {
-                    spanNear.add(fixField(new SpanTermQuery(terms.get(0))));
-                    return;
+            }
+            // Copy the terms because the caller reuses the list
+            positions.add(new Position(new ArrayList<>(terms), null));
+        }
+
+        /**
+         * The next position should match this query.
+         */
+        public void query(Query query) {
+            if (query instanceof TimeLimitedQuery) {
+                // The whole phrase is limited rather than just the position
+                budgeted = true;
+                query = ((TimeLimitedQuery) query).getDelegate();
+            }
+            positions.add(new Position(null, query));
+        }
+
+        /**
+         * The last position can contain any of the matching terms. We're done
+         * with this builder - return the query that we built.
+         */
+        public Query lastPosition(List<Term> terms) {
+            position(terms);
+            /*
+             * Plan the query. Multi term queries are expanded into terms if
+             * we're allowed to and it works. If any of them can't be expanded
+             * then we need spans so there isn't any point in trying to expand
+             * the rest.
+             */
+            boolean needsSpans = false;
+            boolean needsMultiPhrase = false;
+            for (Position position : positions) {
+                if (position.terms == null) {
+                    if (!needsSpans && settings.getExpandPhraseTerms()) {
+                        position.terms = expand(position.query);
+                    }
+                    if (position.terms == null) {
+                        needsSpans = true;
+                        continue;
+                    }
+                    if (position.terms.isEmpty()) {
+                        // Nothing in the index matches the position so nothing can match the phrase
+                        return newMatchNoDocsQuery();
+                    }
                 }
-                if (multiPhraseQuery != null) {
-                    multiPhraseQuery.add(terms.get(0));
-                    return;
+                needsMultiPhrase |= position.terms.size() > 1;
+            }
+
+            /*
+             * Now build the least complicated query we can.
+             */
+            if (positions.isEmpty()) {
+                /*
+                 * Nothing interesting came out of the terms so we have nothing
+                 * to return. That happens when you send a stopword or
+                 * punctuation only through the analyzer.
+                 */
+                return null;
+            }
+            if (needsSpans) {
+                SpanQuery spanNear = spanNear();
+                if (spanNear == null) {
+                    // One of the positions can't match anything
+                    return newMatchNoDocsQuery();
                 }
-                if (phraseQuery == null) {
-                    phraseQuery = new PhraseQuery();
-                    phraseQuery.setSlop(phraseSlop);
+                return budgeted ? budgeted(spanNear) : spanNear;
+            }
+            if (positions.size() == 1) {
+                List<Term> onlyPosition = positions.get(0).terms;
+                if (onlyPosition.size() == 1) {
+                    return new TermQuery(onlyPosition.get(0));
                 }
-                phraseQuery.add(terms.get(0));
-                return;
-            default:
-                if (spanNear != null) {
-                    addTermsToSpanNear(terms);
-                    return;
+                BooleanQuery bq = new BooleanQuery();
+                bq.setMinimumNumberShouldMatch(1);
+                for (Term term : onlyPosition) {
+                    bq.add(new TermQuery(term), Occur.SHOULD);
                 }
-                if (multiPhraseQuery == null) {
-                    multiPhraseQuery = new MultiPhraseQuery();
-                    multiPhraseQuery.setSlop(phraseSlop);
-                    if (phraseQuery != null) {
-                        // TODO copy the phrase query into the multi
-                        // phrase query
-                        phraseQuery = null;
-                    }
+                return bq;
+            }
+            if (needsMultiPhrase) {
+                MultiPhraseQuery multiPhraseQuery = new MultiPhraseQuery();
+                multiPhraseQuery.setSlop(phraseSlop);
+                for (Position position : positions) {
+                    multiPhraseQuery.add(position.terms.toArray(new Term[position.terms.size()]));
                 }
-                multiPhraseQuery.add(terms.toArray(new Term[terms.size()]));
-                return;
+                return multiPhraseQuery;
+            }
+            PhraseQuery phraseQuery = new PhraseQuery();
+            phraseQuery.setSlop(phraseSlop);
+            for (Position position : positions) {
+                // TODO position increment differences
+                phraseQuery.add(position.terms.get(0));
             }
+            return phraseQuery;
         }
 
         /**
-         * The next position should match this query.
+         * Build the span near query for the positions.
+         *
+         * @return the query or null if one of the positions can't match
+         *         anything
          */
-        public void query(Query query) {
-            // TODO be careful with fields and rewrites
-            if (spanNear == null) {
-                spanNear = new ArrayList<>();
-                if (multiPhraseQuery != null) {
-                    List<Term[]> terms = multiPhraseQuery.getTermArrays();
-                    for (int i = 0; i < terms.size(); i++) {
-                        Term[] termsAtPosition = terms.get(i);
-                        SpanQuery[] clauses = new SpanQuery[termsAtPosition.length];
-                        for (int j = 0; j < termsAtPosition.length; j++) {
-                            clauses[j] = fixField(new SpanTermQuery(termsAtPosition[j]));
-                        }
-                        spanNear.add(new SpanOrQuery(clauses));
+        private SpanQuery spanNear() {
+            SpanQuery[] clauses = new SpanQuery[positions.size()];
+            for (int i = 0; i < clauses.length; i++) {
+                Position position = positions.get(i);
+                if (position.terms == null) {
+                    SpanQuery span = spanify(position.query);
+                    if (span == null) {
+                        return null;
                     }
-                    multiPhraseQuery = null;
-                } else if (phraseQuery != null) {
-                    Term[] terms = phraseQuery.getTerms();
-                    for (int i = 0; i < terms.length; i++) {
-                        // TODO position increment differences
-                        spanNear.add(fixField(new SpanTermQuery(terms[i])));
+                    clauses[i] = fixField(span);
+                } else if (position.terms.size() == 1) {
+                    clauses[i] = fixField(new SpanTermQuery(position.terms.get(0)));
+                } else {
+                    SpanQuery[] or = new SpanQuery[position.terms.size()];
+                    for (int j = 0; j < or.length; j++) {
+                        or[j] = fixField(new SpanTermQuery(position.terms.get(j)));
                     }
-                    phraseQuery = null;
+                    clauses[i] = new SpanOrQuery(or);
                 }
             }
-            spanNear.add(fixField(spanify(query)));
+            try {
+                return new SpanNearQuery(clauses, phraseSlop, true, false);
+            } catch (IllegalArgumentException e) {
+                if (!e.getMessage().equals("Clauses must have same field.")) {
+                    throw e;
+                }
+                /*
+                 * The error message Lucene throws here isn't great so we try to
+                 * enrich it.
+                 */
+                throw new IllegalArgumentException("Bad span query. Clauses:  " + Joiner.on(' ').join(clauses), e);
+            }
         }
 
+        /**
+         * Expand a multi term query into the terms it matches in the index so
+         * it can be a position in a MultiPhraseQuery rather than forcing the
+         * whole phrase into spans.
+         *
+         * @return the terms, empty if the query matches no terms, or null if
+         *         the query can't be expanded because there isn't a reader,
+         *         it isn't a multi term query, its on another field, or it
+         *         expands to more than fuzzyMaxExpansions terms
+         */
+        private List<Term> expand(Query query) {
+            IndexReader reader = settings.getIndexReader();
+            if (reader == null || !(query instanceof MultiTermQuery)) {
+                return null;
+            }
+            if (!((MultiTermQuery) query).getField().equals(fieldName)) {
+                // MultiPhraseQuery can't mask fields like spans can
+                return null;
+            }
+            /*
+             * Expand a copy so the query keeps its own rewrite method in case
+             * it can't be expanded and ends up in spans.
+             */
+            MultiTermQuery mquery = (MultiTermQuery) query.clone();
+            int maxExpansions = settings.getFuzzyMaxExpansions();
+            // One extra so we can tell when we've gone over the limit
+            mquery.setRewriteMethod(new TopTermsScoringBooleanQueryRewrite(maxExpansions + 1));
+            Query rewritten;
+            try {
+                rewritten = mquery.rewrite(reader);
+            } catch (IOException e) {
+                throw new RuntimeException("Unexpected IOException expanding " + query, e);
+            }
+            List<Term> terms = new ArrayList<>();
+            if (rewritten instanceof TermQuery) {
+                terms.add(((TermQuery) rewritten).getTerm());
+            } else if (rewritten instanceof BooleanQuery) {
+                for (BooleanClause clause : ((BooleanQuery) rewritten).clauses()) {
+                    if (!(clause.getQuery() instanceof TermQuery)) {
+                        return null;
+                    }
+                    terms.add(((TermQuery) clause.getQuery()).getTerm());
+                }
+            } else {
+                return null;
+            }
+            if (terms.size() > maxExpansions) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Not expanding {} in phrase because it expanded to {} terms", query, terms.size());
+                }
+                return null;
+            }
+            /*
+             * Expanded terms come out of the expansion budget like any other
+             * multi term query's. If they don't fit the query is left to spans
+             * which take their best terms from whatever is left.
+             */
+            if (settings.getExpansionBudget() != null && !settings.getExpansionBudget().takeAll(terms.size())) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Not expanding {} in phrase because its {} terms don't fit in the expansion budget", query, terms.size());
+                }
+                return null;
+            }
+            return terms;
+        }
+
+        /**
+         * Convert a query for a position into a span query.
+         *
+         * @return the span query or null if the query can't match anything
+         */
         private SpanQuery spanify(Query query) {
+            // TODO be careful with fields and rewrites
             if (query instanceof SpanQuery) {
                 return (SpanQuery) query;
             }
             if (query instanceof MultiTermQuery) {
-                MultiTermQuery mquery = (MultiTermQuery) query;
-                mquery.setRewriteMethod(new TopTermsSpanBooleanQueryRewrite(settings.getFuzzyMaxExpansions()));
-                return new SpanMultiTermQueryWrapper<>(mquery);
+                // The wrapper replaces the query's rewrite method so it has to be set after wrapping
+                SpanMultiTermQueryWrapper<MultiTermQuery> span = new SpanMultiTermQueryWrapper<>((MultiTermQuery) query);
+                if (settings.getExpansionBudget() == null) {
+                    span.setRewriteMethod(new TopTermsSpanBooleanQueryRewrite(settings.getFuzzyMaxExpansions()));
+                } else {
+                    span.setRewriteMethod(settings.getExpansionBudget().spanRewrite(settings.getFuzzyMaxExpansions()));
+                }
+                return span;
             }
             if (query instanceof TermQuery) {
                 return new SpanTermQuery(((TermQuery) query).getTerm());
             }
-            throw new UnsupportedOperationException("Don't know how to convert this query into a span query of type " + query.getClass()
-                    + ":  " + query);
-        }
-
-        /**
-         * The last position can contain any of the matching terms. We're done
-         * with this builder - return the query that we built.
-         */
-        public Query lastPosition(List<Term> terms) {
             /*
-             * There are tons of cases here making this all kinds of complicated
-             * but the general goal is to return the least complicated query we
-             * can. This is more "fun" because in the case this this is a single
-             * position.
+             * Phrase terms that fall back to being analyzed as terms, like
+             * prefixes when prefixes aren't allowed, can come back as phrases or
+             * disjunctions.
              */
-            switch (terms.size()) {
-            case 0:
-                /*
-                 * Our last position wasn't interesting so lets just return what
-                 * we have - and if we have nothing we'll just return null. That
-                 * happens when you send a stopword or punctuation only through
-                 * the analyzer.
-                 */
-                if (spanNear != null) {
-                    return new SpanNearQuery(spanNear.toArray(new SpanQuery[spanNear.size()]), phraseSlop, true, false);
+            if (query instanceof PhraseQuery) {
+                PhraseQuery pq = (PhraseQuery) query;
+                Term[] terms = pq.getTerms();
+                SpanQuery[] clauses = new SpanQuery[terms.length];
+                for (int i = 0; i < terms.length; i++) {
+                    clauses[i] = new SpanTermQuery(terms[i]);
                 }
-                return multiPhraseQuery != null ? multiPhraseQuery : phraseQuery;
-            case 1:
-                if (spanNear != null) {
-                    spanNear.add(fixField(new SpanTermQuery(terms.get(0))));
-                    try {
-                        return new SpanNearQuery(spanNear.toArray(new SpanQuery[spanNear.size()]), phraseSlop, true, false);
-                    } catch (IllegalArgumentException e) {
-                        if (!e.getMessage().equals("Clauses must have same field.")) {
-                            throw e;
-                        }
-                        /*
-                         * The error message Lucene throws here isn't great so
-                         * we try to enrich it.
-                         */
-                        throw new IllegalArgumentException("Bad span query. Clauses:  " + Joiner.on(' ').join(spanNear), e);
+                return new SpanNearQuery(clauses, pq.getSlop() + positionGaps(pq.getPositions()), true, false);
+            }
+            if (query instanceof MultiPhraseQuery) {
+                MultiPhraseQuery mpq = (MultiPhraseQuery) query;
+                List<Term[]> termArrays = mpq.getTermArrays();
+                SpanQuery[] clauses = new SpanQuery[termArrays.size()];
+                for (int i = 0; i < clauses.length; i++) {
+                    Term[] terms = termArrays.get(i);
+                    SpanQuery[] or = new SpanQuery[terms.length];
+                    for (int j = 0; j < terms.length; j++) {
+                        or[j] = new SpanTermQuery(terms[j]);
                     }
+                    clauses[i] = new SpanOrQuery(or);
                 }
-                if (multiPhraseQuery != null) {
-                    multiPhraseQuery.add(terms.get(0));
-                    return multiPhraseQuery;
-                }
-                if (phraseQuery != null) {
-                    phraseQuery.add(terms.get(0));
-                    return phraseQuery;
-                }
-                return new TermQuery(terms.get(0));
-            default:
-                if (spanNear != null) {
-                    addTermsToSpanNear(terms);
-                    return new SpanNearQuery(spanNear.toArray(new SpanQuery[spanNear.size()]), phraseSlop, true, false);
-                }
-                if (multiPhraseQuery != null) {
-                    multiPhraseQuery.add(terms.toArray(new Term[terms.size()]));
-                    return multiPhraseQuery;
-                }
-                if (phraseQuery != null) {
-                    multiPhraseQuery = new MultiPhraseQuery();
-                    multiPhraseQuery.setSlop(phraseSlop);
-                    if (phraseQuery != null) {
-                        // TODO copy the phrase query into the multi
-                        // phrase query
+                return new SpanNearQuery(clauses, mpq.getSlop() + positionGaps(mpq.getPositions()), true, false);
+            }
+            if (query instanceof BooleanQuery) {
+                /*
+                 * Analysis makes disjunctions for terms at the same position.
+                 * Positions can't exclude terms so prohibited clauses are
+                 * skipped and any other clause can match the position.
+                 */
+                List<SpanQuery> clauses = new ArrayList<>();
+                for (BooleanClause clause : ((BooleanQuery) query).clauses()) {
+                    if (clause.isProhibited()) {
+                        continue;
+                    }
+                    SpanQuery span = spanify(clause.getQuery());
+                    if (span != null) {
+                        clauses.add(fixField(span));
                     }
-                    return multiPhraseQuery;
                 }
-                BooleanQuery bq = new BooleanQuery();
-                bq.setMinimumNumberShouldMatch(1);
-                for (Term termAtCurrentPosition : terms) {
-                    bq.add(new TermQuery(termAtCurrentPosition), Occur.SHOULD);
+                if (clauses.isEmpty()) {
+                    return null;
                 }
-                return bq;
+                if (clauses.size() == 1) {
+                    return clauses.get(0);
+                }
+                return new SpanOrQuery(clauses.toArray(new SpanQuery[clauses.size()]));
             }
+            throw new UnsupportedOperationException("Don't know how to convert this query into a span query of type " + query.getClass()
+                    + ":  " + query);
         }
 
-        private void addTermsToSpanNear(List<Term> terms) {
-            List<SpanQuery> clauses = new ArrayList<>();
-            for (Term term : terms) {
-                clauses.add(fixField(new SpanTermQuery(term)));
+        /**
+         * The number of positions skipped between the first and last
+         * position, usually by removing stopwords. Span near queries don't
+         * have positions so these are added to their slop to keep them from
+         * requiring the terms to be adjacent when the phrase didn't.
+         */
+        private int positionGaps(int[] positions) {
+            if (positions.length < 2) {
+                return 0;
             }
-            spanNear.add(new SpanOrQuery(clauses.toArray(new SpanQuery[clauses.size()])));
+            return positions[positions.length - 1] - positions[0] - (positions.length - 1);
         }
 
         /**
@@ -456,4 +814,19 @@ public class SingleFieldQueryBuilder implements FieldQueryBuilder {
             return new FieldMaskingSpanQuery(query, fieldName);
         }
     }
+
+    /**
+     * A position in a phrase. Either a list of terms any of which can match the
+     * position or a query that should match it. Queries can be expanded into
+     * terms during planning in which case both are set.
+     */
+    private static class Position {
+        private List<Term> terms;
+        private final Query query;
+
+        public Position(List<Term> terms, Query query) {
+            this.terms = terms;
+            this.query = query;
+        }
+    }
 }
@@ -0,0 +1,74 @@
+package org.wikimedia.search.querystring.query;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time that expensive clauses in a query can spend matching documents. The
+ * clock starts when the first clause using the budget starts working. Once
+ * the budget is spent the clauses stop matching.
+ */
+public class TimeBudget {
+    private final long budgetMillis;
+    private final Listener listener;
+    private long deadline;
+    private boolean started;
+    private boolean exhausted;
+
+    /**
+     * @param budgetMillis time the clauses can spend
+     * @param listener notified when a clause finds the budget exhausted
+     */
+    public TimeBudget(long budgetMillis, Listener listener) {
+        this.budgetMillis = budgetMillis;
+        this.listener = listener;
+    }
+
+    public long getBudgetMillis() {
+        return budgetMillis;
+    }
+
+    /**
+     * Start the clock if it hasn't already been started.
+     */
+    public void start() {
+        if (!started) {
+            started = true;
+            deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+        }
+    }
+
+    /**
+     * Has the budget been spent? Starts the clock if it hasn't been started.
+     * Notifies the listener every time it returns true because the search
+     * might reset whatever the listener sets between rewriting the query and
+     * running it.
+     */
+    public boolean exhausted() {
+        if (!exhausted) {
+            start();
+            if (System.nanoTime() - deadline < 0) {
+                return false;
+            }
+            exhausted = true;
+        }
+        listener.exhausted();
+        return true;
+    }
+
+    /**
+     * Notified when a clause finds the budget exhausted. Must be cheap and
+     * safe to call many times.
+     */
+    public interface Listener {
+        /**
+         * Listener that does nothing.
+         */
+        public static final Listener NOOP = new Listener() {
+            @Override
+            public void exhausted() {
+            }
+        };
+
+        void exhausted();
+    }
+}
@@ -0,0 +1,169 @@
+package org.wikimedia.search.querystring.query;
+
+import java.io.IOException;
+import java.util.Set;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.Bits;
+import org.elasticsearch.common.lucene.search.Queries;
+
+/**
+ * Wraps a query so it stops matching documents once a TimeBudget is spent.
+ * The budget is checked before the query is rewritten, so a spent budget
+ * skips expensive term expansion, and every time the query considers a
+ * document. Checking documents as they are considered rather than as they
+ * match stops filters that inspect each candidate document, like regexes,
+ * from spending the whole request's time looking for the next match.
+ */
+public class TimeLimitedQuery extends Query {
+    private final Query delegate;
+    private final TimeBudget budget;
+
+    /**
+     * Wrap query in a TimeLimitedQuery if there is a budget.
+     *
+     * @param budget the budget or null if there isn't one
+     */
+    public static Query wrap(Query query, TimeBudget budget) {
+        if (budget == null || query == null) {
+            return query;
+        }
+        return new TimeLimitedQuery(query, budget);
+    }
+
+    public TimeLimitedQuery(Query delegate, TimeBudget budget) {
+        this.delegate = delegate;
+        this.budget = budget;
+    }
+
+    public Query getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public Query rewrite(IndexReader reader) throws IOException {
+        if (budget.exhausted()) {
+            /*
+             * Keep the wrapper so the budget is checked again when the query
+             * runs. Some search types rewrite the query in an earlier phase.
+             */
+            Query noDocs = Queries.newMatchNoDocsQuery();
+            if (delegate.equals(noDocs)) {
+                return this;
+            }
+            Query query = new TimeLimitedQuery(noDocs, budget);
+            query.setBoost(getBoost());
+            return query;
+        }
+        Query rewritten = delegate.rewrite(reader);
+        if (rewritten == delegate) {
+            return this;
+        }
+        Query query = new TimeLimitedQuery(rewritten, budget);
+        query.setBoost(getBoost());
+        return query;
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher) throws IOException {
+        Query boosted = delegate.clone();
+        boosted.setBoost(delegate.getBoost() * getBoost());
+        return new TimeLimitedWeight(boosted.createWeight(searcher));
+    }
+
+    @Override
+    public void extractTerms(Set<Term> terms) {
+        delegate.extractTerms(terms);
+    }
+
+    @Override
+    public String toString(String field) {
+        return "time_limited(" + delegate.toString(field) + ")";
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!super.equals(obj)) {
+            return false;
+        }
+        TimeLimitedQuery other = (TimeLimitedQuery) obj;
+        return delegate.equals(other.delegate) && budget.getBudgetMillis() == other.budget.getBudgetMillis();
+    }
+
+    @Override
+    public int hashCode() {
+        int result = super.hashCode();
+        result = 31 * result + delegate.hashCode();
+        return 31 * result + (int) (budget.getBudgetMillis() ^ (budget.getBudgetMillis() >>> 32));
+    }
+
+    private class TimeLimitedWeight extends Weight {
+        private final Weight delegateWeight;
+
+        public TimeLimitedWeight(Weight delegateWeight) {
+            this.delegateWeight = delegateWeight;
+        }
+
+        @Override
+        public Explanation explain(AtomicReaderContext context, int doc) throws IOException {
+            return delegateWeight.explain(context, doc);
+        }
+
+        @Override
+        public Query getQuery() {
+            return TimeLimitedQuery.this;
+        }
+
+        @Override
+        public float getValueForNormalization() throws IOException {
+            return delegateWeight.getValueForNormalization();
+        }
+
+        @Override
+        public void normalize(float norm, float topLevelBoost) {
+            delegateWeight.normalize(norm, topLevelBoost);
+        }
+
+        @Override
+        public Scorer scorer(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+            if (budget.exhausted()) {
+                return null;
+            }
+            Bits limited = new TimeLimitedBits(acceptDocs == null ? new Bits.MatchAllBits(context.reader().maxDoc()) : acceptDocs);
+            return delegateWeight.scorer(context, limited);
+        }
+    }
+
+    /**
+     * Bits that stop accepting documents when the budget is spent.
+     */
+    private class TimeLimitedBits implements Bits {
+        private final Bits delegateBits;
+        private boolean stopped = false;
+
+        public TimeLimitedBits(Bits delegateBits) {
+            this.delegateBits = delegateBits;
+        }
+
+        @Override
+        public boolean get(int index) {
+            if (stopped || !delegateBits.get(index)) {
+                return false;
+            }
+            stopped = budget.exhausted();
+            return !stopped;
+        }
+
+        @Override
+        public int length() {
+            return delegateBits.length();
+        }
+    }
+}
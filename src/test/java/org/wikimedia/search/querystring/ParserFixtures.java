@@ -0,0 +1,60 @@
+package org.wikimedia.search.querystring;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.wikimedia.search.querystring.query.BasicQueryBuilder;
+import org.wikimedia.search.querystring.query.DefaultingQueryBuilder;
+import org.wikimedia.search.querystring.query.FieldQueryBuilder;
+import org.wikimedia.search.querystring.query.FieldUsage;
+
+/**
+ * Builds parsers for tests that care about what happens while parsing rather
+ * than about the fields being searched. Every field has a standard and a
+ * precise field and nothing else.
+ */
+public class ParserFixtures {
+    private ParserFixtures() {
+        // Util class
+    }
+
+    public static Analyzer analyzer() {
+        return new StandardAnalyzer();
+    }
+
+    /**
+     * Fields named name searching name and precise_name with analyzer.
+     */
+    public static List<FieldUsage> fields(Analyzer analyzer, String... names) {
+        List<FieldUsage> fields = new ArrayList<>();
+        for (String name : names) {
+            fields.add(new FieldUsage(name, analyzer, "precise_" + name, analyzer, null, null, null, null, 0, 0, null, 3, 1));
+        }
+        return fields;
+    }
+
+    /**
+     * Fields helper that never finds fields in the mapping, leaving them to
+     * use analyzer.
+     */
+    public static FieldsHelper fieldsHelper(Analyzer analyzer) {
+        return new FieldsHelper(new FieldResolver.NeverFinds(analyzer, analyzer));
+    }
+
+    /**
+     * Parser that defaults to searching defaultFields with AND and treats the
+     * empty query as match all.
+     */
+    public static QueryParserHelper parser(FieldsHelper fieldsHelper, FieldQueryBuilder.Settings settings, List<FieldUsage> defaultFields) {
+        return parser(fieldsHelper, settings, defaultFields, true, true);
+    }
+
+    public static QueryParserHelper parser(FieldsHelper fieldsHelper, FieldQueryBuilder.Settings settings, List<FieldUsage> defaultFields,
+            boolean defaultIsAnd, boolean emptyIsMatchAll) {
+        DefaultingQueryBuilder builder = new DefaultingQueryBuilder(new DefaultingQueryBuilder.Settings(), new BasicQueryBuilder(settings,
+                defaultFields));
+        return new QueryParserHelper(fieldsHelper, builder, defaultIsAnd, emptyIsMatchAll);
+    }
+}
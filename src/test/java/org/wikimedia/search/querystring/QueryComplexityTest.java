@@ -0,0 +1,148 @@
+package org.wikimedia.search.querystring;
+
+import static org.junit.Assert.assertEquals;
+import static org.wikimedia.search.querystring.ParserFixtures.analyzer;
+import static org.wikimedia.search.querystring.ParserFixtures.fields;
+import static org.wikimedia.search.querystring.ParserFixtures.fieldsHelper;
+import static org.wikimedia.search.querystring.ParserFixtures.parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.lucene.search.Query;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameter;
+import org.junit.runners.Parameterized.Parameters;
+import org.wikimedia.search.querystring.QueryParserHelper.ComplexityCheck;
+import org.wikimedia.search.querystring.query.FieldQueryBuilder;
+import org.wikimedia.search.querystring.query.FieldUsage;
+import org.wikimedia.search.querystring.query.ParseEvents;
+
+/**
+ * Tests that query complexity is measured from the parse tree and that
+ * measuring it doesn't resolve fields again.
+ */
+@RunWith(Parameterized.class)
+public class QueryComplexityTest {
+    /**
+     * Number of fields searched when the query doesn't name any.
+     */
+    private static final int DEFAULT_FIELDS = 2;
+
+    @Parameters(name = "{5}")
+    public static Collection<Object[]> params() {
+        List<Object[]> params = new ArrayList<>();
+        // clauses, max depth, multi term field clauses, phrase cost, fields resolves, query
+        for (Object[] param : Arrays.asList(new Object[][] { //
+                { 1, 0, 0, 0, 0, "foo" },
+                { 3, 0, 0, 0, 0, "foo bar baz" },
+                // Depth
+                { 1, 1, 0, 0, 0, "(foo)" },
+                { 3, 2, 0, 0, 0, "(foo (bar baz))" },
+                { 3, 2, 0, 0, 0, "(foo (bar)) (baz)" },
+                // Multi term queries times the fields they search
+                { 1, 0, DEFAULT_FIELDS, 0, 0, "foo*" },
+                { 1, 0, DEFAULT_FIELDS, 0, 0, "foo~" },
+                { 1, 0, DEFAULT_FIELDS, 0, 0, "f?o" },
+                { 1, 0, 1, 0, 1, "a:foo*" },
+                { 1, 0, 3, 0, 1, "a,b,c:foo*" },
+                { 2, 0, 2, 0, 2, "a:foo* b:bar~" },
+                { 2, 1, 4, 0, 1, "a,b:(foo* bar~)" },
+                { 2, 1, 0, 0, 1, "a,b:(foo bar)" },
+                // Phrases times one more than their slop
+                { 1, 0, 0, 2, 0, "\"foo bar\"" },
+                { 1, 0, 0, 9, 0, "\"foo bar baz\"~2" },
+                { 1, 0, DEFAULT_FIELDS, 2, 0, "\"foo* bar\"" },
+                { 1, 0, 3, 4, 1, "a,b,c:\"foo* bar\"~1" },
+                })) {
+            params.add(param);
+        }
+        return params;
+    }
+
+    @Parameter(0)
+    public int clauses;
+    @Parameter(1)
+    public int maxDepth;
+    @Parameter(2)
+    public int multiTermFieldClauses;
+    @Parameter(3)
+    public int phraseCost;
+    @Parameter(4)
+    public int resolves;
+    @Parameter(5)
+    public String str;
+
+    @Test
+    public void complexity() {
+        final List<QueryComplexity> checked = new ArrayList<>();
+        QueryParserHelper helper = helper(fieldsHelper(analyzer()));
+        helper.setComplexityCheck(new ComplexityCheck() {
+            @Override
+            public void check(QueryComplexity complexity) {
+                checked.add(complexity);
+            }
+        }, DEFAULT_FIELDS);
+        helper.parse(str);
+        assertEquals(1, checked.size());
+        QueryComplexity complexity = helper.getComplexity();
+        assertEquals(checked.get(0), complexity);
+        assertEquals(clauses, complexity.getClauses());
+        assertEquals(maxDepth, complexity.getMaxDepth());
+        assertEquals(multiTermFieldClauses, complexity.getMultiTermFieldClauses());
+        assertEquals(phraseCost, complexity.getPhraseCost());
+        assertEquals(clauses + maxDepth * QueryComplexity.DEPTH_WEIGHT + multiTermFieldClauses * QueryComplexity.MULTI_TERM_WEIGHT
+                + phraseCost, complexity.score());
+    }
+
+    @Test
+    public void resolvesEachFieldedClauseOnce() {
+        FieldsHelper fieldsHelper = fieldsHelper(analyzer());
+        final int[] resolved = new int[1];
+        fieldsHelper.setEvents(new ParseEvents() {
+            @Override
+            public Event begin(Kind kind) {
+                if (kind == Kind.RESOLVE) {
+                    resolved[0]++;
+                }
+                return Event.NOOP;
+            }
+        });
+        QueryParserHelper helper = helper(fieldsHelper);
+        helper.setComplexityCheck(new ComplexityCheck() {
+            @Override
+            public void check(QueryComplexity complexity) {
+            }
+        }, DEFAULT_FIELDS);
+        helper.parse(str);
+        assertEquals(resolves, resolved[0]);
+    }
+
+    @Test
+    public void notMeasuredWithoutCheck() {
+        QueryParserHelper helper = helper(fieldsHelper(analyzer()));
+        Query parsed = helper.parse(str);
+        assertEquals(null, helper.getComplexity());
+        // Measuring doesn't change what is built
+        QueryParserHelper measured = helper(fieldsHelper(analyzer()));
+        measured.setComplexityCheck(new ComplexityCheck() {
+            @Override
+            public void check(QueryComplexity complexity) {
+            }
+        }, DEFAULT_FIELDS);
+        assertEquals(parsed, measured.parse(str));
+    }
+
+    private QueryParserHelper helper(FieldsHelper fieldsHelper) {
+        fieldsHelper.whitelistAll();
+        List<FieldUsage> usages = new ArrayList<>();
+        for (int i = 0; i < DEFAULT_FIELDS; i++) {
+            usages.addAll(fields(analyzer(), "field" + i));
+        }
+        return parser(fieldsHelper, new FieldQueryBuilder.Settings(), usages, false, false);
+    }
+}
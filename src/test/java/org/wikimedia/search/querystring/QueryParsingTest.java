@@ -33,6 +33,13 @@ import org.apache.lucene.analysis.standard.StandardTokenizer;
 import org.apache.lucene.analysis.synonym.SynonymFilter;
 import org.apache.lucene.analysis.synonym.SynonymMap;
 import org.apache.lucene.analysis.util.CharArraySet;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanClause.Occur;
@@ -40,10 +47,14 @@ import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.FuzzyQuery;
 import org.apache.lucene.search.MultiPhraseQuery;
 import org.apache.lucene.search.MultiTermQuery;
+import org.apache.lucene.search.MultiTermQuery.RewriteMethod;
+import org.apache.lucene.search.MultiTermQuery.TopTermsScoringBooleanQueryRewrite;
 import org.apache.lucene.search.PhraseQuery;
 import org.apache.lucene.search.PrefixQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.RegexpQuery;
 import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermRangeFilter;
 import org.apache.lucene.search.WildcardQuery;
 import org.apache.lucene.search.spans.FieldMaskingSpanQuery;
 import org.apache.lucene.search.spans.SpanMultiTermQueryWrapper;
@@ -52,12 +63,19 @@ import org.apache.lucene.search.spans.SpanNearQuery;
 import org.apache.lucene.search.spans.SpanOrQuery;
 import org.apache.lucene.search.spans.SpanQuery;
 import org.apache.lucene.search.spans.SpanTermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
 import org.apache.lucene.util.CharsRef;
+import org.apache.lucene.util.Version;
+import org.apache.lucene.util.automaton.Operations;
+import org.apache.lucene.util.automaton.RegExp;
 import org.elasticsearch.common.base.Splitter;
 import org.elasticsearch.common.collect.ArrayListMultimap;
 import org.elasticsearch.common.collect.Iterables;
 import org.elasticsearch.common.collect.ListMultimap;
+import org.elasticsearch.common.lucene.search.Queries;
 import org.elasticsearch.common.lucene.search.XFilteredQuery;
+import org.elasticsearch.index.Index;
 import org.elasticsearch.index.query.support.QueryParsers;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -66,12 +84,18 @@ import org.junit.runners.Parameterized.Parameter;
 import org.junit.runners.Parameterized.Parameters;
 import org.wikimedia.search.extra.regex.SourceRegexFilter;
 import org.wikimedia.search.extra.util.FieldValues;
+import org.wikimedia.search.querystring.query.AutoRewriteMethod;
 import org.wikimedia.search.querystring.query.BasicQueryBuilder;
 import org.wikimedia.search.querystring.query.DefaultingQueryBuilder;
+import org.wikimedia.search.querystring.query.Degradations;
+import org.wikimedia.search.querystring.query.ExpansionBudget;
 import org.wikimedia.search.querystring.query.FieldQueryBuilder;
 import org.wikimedia.search.querystring.query.FieldReference;
 import org.wikimedia.search.querystring.query.FieldUsage;
+import org.wikimedia.search.querystring.query.MultiFieldRegexFilter;
 import org.wikimedia.search.querystring.query.RegexQueryBuilder;
+import org.wikimedia.search.querystring.query.TimeBudget;
+import org.wikimedia.search.querystring.query.TimeLimitedQuery;
 
 /**
  * Tests that the parser builds the right queries.
@@ -180,7 +204,11 @@ public class QueryParsingTest {
                 { query("fooooooooooooooooooooooooooooooooooooooooooooooooooooooooooooooooo~2"), //
                         "fooooooooooooooooooooooooooooooooooooooooooooooooooooooooooooooooo~" }, //
                 { query("pickl*"), "pickl*" }, //
-                { and("pickl", "*"), "pickl *" }, //
+                { and("pickl", exists("field")), "pickl *" }, //
+                { exists("field"), "*" }, //
+                { exists("field"), "*", "prefixFields=field->field_prefix" }, //
+                { or(exists("a"), exists("b")), "*", "fields=a|b" }, //
+                { and("foo", exists("another")), "foo another:*" }, //
                 { query("pickl?"), "pickl?" }, //
                 { query("pic???"), "pic???" }, //
                 { new TermQuery(new Term("field", "???")), "???", "standardAnalyzer=keyword" }, //
@@ -192,6 +220,30 @@ public class QueryParsingTest {
                 { new TermQuery(new Term("field", "?o?")), "?o?", "reverseFields=field->field_reverse,standardAnalyzer=keyword" }, //
                 { new TermQuery(new Term("field", "*o*")), "*o*", "reverseFields=field->field_reverse,standardAnalyzer=keyword" }, //
                 { query("field_prefix:oo"), "oo*", "prefixFields=field->field_prefix" }, //
+                { query("field_prefix:oo"), "Oo*", "prefixFields=field->field_prefix" }, //
+                // Prefixes inside phrases use the prefix field and stay in position
+                { span("precise_field", "precise_field:united", "field_prefix:sta"), "\"united sta*\"", "prefixFields=field->field_prefix" }, //
+                { span("precise_field", "precise_field:united", "field_prefix:sta"), "\"united Sta*\"", "prefixFields=field->field_prefix" }, //
+                { span("precise_field", "field_prefix:unit", "precise_field:states"), "\"unit* states\"", "prefixFields=field->field_prefix" }, //
+                { span("precise_field", "precise_field:the", "field_prefix:unit", "precise_field:states"), "\"the unit* states\"",
+                        "prefixFields=field->field_prefix" }, //
+                { span("precise_field", 2, "precise_field:united", "field_prefix:sta"), "\"united sta*\"~2",
+                        "prefixFields=field->field_prefix" }, //
+                { span("field", "field:unit", "field_prefix:sta"), "\"united sta*\"~", "prefixFields=field->field_prefix" }, //
+                // Prefixes outside of the prefix field's edge ngrams are expanded against the precise field
+                { query("field_prefix:oo"), "oo*", "prefixFields=field->field_prefix, prefixMinGram=2, prefixMaxGram=4" }, //
+                { query("field_prefix:oooo"), "oooo*", "prefixFields=field->field_prefix, prefixMinGram=2, prefixMaxGram=4" }, //
+                { query("ooooo*"), "ooooo*", "prefixFields=field->field_prefix, prefixMinGram=2, prefixMaxGram=4" }, //
+                { query("o*"), "o*", "prefixFields=field->field_prefix, prefixMinGram=2, prefixMaxGram=4" }, //
+                { query("field_prefix:ooooo"), "ooooo*", "prefixFields=field->field_prefix, prefixMinGram=2" }, //
+                { span("precise_field", "precise_field:united", "field_prefix:stat"), "\"united stat*\"",
+                        "prefixFields=field->field_prefix, prefixMaxGram=4" }, //
+                { span("precise_field", "precise_field:united", "precise_field:state*"), "\"united state*\"",
+                        "prefixFields=field->field_prefix, prefixMaxGram=4" }, //
+                // Short prefixes aren't expanded
+                { query("o"), "o*", "minPrefixLength=2" }, //
+                { query("oo*"), "oo*", "minPrefixLength=2" }, //
+                { query("field_prefix:o"), "o*", "minPrefixLength=2, prefixFields=field->field_prefix" }, //
                 { query("p?l"), "p?l" }, //
                 { query("pi*kl?"), "pi*kl?" }, //
                 { query("pi\\*kl?"), "pi\\*kl?" }, //
@@ -259,6 +311,12 @@ public class QueryParsingTest {
                         "preciseAnalyzer=synonym" }, //
                 { span("precise_field", "baz*", new Object[] { "precise_field:foo", "precise_field:bar" }), "\"baz* foo\"",
                         "preciseAnalyzer=synonym" }, //
+                // Synonyms after normal terms keep the terms before them
+                { phrase("baz", new Object[] { "foo", "bar" }), "\"baz foo\"", "preciseAnalyzer=synonym" }, //
+                { phrase("baz", new Object[] { "foo", "bar" }, "bort"), "\"baz foo bort\"", "preciseAnalyzer=synonym" }, //
+                { span("precise_field", "precise_field:baz", new Object[] { "precise_field:foo", "precise_field:bar" }, "bort*"),
+                        "\"baz foo bort*\"", "preciseAnalyzer=synonym" }, //
+                { or("precise_field:foo", "precise_field:bar"), "\"foo\"", "preciseAnalyzer=synonym" }, //
                 { span("precise_field", "foo*", "precise_field:baz"), "\"foo* baz\"", "preciseAnalyzer=synonym" }, //
                 { span("precise_field", "foooo~1", "precise_field:baz"), "\"foooo~ baz\"", "preciseAnalyzer=synonym" }, //
                 { span("precise_field", "precise_field:baz", "foooo~1"), "\"baz foooo~\"", "preciseAnalyzer=synonym" }, //
@@ -266,11 +324,50 @@ public class QueryParsingTest {
                 { query("foo"), "/foo./", "allowRegex=false" },//
                 { new TermQuery(new Term("field", "/foo./")), "/foo./", "allowRegex=false, standardAnalyzer=keyword" },//
                 // Allowed regexes are regexes
-                { query("/foo./[3]"), "/foo./" },//
-                { query("/f\\oo./[3]"), "/f\\oo./" },//
-                { query("/cat|dog|crumpet/[3]"), "/cat|dog|crumpet/" },//
+                { regex("foo.", should("trigram_field:foo"), "field"), "/foo./" },//
+                { regex("f\\oo.", should("trigram_field:foo"), "field"), "/f\\oo./" },//
+                { regex("cat|dog|crumpet", should(should("trigram_field:cat", "trigram_field:dog", and("trigram_field:cru", "trigram_field:rum",
+                        "trigram_field:ump", "trigram_field:mpe", "trigram_field:pet"))), "field"), "/cat|dog|crumpet/" },//
                 // Regexes are fine even without the ngram field
-                { query("another:/foo./"), "another:/foo./" },//
+                { regex("foo.", null, "another"), "another:/foo./" },//
+                // Regexes we can't find ngrams for are left to Wikimedia-extra
+                { query("/cat|do/[3]"), "/cat|do/" },//
+                // Lucene's regexes run against the precise field prefiltered by the ngram field
+                { luceneRegex("precise_field:foo.", "trigram_field:foo"), "/foo./", "luceneRegex=true" },//
+                { luceneRegex("precise_field:foo.", "trigram_field:foo"), "/Foo./", "luceneRegex=true" },//
+                { luceneRegex("precise_field:fo+|bar", null), "/fo+|bar/", "luceneRegex=true" },//
+                { luceneRegex("another:foo.", null), "another:/foo./", "luceneRegex=true" },//
+                { luceneRegex("precise_field:Foo.", null), "/Foo./", "luceneRegex=true, caseSensitiveRegex=true" },//
+                { or(luceneRegex("precise_a:foo.", "trigram_a:foo"), luceneRegex("precise_b:foo.", null)), "/foo./",
+                        "luceneRegex=true, fields=a|b, ngramFields=a->trigram_a" },//
+                // Multi field regexes are combined with a combined prefilter
+                { multiRegex("foo.", should("trigram_a:foo", "trigram_b:foo"), "a", "b"), "/foo./",
+                        "fields=a|b, ngramFields=a->trigram_a|b->trigram_b" },//
+                // But each field keeps its own boost
+                { multiRegex("foo.", should("trigram_a:foo", "trigram_b:foo"), "a", "b^5"), "/foo./",
+                        "fields=a|b^5, ngramFields=a->trigram_a|b->trigram_b" },//
+                { multiRegex("foo.", null, "a", "b"), "/foo./", "fields=a|b, ngramFields=a->trigram_a" },//
+                { multiRegex("cat|dog", should(should("trigram_a:cat", "trigram_a:dog"), should("trigram_b:cat", "trigram_b:dog")), "a", "b"),
+                        "/cat|dog/", "fields=a|b, ngramFields=a->trigram_a|b->trigram_b" },//
+                // Regexes we can't find ngrams for are left to Wikimedia-extra one field at a time
+                { or("a:/cat|do/[3]", "b:/cat|do/[3]"), "/cat|do/", "fields=a|b, ngramFields=a->trigram_a|b->trigram_b" },//
+                { or("a:/(foobar)/[3]", "b:/(foobar)/[3]"), "/(foobar)/", "fields=a|b, ngramFields=a->trigram_a|b->trigram_b" },//
+                { or("a:/a|b|c|d|e/[3]", "b:/a|b|c|d|e/[3]"), "/a|b|c|d|e/", "fields=a|b, ngramFields=a->trigram_a|b->trigram_b" },//
+                { multiRegex("Fooo", should(and("trigram_a:foo", "trigram_a:ooo"), and("trigram_b:foo", "trigram_b:ooo")), "a", "b"),
+                        "/Fooo/", "fields=a|b, ngramFields=a->trigram_a|b->trigram_b" },//
+                // Only the literals that must match are used
+                { multiRegex("ab{0,2}cde+(fgh)ijk[lmn]opq.rs",
+                        should(and("trigram_a:cde", "trigram_a:ijk", "trigram_a:opq"), and("trigram_b:cde", "trigram_b:ijk", "trigram_b:opq")),
+                        "a", "b"), "/ab{0,2}cde+(fgh)ijk[lmn]opq.rs/", "fields=a|b, ngramFields=a->trigram_a|b->trigram_b" },//
+                { multiRegex("(foo|bar)baz", should("trigram_a:baz", "trigram_b:baz"), "a", "b"), "/(foo|bar)baz/",
+                        "fields=a|b, ngramFields=a->trigram_a|b->trigram_b" },//
+                { multiRegex("a\\.bc", should(and("trigram_a:a.b", "trigram_a:.bc"), and("trigram_b:a.b", "trigram_b:.bc")), "a", "b"),
+                        "/a\\.bc/", "fields=a|b, ngramFields=a->trigram_a|b->trigram_b" },//
+                { or("a:/~(foo)/[3]", "b:/~(foo)/[3]"), "/~(foo)/", "fields=a|b, ngramFields=a->trigram_a|b->trigram_b" },//
+                // Ngrams are made of code points so they never split surrogate pairs
+                { multiRegex("\uD835\uDC9C\uD835\uDC9Ccd", should(and("trigram_a:\uD835\uDC9C\uD835\uDC9Cc", "trigram_a:\uD835\uDC9Ccd"),
+                        and("trigram_b:\uD835\uDC9C\uD835\uDC9Cc", "trigram_b:\uD835\uDC9Ccd")), "a", "b"), "/\uD835\uDC9C\uD835\uDC9Ccd/",
+                        "fields=a|b, ngramFields=a->trigram_a|b->trigram_b" },//
                 // Fun errors found by random querying
                 { query("foo"), "foo\"" },//
                 { query("6?"), "6?" },//
@@ -280,6 +377,77 @@ public class QueryParsingTest {
                 { query("precise_field:test"), "\". test\"" },//
                 // This one was adding the term queries using the incorrect fields
                 { span("precise_field", "x*", "precise_field:x", "precise_field:x"), "\"x* x x\"" },//
+                // Multi term queries in phrases can be expanded against the index
+                { phrase("foo", new Object[] { "bar", "baz" }), "\"foo ba*\"", "expandPhraseTerms=true" },//
+                { phrase(new Object[] { "bar", "baz" }, "foo"), "\"ba? foo\"", "expandPhraseTerms=true" },//
+                { phrase("foo", new Object[] { "bar", "baz" }), "\"foo bax~\"", "expandPhraseTerms=true" },//
+                { phrase(2, "foo", new Object[] { "bar", "baz" }, "bort"), "\"foo ba* bort\"~2", "expandPhraseTerms=true" },//
+                { phrase("foo", "bort"), "\"foo bor*\"", "expandPhraseTerms=true" },//
+                // But not if there are too many terms or the term is on another field
+                { span("precise_field", "precise_field:foo", "x*"), "\"foo x*\"", "expandPhraseTerms=true" },//
+                // Positions that match no terms mean the phrase can't match
+                { newMatchNoDocsQuery(), "\"foo zzz*\"", "expandPhraseTerms=true" },//
+                { span("field", "field:foo", "ba*"), "\"foo ba*\"~", "expandPhraseTerms=true" },//
+                { span("precise_field", "precise_field:foo", "ba*"), "\"foo ba*\"" },//
+                // Terms that fall back to analysis become spans of their own
+                { span("precise_field", "precise_field:foo", span("field", "field:bar", "field:baz")), "\"foo *bar-the-baz\"~" },//
+                { span("precise_field", new Object[] { "field:foo", "field:bar" }, "precise_field:baz"), "\"*foo baz\"",
+                        "standardAnalyzer=synonym" },//
+                // Terms more common than the cutoff frequency are only for scoring
+                { and(clause("foo", Occur.SHOULD), "bar"), "foo bar", "cutoffFrequency=0.5" },//
+                { and("bar", clause("foo", Occur.SHOULD), "baz"), "bar foo baz", "cutoffFrequency=0.5" },//
+                { and("foo", "bar"), "foo bar", "cutoffFrequency=4" },//
+                { and(clause("foo", Occur.SHOULD), "bar"), "foo bar", "cutoffFrequency=3" },//
+                { and(clause("foo", Occur.SHOULD), "bar"), "foo +bar", "cutoffFrequency=0.5" },//
+                { and(clause("foo", Occur.SHOULD), phrase("bar", "baz")), "foo \"bar baz\"", "cutoffFrequency=0.5" },//
+                // Unless there isn't anything else required
+                { and("foo", "foo"), "foo foo", "cutoffFrequency=0.5" },//
+                { and("foo", clause("bar", Occur.MUST_NOT)), "foo -bar", "cutoffFrequency=0.5" },//
+                { query("foo"), "foo", "cutoffFrequency=0.5" },//
+                // And it doesn't do anything with the OR operator
+                { or("foo", "bar"), "foo bar", "cutoffFrequency=0.5, default=or" },//
+                // Expensive clauses are limited by the time budget
+                { budgeted("pickl*"), "pickl*", "budgetMs=100" },//
+                { budgeted("pi*kl?"), "pi*kl?", "budgetMs=100" },//
+                { budgeted("foo~1"), "foo~", "budgetMs=100" },//
+                { and("foo", budgeted("bar~1")), "foo bar~", "budgetMs=100" },//
+                { budgeted(new WildcardQuery(new Term("field_reverse", "oo*"))), "*oo",
+                        "budgetMs=100, reverseFields=field->field_reverse" },//
+                { budgeted(luceneRegex("precise_field:foo.", "trigram_field:foo")), "/foo./", "budgetMs=100, luceneRegex=true" },//
+                { budgeted(span("precise_field", "precise_field:united", "precise_field:sta*")), "\"united sta*\"", "budgetMs=100" },//
+                // Cheap clauses aren't
+                { query("foo"), "foo", "budgetMs=100" },//
+                { phrase("foo", "bar"), "\"foo bar\"", "budgetMs=100" },//
+                { query("field_prefix:oo"), "oo*", "budgetMs=100, prefixFields=field->field_prefix" },//
+                // Multi term queries take their terms from the expansion budget
+                { expansionBudgeted("pickl*"), "pickl*", "expansionBudget=100" },//
+                { expansionBudgeted("pi*kl?"), "pi*kl?", "expansionBudget=100" },//
+                { expansionBudgeted("foo~1"), "foo~", "expansionBudget=100" },//
+                { and(expansionBudgeted("foo*"), expansionBudgeted("bar~1")), "foo* bar~", "expansionBudget=100" },//
+                { query("foo"), "foo", "expansionBudget=100" },//
+                { query("field_prefix:oo"), "oo*", "expansionBudget=100, prefixFields=field->field_prefix" },//
+                // Phrase terms expanded against the index take their terms from the budget
+                { phrase("foo", new Object[] { "bar", "baz" }), "\"foo ba*\"", "expandPhraseTerms=true, expansionBudget=2" },//
+                { span("precise_field", "precise_field:foo", expansionBudgetedSpan("ba*", 1)), "\"foo ba*\"",
+                        "expandPhraseTerms=true, expansionBudget=1" },//
+                // Multi term queries use the rewrite method
+                { rewritten("pickl*", MultiTermQuery.CONSTANT_SCORE_FILTER_REWRITE), "pickl*", "rewrite=constant_score_filter" },//
+                { rewritten("pi*kl?", new TopTermsScoringBooleanQueryRewrite(10)), "pi*kl?", "rewrite=top_terms_10" },//
+                { rewritten("pickl*", new AutoRewriteMethod(50)), "pickl*", "rewrite=auto" },//
+                { rewritten("foo~1", new AutoRewriteMethod(50)), "foo~", "rewrite=auto" },//
+                { query("foo"), "foo", "rewrite=auto" },//
+                // Degraded expensive clauses become term queries and sloppy phrases become exact
+                { query("foo"), "foo~", "degrade=true" },//
+                { query("pickl"), "pickl*", "degrade=true" },//
+                { new TermQuery(new Term("field", "pi*kl?")), "pi*kl?", "degrade=true, standardAnalyzer=keyword" },//
+                { new TermQuery(new Term("field", "*oo")), "*oo", "degrade=true, reverseFields=field->field_reverse, standardAnalyzer=keyword" },//
+                { new TermQuery(new Term("field", "/foo./")), "/foo./", "degrade=true, luceneRegex=true, standardAnalyzer=keyword" },//
+                { phrase("foo", "bar"), "\"foo bar\"~2", "degrade=true" },//
+                { span("precise_field", "precise_field:united", "field:sta"), "\"united sta*\"", "degrade=true" },//
+                // Cheap clauses aren't degraded
+                { query("foo"), "foo", "degrade=true" },//
+                { phrase("foo", "bar"), "\"foo bar\"", "degrade=true" },//
+                { query("field_prefix:oo"), "oo*", "degrade=true, prefixFields=field->field_prefix" },//
         }) {
             Query expected = (Query) param[0];
             String toParse = param[1].toString();
@@ -306,6 +474,17 @@ public class QueryParsingTest {
             Analyzer standardAnalyzer = parseAnalyzer("english");
             Analyzer preciseAnalyzer = parseAnalyzer("standard");
             boolean allowRegex = true;
+            boolean luceneRegex = false;
+            boolean caseSensitiveRegex = false;
+            boolean expandPhraseTerms = false;
+            float cutoffFrequency = 0;
+            Long budgetMs = null;
+            Integer expansionBudget = null;
+            String rewrite = null;
+            int prefixMinGram = 0;
+            int prefixMaxGram = 0;
+            int minPrefixLength = 0;
+            boolean degrade = false;
             String label;
             switch (param.length) {
             case 2:
@@ -359,6 +538,7 @@ public class QueryParsingTest {
                 }
                 parseToMap(reverseFields, settings, "reverseFields");
                 parseToMap(prefixFields, settings, "prefixFields");
+                parseToMap(ngramFields, settings, "ngramFields");
                 String newStandardAnalyzer = settings.remove("standardAnalyzer");
                 if (newStandardAnalyzer != null) {
                     standardAnalyzer = parseAnalyzer(newStandardAnalyzer);
@@ -371,6 +551,50 @@ public class QueryParsingTest {
                 if (newAllowRegex != null) {
                     allowRegex = Boolean.parseBoolean(newAllowRegex);
                 }
+                String newLuceneRegex = settings.remove("luceneRegex");
+                if (newLuceneRegex != null) {
+                    luceneRegex = Boolean.parseBoolean(newLuceneRegex);
+                }
+                String newCaseSensitiveRegex = settings.remove("caseSensitiveRegex");
+                if (newCaseSensitiveRegex != null) {
+                    caseSensitiveRegex = Boolean.parseBoolean(newCaseSensitiveRegex);
+                }
+                String newExpandPhraseTerms = settings.remove("expandPhraseTerms");
+                if (newExpandPhraseTerms != null) {
+                    expandPhraseTerms = Boolean.parseBoolean(newExpandPhraseTerms);
+                }
+                String newCutoffFrequency = settings.remove("cutoffFrequency");
+                if (newCutoffFrequency != null) {
+                    cutoffFrequency = Float.parseFloat(newCutoffFrequency);
+                }
+                String newBudgetMs = settings.remove("budgetMs");
+                if (newBudgetMs != null) {
+                    budgetMs = Long.parseLong(newBudgetMs);
+                }
+                String newExpansionBudget = settings.remove("expansionBudget");
+                if (newExpansionBudget != null) {
+                    expansionBudget = Integer.parseInt(newExpansionBudget);
+                }
+                String newRewrite = settings.remove("rewrite");
+                if (newRewrite != null) {
+                    rewrite = newRewrite;
+                }
+                String newPrefixMinGram = settings.remove("prefixMinGram");
+                if (newPrefixMinGram != null) {
+                    prefixMinGram = Integer.parseInt(newPrefixMinGram);
+                }
+                String newPrefixMaxGram = settings.remove("prefixMaxGram");
+                if (newPrefixMaxGram != null) {
+                    prefixMaxGram = Integer.parseInt(newPrefixMaxGram);
+                }
+                String newMinPrefixLength = settings.remove("minPrefixLength");
+                if (newMinPrefixLength != null) {
+                    minPrefixLength = Integer.parseInt(newMinPrefixLength);
+                }
+                String newDegrade = settings.remove("degrade");
+                if (newDegrade != null) {
+                    degrade = Boolean.parseBoolean(newDegrade);
+                }
                 if (!settings.isEmpty()) {
                     throw new RuntimeException("Invalid example settings: " + param[2]);
                 }
@@ -379,7 +603,9 @@ public class QueryParsingTest {
                 throw new RuntimeException("Invalid example:  " + Arrays.toString(param));
             }
             params.add(new Object[] { label, expected, toParse, defaultIsAnd, emptyIsMatchAll, fields, aliases, whitelist, blacklist,
-                    allowLeadingWildcard, reverseFields, prefixFields, ngramFields, standardAnalyzer, preciseAnalyzer, allowRegex });
+                    allowLeadingWildcard, reverseFields, prefixFields, ngramFields, standardAnalyzer, preciseAnalyzer, allowRegex,
+                    expandPhraseTerms, cutoffFrequency, luceneRegex, budgetMs, expansionBudget, rewrite, prefixMinGram, prefixMaxGram,
+                    minPrefixLength, degrade, caseSensitiveRegex });
         }
         return params;
     }
@@ -395,6 +621,7 @@ public class QueryParsingTest {
     private static final Pattern FIELD_PATTERN = Pattern.compile("([^:]+):(.+)");
     private static final DefaultingQueryBuilder.Settings UNCHANCED_DEFAULT_SETTINGS = new DefaultingQueryBuilder.Settings();
     private static final FieldQueryBuilder.Settings UNCHANGED_SETTINGS = new FieldQueryBuilder.Settings();
+    private static IndexReader reader;
     @Parameter(0)
     public String label;
     @Parameter(1)
@@ -427,6 +654,28 @@ public class QueryParsingTest {
     public Analyzer preciseAnalyzer;
     @Parameter(15)
     public boolean allowRegex;
+    @Parameter(16)
+    public boolean expandPhraseTerms;
+    @Parameter(17)
+    public float cutoffFrequency;
+    @Parameter(18)
+    public boolean luceneRegex;
+    @Parameter(19)
+    public Long budgetMs;
+    @Parameter(20)
+    public Integer expansionBudget;
+    @Parameter(21)
+    public String rewrite;
+    @Parameter(22)
+    public int prefixMinGram;
+    @Parameter(23)
+    public int prefixMaxGram;
+    @Parameter(24)
+    public int minPrefixLength;
+    @Parameter(25)
+    public boolean degrade;
+    @Parameter(26)
+    public boolean caseSensitiveRegex;
 
     @Test
     public void parse() {
@@ -460,17 +709,74 @@ public class QueryParsingTest {
             FieldReference reference = fieldReference(field);
             FieldUsage usage = new FieldUsage(reference.getName(), standardAnalyzer, "precise_" + reference.getName(), preciseAnalyzer,
                     reverseFields.get(reference.getName()), reversePreciseAnalyzer, prefixFields.get(reference.getName()),
-                    prefixPreciseAnalyzer, ngramFields.get(reference.getName()), 3, reference.getBoost());
+                    prefixPreciseAnalyzer, prefixMinGram, prefixMaxGram, ngramFields.get(reference.getName()), 3, reference.getBoost());
             usages.add(usage);
         }
         FieldQueryBuilder.Settings settings = new FieldQueryBuilder.Settings();
         settings.setAllowLeadingWildcard(allowLeadingWildcard);
+        settings.setMinPrefixLength(minPrefixLength);
         if (allowRegex) {
-            settings.setRegexQueryBuilder(new RegexQueryBuilder.WikimediaExtraRegexQueryBuilder());
+            if (luceneRegex) {
+                RegexQueryBuilder.LuceneRegexQueryBuilder regexQueryBuilder = new RegexQueryBuilder.LuceneRegexQueryBuilder(
+                        new Index("test"));
+                regexQueryBuilder.setCaseSensitive(caseSensitiveRegex);
+                settings.setRegexQueryBuilder(regexQueryBuilder);
+            } else {
+                settings.setRegexQueryBuilder(new RegexQueryBuilder.WikimediaExtraRegexQueryBuilder(new Index("test")));
+            }
+        }
+        settings.setExpandPhraseTerms(expandPhraseTerms);
+        settings.setCutoffFrequency(cutoffFrequency);
+        settings.setIndexReader(reader());
+        if (budgetMs != null) {
+            settings.setTimeBudget(new TimeBudget(budgetMs, TimeBudget.Listener.NOOP));
+        }
+        if (expansionBudget != null) {
+            settings.setExpansionBudget(new ExpansionBudget(expansionBudget));
+        }
+        if ("auto".equals(rewrite)) {
+            settings.setRewriteMethod(new AutoRewriteMethod(settings.getFuzzyMaxExpansions()));
+        } else if (rewrite != null) {
+            settings.setRewriteMethod(QueryParsers.parseRewriteMethod(rewrite));
+        }
+        if (degrade) {
+            settings.setDegradations(new Degradations());
         }
         return new DefaultingQueryBuilder(UNCHANCED_DEFAULT_SETTINGS, new BasicQueryBuilder(settings, usages));
     }
 
+    /**
+     * A tiny index to expand multi term queries against and look up term
+     * frequencies in. Its never closed but
+     * its in memory so that is ok.
+     */
+    private static synchronized IndexReader reader() {
+        if (reader == null) {
+            try {
+                Directory dir = new RAMDirectory();
+                try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(Version.LUCENE_4_10_4, parseAnalyzer("standard")))) {
+                    StringBuilder text = new StringBuilder("foo bar baz bort");
+                    for (int i = 0; i < 60; i++) {
+                        text.append(" x").append(i);
+                    }
+                    Document doc = new Document();
+                    doc.add(new TextField("precise_field", text.toString(), Store.NO));
+                    doc.add(new TextField("field", "foo bar", Store.NO));
+                    writer.addDocument(doc);
+                    for (String field : new String[] { "foo baz", "foo bort", "foo" }) {
+                        doc = new Document();
+                        doc.add(new TextField("field", field, Store.NO));
+                        writer.addDocument(doc);
+                    }
+                }
+                reader = DirectoryReader.open(dir);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return reader;
+    }
+
     private static BooleanQuery or(Object... clauses) {
         BooleanQuery bq = new BooleanQuery();
         bq.setMinimumNumberShouldMatch(1);
@@ -589,13 +895,16 @@ public class QueryParsingTest {
     }
 
     private static SpanQuery spanify(Query q) {
+        if (q instanceof SpanQuery) {
+            return (SpanQuery) q;
+        }
         if (q instanceof TermQuery) {
             return new SpanTermQuery(((TermQuery) q).getTerm());
         }
         if (q instanceof MultiTermQuery) {
-            MultiTermQuery mq = (MultiTermQuery) q;
-            mq.setRewriteMethod(new TopTermsSpanBooleanQueryRewrite(UNCHANGED_SETTINGS.getFuzzyMaxExpansions()));
-            return new SpanMultiTermQueryWrapper<>(mq);
+            SpanMultiTermQueryWrapper<MultiTermQuery> span = new SpanMultiTermQueryWrapper<>((MultiTermQuery) q);
+            span.setRewriteMethod(new TopTermsSpanBooleanQueryRewrite(UNCHANGED_SETTINGS.getFuzzyMaxExpansions()));
+            return span;
         }
         throw new RuntimeException("No idea how to spanify:  " + q);
     }
@@ -682,6 +991,85 @@ public class QueryParsingTest {
         return new TermQuery(new Term(field, s));
     }
 
+    private static Query budgeted(Object query) {
+        return new TimeLimitedQuery(query(query), new TimeBudget(100, TimeBudget.Listener.NOOP));
+    }
+
+    private static Query expansionBudgeted(Object query) {
+        MultiTermQuery mq = (MultiTermQuery) query(query);
+        mq.setRewriteMethod(new ExpansionBudget(100).rewrite(mq.getRewriteMethod()));
+        return mq;
+    }
+
+    private static SpanQuery expansionBudgetedSpan(Object query, int budget) {
+        SpanMultiTermQueryWrapper<MultiTermQuery> span = new SpanMultiTermQueryWrapper<>((MultiTermQuery) query(query));
+        span.setRewriteMethod(new ExpansionBudget(budget).spanRewrite(UNCHANGED_SETTINGS.getFuzzyMaxExpansions()));
+        return span;
+    }
+
+    private static Query rewritten(Object query, RewriteMethod rewriteMethod) {
+        MultiTermQuery mq = (MultiTermQuery) query(query);
+        mq.setRewriteMethod(rewriteMethod);
+        return mq;
+    }
+
+    private static Query luceneRegex(String regex, String prefilter) {
+        Matcher m = FIELD_PATTERN.matcher(regex);
+        if (!m.matches()) {
+            throw new IllegalArgumentException("Regex must have a field:  " + regex);
+        }
+        Query query = new RegexpQuery(new Term(m.group(1), m.group(2)), RegExp.ALL ^ RegExp.AUTOMATON);
+        if (prefilter == null) {
+            return query;
+        }
+        return new XFilteredQuery(query, Queries.wrap(query(prefilter), null));
+    }
+
+    private static Query regex(String regex, Query prefilter, String field) {
+        return new XFilteredQuery(newMatchAllQuery(), regexFilter(regex, prefilter, field));
+    }
+
+    /**
+     * Build the query for a regex across many fields.
+     *
+     * @param fields the fields, each optionally followed by ^boost
+     */
+    private static Query multiRegex(String regex, Query prefilter, String... fields) {
+        List<String> names = new ArrayList<>();
+        for (String field : fields) {
+            names.add(fieldReference(field).getName());
+        }
+        MultiFieldRegexFilter filter = regexFilter(regex, prefilter, names.toArray(new String[names.size()]));
+        BooleanQuery bq = new BooleanQuery();
+        bq.setMinimumNumberShouldMatch(1);
+        for (String field : fields) {
+            FieldReference reference = fieldReference(field);
+            Query clause = new XFilteredQuery(newMatchAllQuery(), filter.field(reference.getName()));
+            clause.setBoost(reference.getBoost());
+            bq.add(clause, Occur.SHOULD);
+        }
+        return bq;
+    }
+
+    private static MultiFieldRegexFilter regexFilter(String regex, Query prefilter, String... fields) {
+        SourceRegexFilter.Settings settings = new SourceRegexFilter.Settings();
+        return new MultiFieldRegexFilter(Arrays.asList(fields), Collections.<String, FieldValues.Loader> emptyMap(), regex, prefilter,
+                settings.getCaseSensitive(), settings.getLocale(), settings.getMaxInspect(), settings.getRejectUnaccelerated(),
+                Operations.DEFAULT_MAX_DETERMINIZED_STATES);
+    }
+
+    private static BooleanQuery should(Object... clauses) {
+        BooleanQuery bq = new BooleanQuery();
+        for (int i = 0; i < clauses.length; i++) {
+            bq.add(clause(clauses[i], Occur.SHOULD));
+        }
+        return bq;
+    }
+
+    private static Query exists(String field) {
+        return new XFilteredQuery(newMatchAllQuery(), new TermRangeFilter(field, null, null, true, true));
+    }
+
     private static Query boost(Query query, float boost) {
         query.setBoost(boost);
         return query;
@@ -11,6 +11,7 @@ import org.apache.lucene.search.Query;
 import org.apache.lucene.util.TestUtil;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.index.Index;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.wikimedia.search.querystring.query.BasicQueryBuilder;
@@ -50,12 +51,21 @@ public class RandomQueryParsingTest extends RandomizedTest {
         settings.setAllowLeadingWildcard(rarely());
         settings.setAllowPrefix(frequently());
         settings.setMaxPhraseSlop(between(0, 10));
-        settings.setRegexQueryBuilder(ngramName == null ? null : new WikimediaExtraRegexQueryBuilder());
+        settings.setRegexQueryBuilder(ngramName == null ? null : new WikimediaExtraRegexQueryBuilder(new Index("test")));
         DefaultingQueryBuilder builder = new DefaultingQueryBuilder(new DefaultingQueryBuilder.Settings(), new BasicQueryBuilder(
                 settings, usages));
         String str = TestUtil.randomRealisticUnicodeString(getRandom(), 1000);
         log.info("Parsing \"{}\"", str);
-        Query parsed = new QueryParserHelper(fieldsHelper, builder, true, true).parse(str);
+        QueryParserHelper helper = new QueryParserHelper(fieldsHelper, builder, true, true);
+        if (randomBoolean()) {
+            helper.setComplexityCheck(new QueryParserHelper.ComplexityCheck() {
+                @Override
+                public void check(QueryComplexity complexity) {
+                    assertTrue(complexity.score() >= 0);
+                }
+            }, usages.size());
+        }
+        Query parsed = helper.parse(str);
         assertNotNull(parsed);
     }
 }
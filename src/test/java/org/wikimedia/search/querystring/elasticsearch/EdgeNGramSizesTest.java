@@ -0,0 +1,86 @@
+package org.wikimedia.search.querystring.elasticsearch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.Reader;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.analysis.core.LowerCaseFilter;
+import org.apache.lucene.analysis.ngram.EdgeNGramTokenFilter;
+import org.apache.lucene.analysis.ngram.NGramTokenFilter;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.standard.StandardTokenizer;
+import org.apache.lucene.analysis.util.CharArraySet;
+import org.apache.lucene.util.Version;
+import org.elasticsearch.common.collect.Tuple;
+import org.junit.Test;
+
+/**
+ * Tests that edge ngram sizes are found by probing the index analyzer.
+ */
+public class EdgeNGramSizesTest {
+    @Test
+    public void edgeNGrams() {
+        assertSizes(2, 4, edgeNGrams(2, 4));
+        assertSizes(3, 3, edgeNGrams(3, 3));
+        // Edge ngrams as long as the probe don't have a limit
+        assertSizes(1, 0, edgeNGrams(1, 200));
+    }
+
+    @Test
+    public void notEdgeNGrams() {
+        assertNull(EdgeNGramSizes.probe("test", new KeywordAnalyzer()));
+        assertNull(EdgeNGramSizes.probe("test", new StandardAnalyzer(CharArraySet.EMPTY_SET)));
+        // Infix ngrams aren't prefixes of the probe even when they are all the same size
+        assertNull(EdgeNGramSizes.probe("test", ngrams(3, 3)));
+        assertNull(EdgeNGramSizes.probe("test", ngrams(2, 4)));
+    }
+
+    @Test
+    public void cachedByAnalyzer() {
+        EdgeNGramSizes sizes = new EdgeNGramSizes();
+        Analyzer analyzer = edgeNGrams(2, 4);
+        Tuple<Integer, Integer> first = sizes.sizes("test", analyzer);
+        assertSame(first, sizes.sizes("test", analyzer));
+        assertSizes(3, 5, sizes.sizes("test", edgeNGrams(3, 5)));
+        assertNull(sizes.sizes("test", ngrams(3, 3)));
+        assertNull(sizes.sizes("test", ngrams(3, 3)));
+    }
+
+    private void assertSizes(int min, int max, Analyzer analyzer) {
+        assertSizes(min, max, EdgeNGramSizes.probe("test", analyzer));
+    }
+
+    private void assertSizes(int min, int max, Tuple<Integer, Integer> sizes) {
+        assertEquals(min, (int) sizes.v1());
+        assertEquals(max, (int) sizes.v2());
+    }
+
+    private static Analyzer edgeNGrams(final int min, final int max) {
+        return new Analyzer() {
+            @Override
+            protected TokenStreamComponents createComponents(String fieldName, Reader reader) {
+                StandardTokenizer src = new StandardTokenizer(reader);
+                TokenStream tok = new LowerCaseFilter(src);
+                tok = new EdgeNGramTokenFilter(Version.LUCENE_4_10_4, tok, min, max);
+                return new TokenStreamComponents(src, tok);
+            }
+        };
+    }
+
+    private static Analyzer ngrams(final int min, final int max) {
+        return new Analyzer() {
+            @Override
+            protected TokenStreamComponents createComponents(String fieldName, Reader reader) {
+                StandardTokenizer src = new StandardTokenizer(reader);
+                TokenStream tok = new LowerCaseFilter(src);
+                tok = new NGramTokenFilter(Version.LUCENE_4_10_4, tok, min, max);
+                return new TokenStreamComponents(src, tok);
+            }
+        };
+    }
+}
@@ -4,21 +4,37 @@ import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertAcked;
 import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertFailures;
 import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertHitCount;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertOrderedSearchHits;
 import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertSearchHits;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.not;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.common.settings.ImmutableSettings;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.ToXContent;
 import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.indices.query.IndicesQueriesRegistry;
 import org.elasticsearch.plugins.PluginsService;
 import org.elasticsearch.rest.RestStatus;
 import org.elasticsearch.test.ElasticsearchIntegrationTest;
 import org.junit.Test;
 import org.wikimedia.search.extra.regex.SourceRegexFilterBuilder;
+import org.wikimedia.search.querystring.elasticsearch.explain.QueryStringExplainAction;
+import org.wikimedia.search.querystring.elasticsearch.explain.QueryStringExplainRequest;
+import org.wikimedia.search.querystring.elasticsearch.stats.NodeQueryStringStats;
+import org.wikimedia.search.querystring.elasticsearch.stats.QueryStringStatsAction;
+import org.wikimedia.search.querystring.elasticsearch.stats.QueryStringStatsRequest;
+import org.wikimedia.search.querystring.elasticsearch.stats.QueryStringStatsResponse;
 import org.wikimedia.search.querystring.query.FieldDefinition;
 
 /**
@@ -224,12 +240,290 @@ public class IntegrationTest extends ElasticsearchIntegrationTest {
             assertHitCount(search(builder(field, "\"foo b*\"~1")), 1);
             assertHitCount(search(builder(field, "\"foo bar boooomm~\"")), 1);
             assertHitCount(search(builder(field, "\"foo bar boooomm~2\"")), 1);
+            assertHitCount(search(builder(field, "\"foo ba*\"").allowPrefix(false)), field.equals("auto") ? 1 : 0);
             assertHitCount(search(builder(field, "\"*oo bar\"").allowLeadingWildcard(true)), 1);
             // Auto doesn't need a leading wildcard because its uses a reverse field
             assertHitCount(search(builder(field, "\"*oo bar\"").allowLeadingWildcard(false)), field.equals("auto") ? 1 : 0);
         }
     }
 
+    @Test
+    public void expandPhraseTerms() throws InterruptedException, ExecutionException, IOException {
+        indexRandom(true, client().prepareIndex("test", "test", "1").setSource("foo", "foo bar boooom"),
+                client().prepareIndex("test", "test", "2").setSource("foo", "foo baz"));
+        for (boolean expand : new boolean[] { false, true }) {
+            assertHitCount(search(builder("foo", "\"foo ba*\"").expandPhraseTerms(expand)), 2);
+            assertSearchHits(search(builder("foo", "\"foo ba? boooom\"").expandPhraseTerms(expand)), "1");
+            assertHitCount(search(builder("foo", "\"ba* foo\"").expandPhraseTerms(expand)), 0);
+            assertSearchHits(search(builder("foo", "\"foo bar boooomm~\"").expandPhraseTerms(expand)), "1");
+            assertHitCount(search(builder("foo", "\"foo bo*\"~1").expandPhraseTerms(expand)), 1);
+            assertHitCount(search(builder("foo", "\"foo zz*\"").expandPhraseTerms(expand)), 0);
+        }
+    }
+
+    @Test
+    public void cutoffFrequency() throws InterruptedException, ExecutionException {
+        // One shard and no dummy documents so the frequencies are predictable
+        assertAcked(prepareCreate("test").setSettings(ImmutableSettings.builder().put("index.number_of_shards", 1)));
+        indexRandom(true, false, client().prepareIndex("test", "test", "1").setSource("foo", "the cat"), //
+                client().prepareIndex("test", "test", "2").setSource("foo", "the dog"), //
+                client().prepareIndex("test", "test", "3").setSource("foo", "the history"), //
+                client().prepareIndex("test", "test", "4").setSource("foo", "history"));
+        QueryStringPlusPlusPlusBuilder builder = builder("foo", "the history");
+        assertSearchHits(search(builder), "3");
+        SearchResponse response = search(builder.cutoffFrequency(.5f));
+        assertSearchHits(response, "3", "4");
+        assertEquals("3", response.getHits().getAt(0).getId());
+        assertHitCount(search(builder.cutoffFrequency(3)), 1);
+        assertHitCount(search(builder("foo", "the").cutoffFrequency(.5f)), 3);
+        assertHitCount(search(builder("foo", "the history").defaultIsOr().cutoffFrequency(.5f)), 4);
+    }
+
+    @Test
+    public void budgetMs() throws InterruptedException, ExecutionException {
+        indexRandom(true, client().prepareIndex("test", "test", "1").setSource("foo", "pickles"));
+        assertSearchHits(search(builder("foo", "pick*").budgetMs(10000)), "1");
+        // A spent budget stops expensive clauses from matching and marks the response as timed out
+        SearchResponse response = search(builder("foo", "pick*").budgetMs(0));
+        assertHitCount(response, 0);
+        assertTrue(response.isTimedOut());
+        response = search(builder("foo", "pickles").budgetMs(0));
+        assertSearchHits(response, "1");
+        assertFalse(response.isTimedOut());
+    }
+
+    @Test
+    public void expansionBudget() throws InterruptedException, ExecutionException {
+        // One shard so the terms are only counted once
+        assertAcked(prepareCreate("test").setSettings(ImmutableSettings.builder().put("index.number_of_shards", 1)));
+        indexRandom(true, false, client().prepareIndex("test", "test", "1").setSource("foo", "pick"), //
+                client().prepareIndex("test", "test", "2").setSource("foo", "pickle"), //
+                client().prepareIndex("test", "test", "3").setSource("foo", "picket"), //
+                client().prepareIndex("test", "test", "4").setSource("foo", "pickup"));
+        assertHitCount(search(builder("foo", "pick*").expansionBudget(4)), 4);
+        // Clauses that don't fit use their best terms
+        assertHitCount(search(builder("foo", "pick*").expansionBudget(2)), 2);
+        assertHitCount(search(builder("foo", "pick* OR pickl*").expansionBudget(4)), 4);
+        assertHitCount(search(builder("foo", "pickl* OR pick*").expansionBudget(4)), 3);
+        // Once the budget is spent prefixes only match the prefix itself
+        assertSearchHits(search(builder("foo", "pick*").expansionBudget(0)), "1");
+    }
+
+    @Test
+    public void rewrite() throws InterruptedException, ExecutionException {
+        indexRandom(true, client().prepareIndex("test", "test", "1").setSource("foo", "pickle"), //
+                client().prepareIndex("test", "test", "2").setSource("foo", "pickled"), //
+                client().prepareIndex("test", "test", "3").setSource("foo", "pickles"));
+        assertHitCount(search(builder("foo", "pick*").rewrite("auto")), 3);
+        assertHitCount(search(builder("foo", "pickle~").rewrite("auto")), 3);
+        assertHitCount(search(builder("foo", "pick*").rewrite("constant_score_filter")), 3);
+        assertHitCount(search(builder("foo", "pick*").rewrite("scoring_boolean")), 3);
+        assertFailures(client().prepareSearch("test").setQuery(builder("foo", "pick*").rewrite("not_real")), RestStatus.BAD_REQUEST,
+                containsString("[rewrite] of [not_real]"));
+    }
+
+    @Test
+    public void degrade() throws InterruptedException, ExecutionException {
+        indexRandom(true, client().prepareIndex("test", "test", "1").setSource("foo", "pickle"), //
+                client().prepareIndex("test", "test", "2").setSource("foo", "pickled fish"));
+        long before = degradations();
+        assertHitCount(search(builder("foo", "pick*").degrade("always")), 0);
+        assertHitCount(search(builder("foo", "pickle~").degrade("always")), 1);
+        assertHitCount(search(builder("foo", "\"fish pickled\"~2").degrade("always")), 0);
+        assertThat(degradations(), greaterThan(before));
+        // The test cluster isn't under pressure
+        assertHitCount(search(builder("foo", "pick*").degrade("auto")), 2);
+        assertHitCount(search(builder("foo", "pick*").degrade("never")), 2);
+        assertFailures(client().prepareSearch("test").setQuery(builder("foo", "pick*").degrade("sometimes")), RestStatus.BAD_REQUEST,
+                containsString("[degrade] of [sometimes]"));
+    }
+
+    @Test
+    public void maxComplexity() throws InterruptedException, ExecutionException {
+        indexRandom(true, client().prepareIndex("test", "test", "1").setSource("foo", "pickle"), //
+                client().prepareIndex("test", "test", "2").setSource("foo", "pickled"));
+        assertHitCount(search(builder("foo", "pick*").maxComplexity(20)), 2);
+        assertFailures(client().prepareSearch("test").setQuery(builder("foo", "pick*").maxComplexity(10)), RestStatus.BAD_REQUEST,
+                containsString("score of [11] is more than [10]"));
+        assertFailures(client().prepareSearch("test").setQuery(builder("foo", "((pickle))").maxComplexity(10)), RestStatus.BAD_REQUEST,
+                containsString("score of [11] is more than [10]"));
+        assertHitCount(search(builder("foo", "pick*").maxComplexity(10).complexityAction("degrade")), 0);
+        assertHitCount(search(builder("foo", "pickle~").maxComplexity(10).complexityAction("degrade")), 1);
+        assertFailures(client().prepareSearch("test").setQuery(builder("foo", "pick*").complexityAction("ignore")), RestStatus.BAD_REQUEST,
+                containsString("[complexity_action] of [ignore]"));
+    }
+
+    @Test
+    public void profile() throws InterruptedException, ExecutionException {
+        indexRandom(true, client().prepareIndex("test", "test", "1").setSource("foo", "pickled fish"));
+        assertHitCount(search(builder("foo", "pickled").profile(true)), 1);
+        assertHitCount(search(builder("foo", "\"pickled fish\" pick* fish~").defaultIsOr().profile(true)), 1);
+    }
+
+    @Test
+    public void stats() throws InterruptedException, ExecutionException {
+        indexRandom(true, client().prepareIndex("test", "test", "1").setSource("foo", "bar", "other", "bar"));
+        QueryStringStatsResponse before = nodeStats();
+        assertHitCount(search(builder("foo", "other:bar")), 0);
+        assertHitCount(search(builder("foo", "*r")), 0);
+        assertHitCount(search(builder("foo", "bar")), 1);
+        // Invalid settings are failures too
+        assertFailures(client().prepareSearch("test").setQuery(builder("foo", "bar").rewrite("not_real")), RestStatus.BAD_REQUEST,
+                containsString("[rewrite] of [not_real]"));
+        QueryStringStatsResponse after = nodeStats();
+        assertEquals(before.getNodes().length, after.getNodes().length);
+        assertThat(statsTotal(after, "parses"), greaterThan(statsTotal(before, "parses")));
+        assertThat(statsTotal(after, "failures"), greaterThan(statsTotal(before, "failures")));
+        for (String phase : new String[] { "settings", "resolve", "lex", "parse", "build", "analysis" }) {
+            assertThat(statsTotal(after, "latency", phase, "count"), greaterThan(statsTotal(before, "latency", phase, "count")));
+        }
+        assertThat(statsTotal(after, "fallbacks", "unauthorized_field"),
+                greaterThan(statsTotal(before, "fallbacks", "unauthorized_field")));
+        assertThat(statsTotal(after, "fallbacks", "leading_wildcard"), greaterThan(statsTotal(before, "fallbacks", "leading_wildcard")));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void explain() throws IOException, InterruptedException, ExecutionException {
+        buildNiceMapping();
+        indexRandom(true, client().prepareIndex("test", "test", "1").setSource("foo", "pickled fish"));
+        QueryStringStatsResponse before = nodeStats();
+        XContentBuilder source = jsonBuilder().startObject().field("fields", "auto").field("query", "*oo pic* other:bar").endObject();
+        Map<String, Object> explanation = client().admin().indices()
+                .execute(QueryStringExplainAction.INSTANCE, new QueryStringExplainRequest("test").source(source.bytes())).actionGet()
+                .getExplanation();
+        assertEquals("*oo pic* other:bar", explanation.get("query"));
+        assertThat((String) explanation.get("lucene"), containsString("auto.reverse_precise:oo*"));
+        assertThat((String) explanation.get("lucene"), containsString("auto.prefix_precise:pic"));
+        List<String> rewriteTypes = new ArrayList<>();
+        for (Map<String, Object> rewrite : (List<Map<String, Object>>) explanation.get("rewrites")) {
+            rewriteTypes.add((String) rewrite.get("type"));
+        }
+        assertThat(rewriteTypes, containsInAnyOrder("reverse_precise", "prefix_precise", "fallback_to_term"));
+        Map<String, Object> complexity = (Map<String, Object>) explanation.get("complexity");
+        assertThat(((Number) complexity.get("score")).intValue(), greaterThan(0));
+        Map<String, Object> timings = (Map<String, Object>) explanation.get("timings");
+        assertThat(((Number) timings.get("took_nanos")).longValue(), greaterThan(0L));
+
+        // Multi-field regexes report their ngram prefilter too
+        source = jsonBuilder().startObject().field("fields", "auto,explicit").field("query", "/foo./").startObject("regex")
+                .endObject().endObject();
+        explanation = client().admin().indices()
+                .execute(QueryStringExplainAction.INSTANCE, new QueryStringExplainRequest("test").source(source.bytes())).actionGet()
+                .getExplanation();
+        assertThat((String) explanation.get("lucene"), containsString("multi_field_regex"));
+        rewriteTypes.clear();
+        for (Map<String, Object> rewrite : (List<Map<String, Object>>) explanation.get("rewrites")) {
+            rewriteTypes.add((String) rewrite.get("type"));
+        }
+        assertThat(rewriteTypes, contains("ngram_regex"));
+        Map<String, Object> regex = (Map<String, Object>) explanation.get("regex");
+        assertThat(((Number) regex.get("cache_hits")).intValue() + ((Number) regex.get("cache_misses")).intValue(), greaterThan(0));
+
+        /*
+         * Phrase terms are expanded against the shard just like in a search.
+         * The shard might not have the document so the phrase might not match
+         * anything but it never falls back to spans because there isn't a
+         * reader.
+         */
+        source = jsonBuilder().startObject().field("fields", "foo").field("query", "\"pic* fish\"").field("expand_phrase_terms", true)
+                .endObject();
+        explanation = client().admin().indices()
+                .execute(QueryStringExplainAction.INSTANCE, new QueryStringExplainRequest("test").source(source.bytes())).actionGet()
+                .getExplanation();
+        assertThat((String) explanation.get("lucene"), not(containsString("pic*")));
+
+        // Explaining doesn't count as parsing
+        assertEquals(statsTotal(before, "parses"), statsTotal(nodeStats(), "parses"));
+    }
+
+    private QueryStringStatsResponse nodeStats() {
+        return client().admin().cluster().execute(QueryStringStatsAction.INSTANCE, new QueryStringStatsRequest()).actionGet();
+    }
+
+    /**
+     * Sum of a stat across all the nodes in the response.
+     *
+     * @param path keys leading to the stat
+     */
+    @SuppressWarnings("unchecked")
+    private long statsTotal(QueryStringStatsResponse response, String... path) {
+        long total = 0;
+        for (NodeQueryStringStats node : response) {
+            Map<String, Object> stats = node.getStats();
+            for (int i = 0; i < path.length - 1; i++) {
+                stats = (Map<String, Object>) stats.get(path[i]);
+            }
+            total += ((Number) stats.get(path[path.length - 1])).longValue();
+        }
+        return total;
+    }
+
+    /**
+     * Total degradations across all the nodes.
+     */
+    private long degradations() {
+        long total = 0;
+        for (IndicesQueriesRegistry registry : internalCluster().getInstances(IndicesQueriesRegistry.class)) {
+            total += ((QueryStringPlusPlusPlusParser) registry.queryParsers().get(QueryStringPlusPlusPlusParser.NAMES[0])).degradations()
+                    .getTotal();
+        }
+        return total;
+    }
+
+    /**
+     * Prefixes in phrases use the prefix_precise field when its available. The
+     * edge ngrams have to line up with the positions in the precise field.
+     */
+    @Test
+    public void phrasePrefix() throws InterruptedException, ExecutionException, IOException {
+        buildNiceMapping();
+        indexRandom(true, client().prepareIndex("test", "test", "1").setSource("auto", "the united states of america"));
+        assertHitCount(search(builder("auto", "\"united sta*\"")), 1);
+        assertHitCount(search(builder("auto", "\"united Sta*\"")), 1);
+        assertHitCount(search(builder("auto", "\"unit* states\"")), 1);
+        assertHitCount(search(builder("auto", "\"the unit* states of\"")), 1);
+        assertHitCount(search(builder("auto", "\"the unit* of\"")), 0);
+        assertHitCount(search(builder("auto", "\"the unit* of\"~1")), 1);
+        assertHitCount(search(builder("auto", "\"sta* united\"")), 0);
+        assertHitCount(search(builder("auto", "\"united stax*\"")), 0);
+        assertHitCount(search(builder("auto", "\"united sta*\"").allowPrefix(false)), 1);
+    }
+
+    /**
+     * Prefixes longer than the prefix_precise field's longest edge ngram are
+     * expanded against the precise field instead.
+     */
+    @Test
+    public void prefixLongerThanEdgeNGrams() throws InterruptedException, ExecutionException, IOException {
+        XContentBuilder mapping = jsonBuilder().startObject().startObject("test").startObject("properties");
+        mapping.startObject("short").field("type", "string").field("analyzer", "english").startObject("fields");
+        field(mapping, "precise", "standard");
+        field(mapping, "prefix_precise", "short_prefix");
+        mapping.endObject().endObject().endObject().endObject().endObject();
+        XContentBuilder settings = jsonBuilder().startObject().startObject("index").startObject("analysis");
+        settings.startObject("analyzer").startObject("short_prefix");
+        settings.field("tokenizer", "standard").field("filter", "lowercase", "short_prefix");
+        settings.endObject().endObject();
+        settings.startObject("filter").startObject("short_prefix");
+        settings.field("type", "edgeNGram").field("min_gram", 2).field("max_gram", 4);
+        settings.endObject().endObject();
+        settings.endObject().endObject().endObject();
+        assertAcked(prepareCreate("test").setSettings(settings).addMapping("test", mapping));
+        ensureYellow();
+        indexRandom(true, client().prepareIndex("test", "test", "1").setSource("short", "the united states of america"));
+        assertHitCount(search(builder("short", "unit*")), 1);
+        assertHitCount(search(builder("short", "united*")), 1);
+        assertHitCount(search(builder("short", "u*")), 1);
+        assertHitCount(search(builder("short", "unitex*")), 0);
+        assertHitCount(search(builder("short", "\"united stat*\"")), 1);
+        assertHitCount(search(builder("short", "\"the united*\"")), 1);
+        assertHitCount(search(builder("short", "\"united america*\"")), 0);
+        // Short prefixes that can't use the prefix field can be kept from expanding
+        assertHitCount(search(builder("short", "u*").minPrefixLength(2)), 0);
+        assertHitCount(search(builder("short", "un*").minPrefixLength(2)), 1);
+    }
+
     /**
      * This tests using Elasticsearch's _field_name optimization for field
      * exists.
@@ -248,6 +542,23 @@ public class IntegrationTest extends ElasticsearchIntegrationTest {
         assertSearchHits(search(builder("a,b", "a:* NOT b:*")), "1");
     }
 
+    @Test
+    public void existsWithoutFieldNames() throws InterruptedException, ExecutionException, IOException {
+        XContentBuilder mapping = jsonBuilder().startObject().startObject("test");
+        mapping.startObject("_field_names").field("enabled", false).endObject();
+        mapping.endObject().endObject();
+        assertAcked(prepareCreate("test").addMapping("test", mapping));
+        ensureGreen();
+        indexRandom(true, client().prepareIndex("test", "test", "1").setSource("a", "foo"), //
+                client().prepareIndex("test", "test", "2").setSource("b", "foo"), //
+                client().prepareIndex("test", "test", "3").setSource("a", "foo", "b", "foo"));
+        assertHitCount(search(builder("a", "*")), 2);
+        assertHitCount(search(builder("a,b", "a:* AND b:*")), 1);
+        assertSearchHits(search(builder("a,b", "a:* NOT b:*")), "1");
+        // Run it again so it comes from the cache
+        assertSearchHits(search(builder("a,b", "a:* NOT b:*")), "1");
+    }
+
     @Test
     public void regex() throws InterruptedException, ExecutionException, IOException {
         buildNiceMapping();
@@ -288,10 +599,99 @@ public class IntegrationTest extends ElasticsearchIntegrationTest {
                 .put("plugins." + PluginsService.LOAD_PLUGIN_FROM_CLASSPATH, true).build();
     }
 
+    /**
+     * Enable plugin loading in the transport client too so it can call the
+     * stats and explain actions.
+     */
+    @Override
+    protected Settings transportClientSettings() {
+        return ImmutableSettings.builder().put(super.transportClientSettings())
+                .put("plugins." + PluginsService.LOAD_PLUGIN_FROM_CLASSPATH, true).build();
+    }
+
     private SearchResponse search(QueryStringPlusPlusPlusBuilder builder) {
         return client().prepareSearch("test").setQuery(builder).get();
     }
 
+    @Test
+    public void multiFieldRegex() throws InterruptedException, ExecutionException, IOException {
+        buildNiceMapping();
+        indexRandom(true, client().prepareIndex("test", "test", "1").setSource("auto", "foo bar"), //
+                client().prepareIndex("test", "test", "2").setSource("explicit", "zoo bat"), //
+                client().prepareIndex("test", "test", "3").setSource("auto", "cat", "explicit", "dog"));
+        FieldDefinition explicitField = new FieldDefinition("explicit", "explicit.break_auto_precise",
+                "explicit.break_auto_reverse_precise", "explicit.break_auto_prefix_precise", "explicit.break_auto_trigram", 3);
+        SourceRegexFilterBuilder.Settings settings = new SourceRegexFilterBuilder.Settings();
+        assertHitCount(search(builder("auto,explicit", "/oo ba/").regexSettings(settings)), 2);
+        assertSearchHits(search(builder("auto,explicit", "/cat|dog/").regexSettings(settings)), "3");
+        settings.rejectUnaccelerated(true);
+        assertFailures(client().prepareSearch("test").setQuery(builder("auto,explicit", "/oo ba/").regexSettings(settings)),
+                RestStatus.INTERNAL_SERVER_ERROR, containsString("Unable to accelerate \"oo ba\""));
+        assertHitCount(search(builder("auto,explicit", "/oo ba/").regexSettings(settings).define("explicit", explicitField)), 2);
+        ToXContent limited = regexSettings("max_determinized_states", 10);
+        assertFailures(client().prepareSearch("test").setQuery(builder("auto,explicit", "/foo(a|b)+a(a|b){12}/").regexSettings(limited)),
+                RestStatus.BAD_REQUEST, containsString("needs more than [10] states"));
+        // Each field is scored with its own boost
+        settings.rejectUnaccelerated(false);
+        assertOrderedSearchHits(search(builder("auto^10,explicit", "/oo ba/").regexSettings(settings)), "1", "2");
+        assertOrderedSearchHits(search(builder("auto,explicit^10", "/oo ba/").regexSettings(settings)), "2", "1");
+    }
+
+    @Test
+    public void regexLoadFrom() throws InterruptedException, ExecutionException, IOException {
+        XContentBuilder mapping = jsonBuilder().startObject().startObject("test");
+        // Without _source regexes only work if they load from somewhere else
+        mapping.startObject("_source").field("enabled", false).endObject();
+        mapping.startObject("properties");
+        mapping.startObject("doc_values").field("type", "string").field("index", "not_analyzed").field("doc_values", true).endObject();
+        mapping.startObject("stored").field("type", "string").field("store", true).endObject();
+        mapping.endObject().endObject().endObject();
+        assertAcked(prepareCreate("test").addMapping("test", mapping));
+        ensureGreen();
+        indexRandom(true, client().prepareIndex("test", "test", "1").setSource("doc_values", "foo bar", "stored", "foo bar"));
+        assertHitCount(search(builder("doc_values", "/oo b/").regexSettings(regexSettings("load_from", "auto"))), 1);
+        assertHitCount(search(builder("stored", "/oo b/").regexSettings(regexSettings("load_from", "auto"))), 1);
+        assertHitCount(search(builder("doc_values", "/oo b/").regexSettings(regexSettings("load_from", "doc_values"))), 1);
+        assertHitCount(search(builder("stored", "/oo b/").regexSettings(regexSettings("load_from", "stored_field"))), 1);
+        assertHitCount(search(builder("stored", "/oo b/").regexSettings(regexSettings("load_from", "source"))), 0);
+        assertHitCount(search(builder("stored", "/oo b/").regexSettings(regexSettings("load_from", "doc_values"))), 0);
+    }
+
+    @Test
+    public void luceneRegex() throws InterruptedException, ExecutionException, IOException {
+        buildNiceMapping();
+        indexRandom(true, client().prepareIndex("test", "test", "1").setSource("auto", "foo bar"), //
+                client().prepareIndex("test", "test", "2").setSource("auto", "cat"));
+        ToXContent settings = regexSettings("implementation", "lucene");
+        assertSearchHits(search(builder("auto", "/fo+/").regexSettings(settings)), "1");
+        assertSearchHits(search(builder("auto", "/Ca./").regexSettings(settings)), "2");
+        assertHitCount(search(builder("auto", "/fo+|ca./").regexSettings(settings)), 2);
+        // Lucene's regexes match whole terms
+        assertHitCount(search(builder("auto", "/oo b/").regexSettings(settings)), 0);
+        assertHitCount(search(builder("auto", "/oo/").regexSettings(settings)), 0);
+        settings = regexSettings("implementation", "lucene", "case_sensitive", true);
+        assertHitCount(search(builder("auto", "/Ca./").regexSettings(settings)), 0);
+        settings = regexSettings("implementation", "lucene", "max_determinized_states", 10);
+        assertFailures(client().prepareSearch("test").setQuery(builder("auto", "/(a|b)+a(a|b){12}/").regexSettings(settings)),
+                RestStatus.BAD_REQUEST, containsString("needs more than [10] states"));
+        settings = regexSettings("implementation", "not_real");
+        assertFailures(client().prepareSearch("test").setQuery(builder("auto", "/fo+/").regexSettings(settings)),
+                RestStatus.BAD_REQUEST, containsString("[regex.implementation] of [not_real]"));
+    }
+
+    private ToXContent regexSettings(final Object... keysAndValues) {
+        return new ToXContent() {
+            @Override
+            public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+                builder.startObject();
+                for (int i = 0; i < keysAndValues.length; i += 2) {
+                    builder.field(keysAndValues[i].toString(), keysAndValues[i + 1]);
+                }
+                return builder.endObject();
+            }
+        };
+    }
+
     private void buildNiceMapping() throws IOException {
         XContentBuilder mapping = jsonBuilder().startObject();
         mapping.startObject("test").startObject("properties");
@@ -329,7 +729,7 @@ public class IntegrationTest extends ElasticsearchIntegrationTest {
                 settings.startObject("prefix");
                 {
                     settings.field("type", "edgeNGram");
-                    settings.field("max_grap", 255);
+                    settings.field("max_gram", 255);
                 }
                 settings.endObject();
             }
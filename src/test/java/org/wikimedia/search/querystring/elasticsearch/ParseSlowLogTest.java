@@ -0,0 +1,91 @@
+package org.wikimedia.search.querystring.elasticsearch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.DisjunctionMaxQuery;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.junit.Test;
+
+/**
+ * Tests that the slow parse log picks the right level and counts clauses.
+ */
+public class ParseSlowLogTest {
+    @Test
+    public void disabledByDefault() {
+        ParseSlowLog slowLog = new ParseSlowLog(ImmutableSettings.EMPTY);
+        assertNull(slowLog.level(0));
+        assertNull(slowLog.level(TimeUnit.HOURS.toNanos(1)));
+    }
+
+    @Test
+    public void picksHighestExceededThreshold() {
+        ParseSlowLog slowLog = new ParseSlowLog(ImmutableSettings.builder().put("qsppp.slowlog.threshold.warn", "100ms")
+                .put("qsppp.slowlog.threshold.info", "10ms").put("qsppp.slowlog.threshold.debug", "1ms").build());
+        assertNull(slowLog.level(0));
+        assertNull(slowLog.level(millis(1)));
+        assertEquals("debug", slowLog.level(millis(1) + 1));
+        assertEquals("debug", slowLog.level(millis(10)));
+        assertEquals("info", slowLog.level(millis(10) + 1));
+        assertEquals("info", slowLog.level(millis(100)));
+        assertEquals("warn", slowLog.level(millis(100) + 1));
+    }
+
+    @Test
+    public void skipsDisabledLevels() {
+        ParseSlowLog slowLog = new ParseSlowLog(ImmutableSettings.builder().put("qsppp.slowlog.threshold.info", "10ms").build());
+        assertNull(slowLog.level(millis(5)));
+        assertEquals("info", slowLog.level(millis(50)));
+        assertEquals("info", slowLog.level(TimeUnit.HOURS.toNanos(1)));
+
+        slowLog = new ParseSlowLog(ImmutableSettings.builder().put("qsppp.slowlog.threshold.debug", "0ms").build());
+        assertNull(slowLog.level(0));
+        assertEquals("debug", slowLog.level(1));
+    }
+
+    @Test
+    public void clauses() {
+        assertEquals(1, ParseSlowLog.clauses(term("foo")));
+        assertEquals(1, ParseSlowLog.clauses(new PrefixQuery(new Term("field", "foo"))));
+        PhraseQuery phrase = new PhraseQuery();
+        phrase.add(new Term("field", "foo"));
+        phrase.add(new Term("field", "bar"));
+        // Phrases are a single leaf no matter how many terms they have
+        assertEquals(1, ParseSlowLog.clauses(phrase));
+
+        BooleanQuery bq = new BooleanQuery();
+        bq.add(term("foo"), Occur.MUST);
+        bq.add(phrase, Occur.SHOULD);
+        assertEquals(2, ParseSlowLog.clauses(bq));
+
+        DisjunctionMaxQuery dismax = new DisjunctionMaxQuery(0);
+        dismax.add(term("foo"));
+        dismax.add(bq);
+        assertEquals(3, ParseSlowLog.clauses(dismax));
+
+        BooleanQuery nested = new BooleanQuery();
+        nested.add(dismax, Occur.MUST);
+        nested.add(bq, Occur.MUST_NOT);
+        assertEquals(5, ParseSlowLog.clauses(nested));
+
+        // Empty boolean queries don't have any leaves
+        assertEquals(0, ParseSlowLog.clauses(new BooleanQuery()));
+    }
+
+    private static long millis(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    private static Query term(String term) {
+        return new TermQuery(new Term("field", term));
+    }
+}
@@ -0,0 +1,114 @@
+package org.wikimedia.search.querystring.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Locale;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.MultiTermQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.RegexpQuery;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.automaton.RegExp;
+import org.junit.Test;
+
+/**
+ * Tests that the compiled regex cache counts its work and never hands out
+ * shared mutable queries.
+ */
+public class CompiledRegexCacheTest {
+    private static final Term TERM = new Term("field", "fo+ba[rz]");
+
+    @Test
+    public void countsHitsAndMisses() {
+        CompiledRegexCache cache = new CompiledRegexCache(1024 * 1024);
+        RegexStats stats = new RegexStats();
+        cache.regexpQuery(TERM, RegExp.ALL, 10000, stats);
+        assertEquals(0, stats.getCacheHits());
+        assertEquals(1, stats.getCacheMisses());
+        long statesBuilt = stats.getStatesBuilt();
+        assertTrue(statesBuilt > 0);
+
+        cache.regexpQuery(TERM, RegExp.ALL, 10000, stats);
+        assertEquals(1, stats.getCacheHits());
+        assertEquals(1, stats.getCacheMisses());
+        // Hits don't build anything
+        assertEquals(statesBuilt, stats.getStatesBuilt());
+
+        // Different settings are different entries
+        cache.regexpQuery(TERM, RegExp.NONE, 10000, stats);
+        assertEquals(1, stats.getCacheHits());
+        assertEquals(2, stats.getCacheMisses());
+
+        assertEquals(1, cache.stats().hitCount());
+        assertEquals(2, cache.stats().missCount());
+    }
+
+    @Test
+    public void countsPerRequest() {
+        CompiledRegexCache cache = new CompiledRegexCache(1024 * 1024);
+        cache.regexpQuery(TERM, RegExp.ALL, 10000, new RegexStats());
+        RegexStats stats = new RegexStats();
+        cache.regexpQuery(TERM, RegExp.ALL, 10000, stats);
+        assertEquals(1, stats.getCacheHits());
+        assertEquals(0, stats.getCacheMisses());
+        assertEquals(0, stats.getStatesBuilt());
+    }
+
+    @Test
+    public void cachedRegexpQueriesAreIsolated() {
+        CompiledRegexCache cache = new CompiledRegexCache(1024 * 1024);
+        RegexStats stats = new RegexStats();
+        RegexpQuery first = cache.regexpQuery(TERM, RegExp.ALL, 10000, stats);
+        first.setBoost(5);
+        first.setRewriteMethod(MultiTermQuery.SCORING_BOOLEAN_QUERY_REWRITE);
+
+        RegexpQuery second = cache.regexpQuery(TERM, RegExp.ALL, 10000, stats);
+        assertEquals(1, stats.getCacheHits());
+        assertNotSame(first, second);
+        assertEquals(1, second.getBoost(), 0);
+        assertEquals(MultiTermQuery.CONSTANT_SCORE_AUTO_REWRITE_DEFAULT, second.getRewriteMethod());
+    }
+
+    @Test
+    public void cachedPrefiltersAreIsolated() {
+        CompiledRegexCache cache = new CompiledRegexCache(1024 * 1024);
+        RegexStats stats = new RegexStats();
+        BooleanQuery first = (BooleanQuery) cache.ngramPrefilter("foobar", "trigram", 3, Locale.ROOT, stats);
+        int clauses = first.clauses().size();
+        first.setBoost(5);
+        first.add(new TermQuery(new Term("trigram", "zzz")), Occur.MUST);
+        ((TermQuery) first.clauses().get(0).getQuery()).setBoost(7);
+
+        Query second = cache.ngramPrefilter("foobar", "trigram", 3, Locale.ROOT, stats);
+        assertEquals(1, stats.getCacheHits());
+        assertNotSame(first, second);
+        assertEquals(1, second.getBoost(), 0);
+        assertEquals(clauses, ((BooleanQuery) second).clauses().size());
+        assertEquals(1, ((BooleanQuery) second).clauses().get(0).getQuery().getBoost(), 0);
+    }
+
+    @Test
+    public void sizedByMemory() {
+        CompiledRegexCache cache = new CompiledRegexCache(1024 * 1024);
+        cache.regexpQuery(TERM, RegExp.ALL, 10000, new RegexStats());
+        long oneRegex = cache.estimatedBytes();
+        assertTrue(oneRegex > 0);
+        cache.regexpQuery(new Term("field", "(a|b)+a(a|b){8}"), RegExp.ALL, 10000, new RegexStats());
+        // Bigger automatons weigh more
+        assertTrue(cache.estimatedBytes() - oneRegex > oneRegex);
+
+        // Regexes bigger than the whole cache aren't kept
+        cache = new CompiledRegexCache(oneRegex - 1);
+        RegexStats stats = new RegexStats();
+        cache.regexpQuery(TERM, RegExp.ALL, 10000, stats);
+        cache.regexpQuery(TERM, RegExp.ALL, 10000, stats);
+        assertEquals(0, stats.getCacheHits());
+        assertEquals(2, stats.getCacheMisses());
+        assertEquals(0, cache.estimatedBytes());
+    }
+}
@@ -0,0 +1,144 @@
+package org.wikimedia.search.querystring.query;
+
+import static org.hamcrest.Matchers.instanceOf;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.FuzzyQuery;
+import org.apache.lucene.search.MultiTermQuery;
+import org.apache.lucene.search.MultiTermQuery.RewriteMethod;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests that rewrite methods that look at a query's terms count each term
+ * once no matter how many segments it is in.
+ */
+public class ExpandingRewriteMethodTest {
+    private static final String[] TERMS = new String[] { "pickle", "pickled", "pickles", "picky" };
+    private static final int SEGMENTS = 5;
+    private static IndexReader reader;
+
+    @BeforeClass
+    public static void buildIndex() throws IOException {
+        Directory dir = new RAMDirectory();
+        IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_4_10_4, new WhitespaceAnalyzer());
+        config.setMergePolicy(NoMergePolicy.INSTANCE);
+        try (IndexWriter writer = new IndexWriter(dir, config)) {
+            // Every term in every segment
+            for (int s = 0; s < SEGMENTS; s++) {
+                for (String term : TERMS) {
+                    Document doc = new Document();
+                    doc.add(new StringField("field", term, Store.NO));
+                    writer.addDocument(doc);
+                }
+                writer.commit();
+            }
+        }
+        reader = DirectoryReader.open(dir);
+        assertEquals(SEGMENTS, reader.leaves().size());
+    }
+
+    @AfterClass
+    public static void closeIndex() throws IOException {
+        reader.close();
+        reader = null;
+    }
+
+    @Test
+    public void budgetFitsUniqueTerms() throws IOException {
+        ExpansionBudget budget = new ExpansionBudget(TERMS.length);
+        Query rewritten = rewrite(prefix(), budget.rewrite(MultiTermQuery.CONSTANT_SCORE_AUTO_REWRITE_DEFAULT));
+        assertThat(rewritten, instanceOf(ConstantScoreQuery.class));
+        assertEquals(0, budget.getRemaining());
+
+        budget = new ExpansionBudget(10);
+        rewritten = rewrite(prefix(), budget.rewrite(MultiTermQuery.SCORING_BOOLEAN_QUERY_REWRITE));
+        assertEquals(TERMS.length, ((BooleanQuery) rewritten).clauses().size());
+        assertEquals(10 - TERMS.length, budget.getRemaining());
+    }
+
+    @Test
+    public void budgetTooSmall() throws IOException {
+        ExpansionBudget budget = new ExpansionBudget(TERMS.length - 1);
+        Query rewritten = rewrite(prefix(), budget.rewrite(MultiTermQuery.CONSTANT_SCORE_AUTO_REWRITE_DEFAULT));
+        assertEquals(TERMS.length - 1, ((BooleanQuery) rewritten).clauses().size());
+        assertEquals(0, budget.getRemaining());
+
+        // Once the budget is spent prefixes become term queries
+        assertEquals(new TermQuery(new Term("field", "pick")),
+                rewrite(prefix(), budget.rewrite(MultiTermQuery.CONSTANT_SCORE_AUTO_REWRITE_DEFAULT)));
+    }
+
+    @Test
+    public void budgetTopTerms() throws IOException {
+        ExpansionBudget budget = new ExpansionBudget(10);
+        Query rewritten = rewrite(fuzzy(), budget.rewrite(new MultiTermQuery.TopTermsScoringBooleanQueryRewrite(50)));
+        assertEquals(TERMS.length, ((BooleanQuery) rewritten).clauses().size());
+        assertEquals(10 - TERMS.length, budget.getRemaining());
+    }
+
+    @Test
+    public void budgetWithAuto() throws IOException {
+        ExpansionBudget budget = new ExpansionBudget(10);
+        Query rewritten = rewrite(prefix(), budget.rewrite(new AutoRewriteMethod(50, TERMS.length)));
+        assertEquals(TERMS.length, ((BooleanQuery) rewritten).clauses().size());
+        assertEquals(10 - TERMS.length, budget.getRemaining());
+
+        budget = new ExpansionBudget(10);
+        rewritten = rewrite(prefix(), budget.rewrite(new AutoRewriteMethod(50, TERMS.length - 1)));
+        assertThat(rewritten, instanceOf(ConstantScoreQuery.class));
+        assertEquals(10 - TERMS.length, budget.getRemaining());
+    }
+
+    @Test
+    public void autoCountsUniqueTerms() throws IOException {
+        Query rewritten = rewrite(prefix(), new AutoRewriteMethod(50, TERMS.length));
+        assertEquals(TERMS.length, ((BooleanQuery) rewritten).clauses().size());
+        assertThat(rewrite(prefix(), new AutoRewriteMethod(50, TERMS.length - 1)), instanceOf(ConstantScoreQuery.class));
+    }
+
+    @Test
+    public void autoFuzzy() throws IOException {
+        // Fuzzy queries that match only a few terms use all of them
+        Query rewritten = rewrite(fuzzy(), new AutoRewriteMethod(2, TERMS.length));
+        assertEquals(TERMS.length, ((BooleanQuery) rewritten).clauses().size());
+        // And only their top terms when they match more
+        rewritten = rewrite(fuzzy(), new AutoRewriteMethod(2, TERMS.length - 1));
+        assertEquals(2, ((BooleanQuery) rewritten).clauses().size());
+    }
+
+    private static MultiTermQuery prefix() {
+        return new PrefixQuery(new Term("field", "pick"));
+    }
+
+    private static MultiTermQuery fuzzy() {
+        return new FuzzyQuery(new Term("field", "pickle"));
+    }
+
+    private static Query rewrite(MultiTermQuery query, RewriteMethod method) throws IOException {
+        query.setRewriteMethod(method);
+        return query.rewrite(reader);
+    }
+}
@@ -0,0 +1,109 @@
+package org.wikimedia.search.querystring.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.wikimedia.search.querystring.ParserFixtures.analyzer;
+import static org.wikimedia.search.querystring.ParserFixtures.fields;
+import static org.wikimedia.search.querystring.ParserFixtures.fieldsHelper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.lucene.search.Query;
+import org.elasticsearch.index.Index;
+import org.junit.Test;
+import org.wikimedia.search.querystring.FieldsHelper;
+import org.wikimedia.search.querystring.ParserFixtures;
+import org.wikimedia.search.querystring.QueryComplexity;
+import org.wikimedia.search.querystring.QueryParserHelper;
+
+/**
+ * Tests that parsing sends an event around each hot phase with the number of
+ * fields it worked on.
+ */
+public class ParseEventsTest {
+    @Test
+    public void term() {
+        assertEvents("foo", "analysis 1", "analysis 1", "parse 2");
+    }
+
+    @Test
+    public void phrase() {
+        assertEvents("\"foo bar\"", "analysis 1", "analysis 1", "parse 2");
+    }
+
+    @Test
+    public void fielded() {
+        assertEvents("a:foo", "resolve 1", "analysis 1", "parse 2");
+        assertEvents("a,b,c:foo", "resolve 3", "analysis 1", "analysis 1", "analysis 1", "parse 2");
+    }
+
+    @Test
+    public void unauthorizedField() {
+        assertEvents("secret:foo", "resolve 0", "analysis 1", "analysis 1", "parse 2");
+    }
+
+    @Test
+    public void fuzzy() {
+        assertEvents("foo~", "fuzzy 1", "fuzzy 1", "parse 2");
+        assertEvents("a:foo~", "resolve 1", "fuzzy 1", "parse 2");
+    }
+
+    @Test
+    public void regex() {
+        // Without ngram fields the multi field regex gives up and each field builds its own
+        assertEvents("/fo+/", "regex 2", "regex 1", "regex 1", "parse 2");
+        assertEvents("a:/fo+/", "resolve 1", "regex 1", "parse 2");
+    }
+
+    @Test
+    public void mixed() {
+        // Fields are resolved while measuring complexity, before anything is built
+        assertEvents("foo a:bar~ /ba[rz]/", "resolve 1", "analysis 1", "analysis 1", "fuzzy 1", "regex 2", "regex 1", "regex 1",
+                "parse 2");
+    }
+
+    private void assertEvents(String query, String... expected) {
+        RecordingParseEvents events = new RecordingParseEvents();
+        parser(events).parse(query);
+        assertEquals(Arrays.asList(expected), events.recorded);
+    }
+
+    private QueryParserHelper parser(ParseEvents events) {
+        FieldQueryBuilder.Settings settings = new FieldQueryBuilder.Settings();
+        settings.setEvents(events);
+        settings.setRegexQueryBuilder(new RegexQueryBuilder.LuceneRegexQueryBuilder(new Index("test")));
+        List<FieldUsage> defaultFields = fields(analyzer(), "title", "text");
+        FieldsHelper fieldsHelper = fieldsHelper(analyzer());
+        fieldsHelper.setEvents(events);
+        for (String field : new String[] { "a", "b", "c" }) {
+            fieldsHelper.whitelist(field);
+        }
+        QueryParserHelper helper = ParserFixtures.parser(fieldsHelper, settings, defaultFields);
+        helper.setEvents(events);
+        helper.setComplexityCheck(new QueryParserHelper.ComplexityCheck() {
+            @Override
+            public void check(QueryComplexity complexity) {
+            }
+        }, defaultFields.size());
+        return helper;
+    }
+
+    /**
+     * Records each event's kind and field count when it ends.
+     */
+    private static class RecordingParseEvents implements ParseEvents {
+        private final List<String> recorded = new ArrayList<>();
+
+        @Override
+        public Event begin(final Kind kind) {
+            return new Event() {
+                @Override
+                public void end(Query query, int fieldCount) {
+                    recorded.add(kind.name().toLowerCase(Locale.ROOT) + " " + fieldCount);
+                }
+            };
+        }
+    }
+}
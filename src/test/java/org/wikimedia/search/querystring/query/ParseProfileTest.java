@@ -0,0 +1,122 @@
+package org.wikimedia.search.querystring.query;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.wikimedia.search.querystring.ParserFixtures.fields;
+import static org.wikimedia.search.querystring.ParserFixtures.fieldsHelper;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.standard.StandardTokenizer;
+import org.junit.Test;
+import org.wikimedia.search.querystring.FieldsHelper;
+import org.wikimedia.search.querystring.ParserFixtures;
+import org.wikimedia.search.querystring.QueryParserHelper;
+import org.wikimedia.search.querystring.query.ParseProfile.Phase;
+
+/**
+ * Tests that time is charged to the phase that spent it.
+ */
+public class ParseProfileTest {
+    private static final long TOKEN_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    @Test
+    public void chargesLastEnteredPhase() {
+        FakeClock clock = new FakeClock();
+        ParseProfile profile = new ParseProfile(Phase.SETTINGS, clock.now, false, clock);
+        clock.now += 10;
+        assertEquals(Phase.SETTINGS, profile.enter(Phase.BUILD));
+        clock.now += 20;
+        assertEquals(Phase.BUILD, profile.enter(Phase.ANALYSIS));
+        clock.now += 30;
+        assertEquals(Phase.ANALYSIS, profile.enter(Phase.BUILD));
+        clock.now += 40;
+        profile.stop();
+        assertEquals(10, profile.getNanos(Phase.SETTINGS));
+        assertEquals(60, profile.getNanos(Phase.BUILD));
+        assertEquals(30, profile.getNanos(Phase.ANALYSIS));
+        assertEquals(0, profile.getNanos(Phase.LEX));
+        assertEquals(100, profile.getTotalNanos());
+        // Stopped profiles don't charge anything
+        clock.now += 50;
+        profile.stop();
+        assertEquals(100, profile.getTotalNanos());
+    }
+
+    @Test
+    public void parsingChargesEachPhase() {
+        FakeClock clock = new FakeClock();
+        // Each read moves the clock a little so every phase that is entered is charged something
+        clock.tick = 1;
+        SlowAnalyzer analyzer = new SlowAnalyzer(clock);
+        ParseProfile profile = new ParseProfile(Phase.SETTINGS, clock.now, false, clock);
+        parser(analyzer, profile).parse("foo \"bar baz\" qux*");
+        profile.stop();
+        assertThat(profile.getNanos(Phase.LEX), greaterThan(0L));
+        assertThat(profile.getNanos(Phase.PARSE), greaterThan(0L));
+        assertThat(profile.getNanos(Phase.BUILD), greaterThan(0L));
+        assertThat(analyzer.slept, greaterThan(0L));
+        assertThat(profile.getNanos(Phase.ANALYSIS), greaterThanOrEqualTo(analyzer.slept));
+        // Analysis is charged to its own phase rather than to building
+        assertThat(profile.getNanos(Phase.BUILD), lessThan(TOKEN_NANOS));
+    }
+
+    private QueryParserHelper parser(Analyzer analyzer, ParseProfile profile) {
+        FieldQueryBuilder.Settings settings = new FieldQueryBuilder.Settings();
+        settings.setProfile(profile);
+        FieldsHelper fieldsHelper = fieldsHelper(analyzer);
+        fieldsHelper.whitelistAll();
+        QueryParserHelper helper = ParserFixtures.parser(fieldsHelper, settings, fields(analyzer, "field"));
+        helper.setProfile(profile);
+        return helper;
+    }
+
+    /**
+     * Clock that only moves when it is told to or when it is read.
+     */
+    private static class FakeClock implements ParseProfile.Clock {
+        private long now = 1000;
+        private long tick = 0;
+
+        @Override
+        public long nanoTime() {
+            now += tick;
+            return now;
+        }
+    }
+
+    /**
+     * Analyzer that moves the clock forward for each token so analysis takes
+     * much longer than anything else.
+     */
+    private static class SlowAnalyzer extends Analyzer {
+        private final FakeClock clock;
+        private long slept;
+
+        SlowAnalyzer(FakeClock clock) {
+            this.clock = clock;
+        }
+
+        @Override
+        protected TokenStreamComponents createComponents(String fieldName, Reader reader) {
+            StandardTokenizer src = new StandardTokenizer(reader);
+            TokenStream tok = new TokenFilter(src) {
+                @Override
+                public boolean incrementToken() throws IOException {
+                    clock.now += TOKEN_NANOS;
+                    slept += TOKEN_NANOS;
+                    return input.incrementToken();
+                }
+            };
+            return new TokenStreamComponents(src, tok);
+        }
+    }
+}